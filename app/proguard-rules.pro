@@ -1,25 +1,69 @@
-# Add project specific ProGuard rules here.
-# By default, the flags in this file are appended to flags specified
-# in /Users/shawnshen/Library/Android/sdk/tools/proguard/proguard-android.txt
-# You can edit the include path and order by changing the proguardFiles
-# directive in build.gradle.
+# Project specific ProGuard rules, appended to proguard-android-optimize.txt of the SDK.
 #
 # For more details, see
 #   http://developer.android.com/guide/developing/tools/proguard.html
 
-# Add any project specific keep options here:
+# Keep line numbers for crash reports, but not the source file names
+-keepattributes SourceFile,LineNumberTable
+-renamesourcefileattribute SourceFile
 
-# If your project uses WebView with JS, uncomment the following
-# and specify the fully qualified class name to the JavaScript interface
-# class:
-#-keepclassmembers class fqcn.of.javascript.interface.for.webview {
-#   public *;
-#}
+# Fragments are recreated by class name after a configuration change or process death
+-keep public class * extends android.app.Fragment {
+    public <init>();
+}
 
-# Uncomment this to preserve the line number information for
-# debugging stack traces.
-#-keepattributes SourceFile,LineNumberTable
+# Tracing looks up the hidden async trace methods of android.os.Trace by name; framework
+# classes are not shrunk, so nothing to keep here.
 
-# If you keep the line number information, uncomment this to
-# hide the original source file name.
-#-renamesourcefileattribute SourceFile
+# ---------------------------------------------------------------------------------------------
+# google-api-client, google-http-client and the generated ml v1 client
+#
+# JSON is mapped to and from GenericData subclasses by reflection on their @Key fields, using
+# the generic signatures of those fields, and instances are created through their no-argument
+# constructors (e.g. GoogleApiHttpBody, TokenResponse, the request classes).
+# ---------------------------------------------------------------------------------------------
+-keepattributes Signature,RuntimeVisibleAnnotations,AnnotationDefault,InnerClasses,EnclosingMethod
+
+-keepclassmembers class * {
+    @com.google.api.client.util.Key <fields>;
+}
+-keepclassmembers class * extends com.google.api.client.util.GenericData {
+    <init>();
+}
+# enum constants are matched by their @Value names
+-keepclassmembers enum * {
+    @com.google.api.client.util.Value <fields>;
+}
+-keep class com.google.api.client.util.Key
+-keep class com.google.api.client.util.Value
+-keep class com.google.api.client.util.NullValue
+
+# Optional platform integrations the client probes for, not used here
+-dontwarn com.google.api.client.extensions.android.**
+-dontwarn com.google.api.client.googleapis.extensions.android.**
+-dontwarn com.google.android.gms.**
+-dontwarn com.google.appengine.**
+-dontwarn javax.annotation.**
+-dontwarn sun.misc.Unsafe
+-dontnote java.nio.file.Files, java.nio.file.Path
+-dontnote sun.misc.Unsafe
+
+# ApacheHttpTransport runs on the httpclient of the platform (the httpclient module is
+# excluded from the dependencies), which the SDK stubs only partly declare
+-dontwarn org.apache.http.**
+-dontnote org.apache.http.**
+-dontnote android.net.http.**
+
+# ---------------------------------------------------------------------------------------------
+# Gson
+#
+# Only used on maps and lists here (the request body and the predictions), which need no model
+# classes kept; Gson itself needs the generic signatures kept above and probes for Unsafe.
+# ---------------------------------------------------------------------------------------------
+-keep class sun.misc.Unsafe { *; }
+-keep class * implements com.google.gson.TypeAdapterFactory
+-keep class * implements com.google.gson.JsonSerializer
+-keep class * implements com.google.gson.JsonDeserializer
+-keepclassmembers,allowobfuscation class * {
+    @com.google.gson.annotations.SerializedName <fields>;
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Base64 (standard alphabet, padded, no line breaks) encoder that writes through a fixed-size
+ * buffer. The buffer is reused per thread, so encoding a payload allocates nothing proportional
+ * to its size. {@link #finish()} flushes the trailing group without closing the wrapped stream.
+ */
+public class Base64EncodingOutputStream extends FilterOutputStream {
+    private static final byte[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+    // size of the encoded output buffer, a multiple of 4
+    static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<byte[]> sBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final byte[] mBuffer;
+    private int mBufferCount;
+
+    // pending input bytes of an incomplete 3-byte group
+    private int mPending;
+    private int mPendingCount;
+
+    private boolean mFinished;
+
+    public Base64EncodingOutputStream(OutputStream out) {
+        super(out);
+        mBuffer = sBuffers.get();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mPending = (mPending << 8) | (b & 0xFF);
+        if (++mPendingCount == 3) {
+            encodeGroup();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        int end = off + len;
+        // complete a partial group first
+        while (mPendingCount != 0 && off < end) {
+            write(bytes[off++]);
+        }
+        // then encode whole groups straight from the input
+        while (end - off >= 3) {
+            if (mBufferCount > BUFFER_SIZE - 4) {
+                flushBuffer();
+            }
+            int group = ((bytes[off] & 0xFF) << 16) | ((bytes[off + 1] & 0xFF) << 8)
+                    | (bytes[off + 2] & 0xFF);
+            off += 3;
+            mBuffer[mBufferCount++] = ALPHABET[(group >> 18) & 0x3F];
+            mBuffer[mBufferCount++] = ALPHABET[(group >> 12) & 0x3F];
+            mBuffer[mBufferCount++] = ALPHABET[(group >> 6) & 0x3F];
+            mBuffer[mBufferCount++] = ALPHABET[group & 0x3F];
+        }
+        while (off < end) {
+            write(bytes[off++]);
+        }
+    }
+
+    private void encodeGroup() throws IOException {
+        if (mBufferCount > BUFFER_SIZE - 4) {
+            flushBuffer();
+        }
+        int group = mPending;
+        mBuffer[mBufferCount++] = ALPHABET[(group >> 18) & 0x3F];
+        mBuffer[mBufferCount++] = ALPHABET[(group >> 12) & 0x3F];
+        mBuffer[mBufferCount++] = ALPHABET[(group >> 6) & 0x3F];
+        mBuffer[mBufferCount++] = ALPHABET[group & 0x3F];
+        mPending = 0;
+        mPendingCount = 0;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBufferCount > 0) {
+            out.write(mBuffer, 0, mBufferCount);
+            mBufferCount = 0;
+        }
+    }
+
+    /**
+     * Encodes the trailing partial group with padding and flushes everything to the wrapped
+     * stream, which is left open.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        if (mPendingCount != 0) {
+            if (mBufferCount > BUFFER_SIZE - 4) {
+                flushBuffer();
+            }
+            int group = mPending << (8 * (3 - mPendingCount));
+            mBuffer[mBufferCount++] = ALPHABET[(group >> 18) & 0x3F];
+            mBuffer[mBufferCount++] = ALPHABET[(group >> 12) & 0x3F];
+            mBuffer[mBufferCount++] = mPendingCount == 2 ? ALPHABET[(group >> 6) & 0x3F] : (byte) '=';
+            mBuffer[mBufferCount++] = (byte) '=';
+            mPending = 0;
+            mPendingCount = 0;
+        }
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
+import com.google.gson.Gson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Stylizes a list of existing images, e.g. picked from the gallery, with one style weight
+ * vector. Images are decoded, cropped and JPEG encoded on a pool of preprocessing threads, then
+ * sent {@link #BATCH_SIZE} at a time as the instances of one predict request, with at most
+ * {@link #MAX_CONCURRENT_BATCHES} requests in flight. Each request is a background task of the
+ * {@link InferenceScheduler}, so tapped styles and previews go first; a batch evicted from the
+ * scheduler's queue is submitted again.
+ *
+ * Every job has its own directory under files/batch/ holding a manifest, the style weights
+ * followed by one image uri per line, and result_N.jpg for the N-th image as soon as its batch
+ * returns. Results are renamed into place, so after an interruption {@link #resumePending()}
+ * only sends the images without a result. Results are the model's stylized images as returned,
+ * not blended with the original like the camera results.
+ *
+ * A read grant on a content uri ends with the process, so {@link #start} takes a persistable
+ * grant for every image, which works for uris from ACTION_OPEN_DOCUMENT. Any other content uri,
+ * e.g. from ACTION_GET_CONTENT, is copied into the job directory first and the manifest lists
+ * the copy, so a job resumed by a later process can still read all its images.
+ */
+public class BatchStylizer {
+    private static final String TAG = "BatchStylizer";
+
+    // images per predict request
+    static final int BATCH_SIZE = 4;
+    // predict requests in flight at the same time
+    static final int MAX_CONCURRENT_BATCHES = 2;
+
+    // size of the images sent, the same as the camera crops
+    private static final int IMAGE_SIZE = 250;
+
+    private static final String DIR_NAME = "batch";
+    private static final String MANIFEST_FILE_NAME = "manifest.txt";
+    private static final String DONE_FILE_NAME = "done";
+
+    // between attempts to submit a batch the scheduler rejected
+    private static final long RESUBMIT_DELAY_MS = 500;
+
+    private static final String PREDICTIONS = "predictions";
+    private static final String OUTPUT_IMAGE = "output_image";
+
+    /**
+     * State of a job, passed to the {@link Listener}.
+     */
+    public static class Progress {
+        public final String jobId;
+        public final int total;
+        // results on disk, including those of a previous run
+        public final int done;
+        public final int failed;
+        // images per second sent and stored by this run
+        public final float throughput;
+
+        Progress(String jobId, int total, int done, int failed, float throughput) {
+            this.jobId = jobId;
+            this.total = total;
+            this.done = done;
+            this.failed = failed;
+            this.throughput = throughput;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d/%d done, %d failed, %.2f images/s", jobId, done, total,
+                    failed, throughput);
+        }
+    }
+
+    /**
+     * Told about the progress after every batch, on a request thread.
+     */
+    public interface Listener {
+        void onProgress(Progress progress);
+
+        void onFinished(Progress progress);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final CMLEHandler mCMLEHandler;
+    private final InferenceScheduler mScheduler;
+    private final File mDir;
+
+    // one job at a time, each image is decoded on the preprocess pool
+    private final ExecutorService mJobExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mPreprocessExecutor =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    // cancel flag of every queued or running job, by job id
+    private final Map<String, AtomicBoolean> mCancelFlags = new ConcurrentHashMap<>();
+
+    private volatile Listener mListener;
+
+    public BatchStylizer(ContentResolver contentResolver, CMLEHandler cmleHandler,
+                         InferenceScheduler scheduler, File filesDir) {
+        mContentResolver = contentResolver;
+        mCMLEHandler = cmleHandler;
+        mScheduler = scheduler;
+        mDir = new File(filesDir, DIR_NAME);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues a new job and returns its id.
+     */
+    public String start(List<Uri> images, Float[] styleWeights) throws IOException {
+        String jobId = "job_" + System.currentTimeMillis();
+        File jobDir = new File(mDir, jobId);
+        if (!jobDir.mkdirs()) {
+            throw new IOException("Cannot create " + jobDir);
+        }
+        File tmp = new File(jobDir, MANIFEST_FILE_NAME + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp),
+                StandardCharsets.UTF_8)) {
+            StringBuilder weights = new StringBuilder();
+            for (int i = 0; i < styleWeights.length; i++) {
+                weights.append(i > 0 ? " " : "").append(styleWeights[i]);
+            }
+            writer.write(weights.append('\n').toString());
+            for (int i = 0; i < images.size(); i++) {
+                writer.write(keepReadable(images.get(i), jobDir, i).toString() + "\n");
+            }
+        }
+        if (!tmp.renameTo(new File(jobDir, MANIFEST_FILE_NAME))) {
+            throw new IOException("Cannot write the manifest of " + jobId);
+        }
+        queueJob(jobDir);
+        return jobId;
+    }
+
+    // the image itself if later processes can still read it, otherwise a copy in the job dir
+    private Uri keepReadable(Uri image, File jobDir, int index) throws IOException {
+        if (!ContentResolver.SCHEME_CONTENT.equals(image.getScheme())) {
+            return image;
+        }
+        try {
+            mContentResolver.takePersistableUriPermission(image,
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            return image;
+        } catch (SecurityException e) {
+            // not a document uri, or not granted as persistable
+        }
+        File copy = new File(jobDir, "input_" + index);
+        try (InputStream in = mContentResolver.openInputStream(image);
+             OutputStream out = new FileOutputStream(copy)) {
+            if (in == null) {
+                throw new IOException("Cannot open " + image);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return Uri.fromFile(copy);
+    }
+
+    // queues the jobs an earlier process did not finish
+    public void resumePending() {
+        File[] jobDirs = mDir.listFiles();
+        if (jobDirs == null) {
+            return;
+        }
+        for (final File jobDir : jobDirs) {
+            if (new File(jobDir, MANIFEST_FILE_NAME).exists()
+                    && !new File(jobDir, DONE_FILE_NAME).exists()) {
+                Log.d(TAG, "resuming " + jobDir.getName());
+                queueJob(jobDir);
+            }
+        }
+    }
+
+    private void queueJob(final File jobDir) {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        if (mCancelFlags.putIfAbsent(jobDir.getName(), cancelled) != null) {
+            // already queued
+            return;
+        }
+        mJobExecutor.execute(() -> {
+            try {
+                runJob(jobDir, cancelled);
+            } finally {
+                mCancelFlags.remove(jobDir.getName());
+            }
+        });
+    }
+
+    // stops the job after its batches in flight, it resumes later
+    public void cancel(String jobId) {
+        AtomicBoolean cancelled = mCancelFlags.get(jobId);
+        if (cancelled != null) {
+            cancelled.set(true);
+        }
+    }
+
+    // stops the running and queued jobs after their batches in flight, they resume later
+    public void cancel() {
+        for (AtomicBoolean cancelled : mCancelFlags.values()) {
+            cancelled.set(true);
+        }
+    }
+
+    public void shutdown() {
+        cancel();
+        mJobExecutor.shutdownNow();
+        mPreprocessExecutor.shutdownNow();
+    }
+
+    private void runJob(File jobDir, AtomicBoolean cancelled) {
+        String jobId = jobDir.getName();
+        List<Uri> images = new ArrayList<>();
+        Float[] styleWeights;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(jobDir, MANIFEST_FILE_NAME)),
+                StandardCharsets.UTF_8))) {
+            String[] weights = reader.readLine().split(" ");
+            styleWeights = new Float[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                styleWeights[i] = Float.parseFloat(weights[i]);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    images.add(Uri.parse(line));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.d(TAG, "Cannot read the manifest of " + jobId + ": " + e);
+            return;
+        }
+
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            if (!resultFile(jobDir, i).exists()) {
+                pending.add(i);
+            }
+        }
+        final AtomicInteger done = new AtomicInteger(images.size() - pending.size());
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final long startMs = SystemClock.elapsedRealtime();
+        // submitted batches, oldest first
+        ArrayDeque<Batch> inFlight = new ArrayDeque<>();
+        Log.d(TAG, jobId + ": " + pending.size() + " of " + images.size() + " images to go");
+
+        try {
+            for (int start = 0; start < pending.size() && !cancelled.get(); start += BATCH_SIZE) {
+                final List<Integer> next =
+                        pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()));
+                // decoded in parallel, while earlier batches are on the network
+                List<Future<byte[]>> encoded = new ArrayList<>();
+                for (final int index : next) {
+                    encoded.add(mPreprocessExecutor.submit(
+                            (Callable<byte[]>) () -> preprocess(images.get(index))));
+                }
+                final List<Integer> indices = new ArrayList<>();
+                final List<byte[]> jpegs = new ArrayList<>();
+                for (int i = 0; i < next.size(); i++) {
+                    try {
+                        jpegs.add(encoded.get(i).get());
+                        indices.add(next.get(i));
+                    } catch (ExecutionException e) {
+                        Log.d(TAG, "Cannot read " + images.get(next.get(i)) + ": " + e.getCause());
+                        failed.incrementAndGet();
+                    }
+                }
+                if (indices.isEmpty()) {
+                    continue;
+                }
+                if (inFlight.size() >= MAX_CONCURRENT_BATCHES) {
+                    awaitBatch(inFlight.removeFirst(), cancelled);
+                }
+                Batch batch = new Batch(jobDir, indices, jpegs, styleWeights, cancelled, stored -> {
+                    done.addAndGet(stored);
+                    sent.addAndGet(stored);
+                    failed.addAndGet(indices.size() - stored);
+                    notifyProgress(false, jobId, images.size(), done, failed, sent, startMs);
+                });
+                submitBatch(batch, cancelled);
+                inFlight.addLast(batch);
+            }
+            while (!inFlight.isEmpty()) {
+                awaitBatch(inFlight.removeFirst(), cancelled);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        if (done.get() == images.size()) {
+            try {
+                new File(jobDir, DONE_FILE_NAME).createNewFile();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot mark " + jobId + " as done", e);
+            }
+        }
+        notifyProgress(true, jobId, images.size(), done, failed, sent, startMs);
+    }
+
+    // queues the batch on the scheduler, retrying while it is rejected, unless cancelled
+    private void submitBatch(Batch batch, AtomicBoolean cancelled) throws InterruptedException {
+        while (!cancelled.get()) {
+            batch.mTask = mScheduler.submit(InferenceScheduler.PRIORITY_BACKGROUND,
+                    batch.mJobDir.getName() + " batch", batch);
+            if (batch.mTask != null) {
+                return;
+            }
+            Thread.sleep(RESUBMIT_DELAY_MS);
+        }
+    }
+
+    // waits for the batch to be sent, submitting it again if it was evicted before it ran
+    private void awaitBatch(Batch batch, AtomicBoolean cancelled) throws InterruptedException {
+        while (batch.mTask != null) {
+            batch.mTask.awaitDone();
+            if (batch.mFinished || cancelled.get()) {
+                return;
+            }
+            batch.mTask = null;
+            submitBatch(batch, cancelled);
+        }
+    }
+
+    private void notifyProgress(boolean finished, String jobId, int total, AtomicInteger done,
+                                AtomicInteger failed, AtomicInteger sent, long startMs) {
+        long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - startMs);
+        Progress progress = new Progress(jobId, total, done.get(), failed.get(),
+                sent.get() * 1000f / elapsedMs);
+        Log.d(TAG, (finished ? "finished " : "progress ") + progress);
+        Listener listener = mListener;
+        if (listener != null) {
+            if (finished) {
+                listener.onFinished(progress);
+            } else {
+                listener.onProgress(progress);
+            }
+        }
+    }
+
+    // decode the image at about the size it is sent at, then crop it square like a capture
+    private byte[] preprocess(Uri image) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = mContentResolver.openInputStream(image)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        int minDim = Math.min(options.outWidth, options.outHeight);
+        if (minDim <= 0) {
+            throw new IOException("Not an image");
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (minDim / (options.inSampleSize * 2) >= 2 * IMAGE_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap;
+        try (InputStream in = mContentResolver.openInputStream(image)) {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode");
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        PixelKernel kernel = new PixelKernel(IMAGE_SIZE, IMAGE_SIZE);
+        kernel.setRotation(readRotation(image));
+        // the preprocess pool already keeps every core busy
+        kernel.setParallel(false);
+        int[] cropped = new int[IMAGE_SIZE * IMAGE_SIZE];
+        kernel.run(pixels, width, height, cropped);
+        Bitmap croppedBitmap = Bitmap.createBitmap(cropped, IMAGE_SIZE, IMAGE_SIZE,
+                Bitmap.Config.ARGB_8888);
+        byte[] jpegBytes = StreamingPredictContent.encodeJpeg(croppedBitmap);
+        croppedBitmap.recycle();
+        return jpegBytes;
+    }
+
+    // clockwise rotation the EXIF orientation of a photo asks for
+    private int readRotation(Uri image) {
+        try (InputStream in = mContentResolver.openInputStream(image)) {
+            switch (new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // sends one batch and stores its results, returns how many were stored
+    private int sendBatch(File jobDir, List<Integer> indices, List<byte[]> jpegs,
+                          Float[] styleWeights) {
+        GoogleApiHttpBody response;
+        try {
+            response = mCMLEHandler.predict(new StreamingPredictContent(
+                    jpegs.toArray(new byte[jpegs.size()][]), styleWeights));
+        } catch (IOException e) {
+            Log.d(TAG, "batch request error: " + e);
+            return 0;
+        }
+        if (response.get("error") != null) {
+            Log.d(TAG, "Response from CMLE has error.");
+            return 0;
+        }
+        Gson gson = new Gson();
+        List<?> outImages = (List<?>) gson.fromJson(gson.toJson(response.get(PREDICTIONS)),
+                Object.class);
+        int stored = 0;
+        for (int i = 0; outImages != null && i < outImages.size() && i < indices.size(); i++) {
+            String encoded = (String) ((Map<?, ?>) outImages.get(i)).get(OUTPUT_IMAGE);
+            if (encoded == null) {
+                continue;
+            }
+            // already an encoded image, stored as is
+            byte[] bytes = Base64.decode(encoded, Base64.URL_SAFE);
+            File result = resultFile(jobDir, indices.get(i));
+            File tmp = new File(jobDir, result.getName() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(bytes);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot store " + result, e);
+                continue;
+            }
+            if (tmp.renameTo(result)) {
+                stored++;
+            }
+        }
+        return stored;
+    }
+
+    private static File resultFile(File jobDir, int index) {
+        return new File(jobDir, "result_" + index + ".jpg");
+    }
+
+    /**
+     * One predict request of a job, run as a scheduler task.
+     */
+    private class Batch implements InferenceScheduler.Job {
+        final File mJobDir;
+        final List<Integer> mIndices;
+        final List<byte[]> mJpegs;
+        final Float[] mStyleWeights;
+        final AtomicBoolean mCancelled;
+        // told how many results were stored
+        final IntConsumer mOnSent;
+
+        // task of the latest submission, only used by the job thread
+        InferenceScheduler.Task mTask;
+        volatile boolean mFinished;
+
+        Batch(File jobDir, List<Integer> indices, List<byte[]> jpegs, Float[] styleWeights,
+              AtomicBoolean cancelled, IntConsumer onSent) {
+            mJobDir = jobDir;
+            mIndices = indices;
+            mJpegs = jpegs;
+            mStyleWeights = styleWeights;
+            mCancelled = cancelled;
+            mOnSent = onSent;
+        }
+
+        @Override
+        public void run(InferenceScheduler.Task task) {
+            // a cancelled job sends nothing more, its images stay pending
+            if (mCancelled.get()) {
+                return;
+            }
+            int stored;
+            try {
+                stored = sendBatch(mJobDir, mIndices, mJpegs, mStyleWeights);
+            } finally {
+                // not sent again, even if it failed
+                mFinished = true;
+            }
+            mOnSent.accept(stored);
+        }
+    }
+}
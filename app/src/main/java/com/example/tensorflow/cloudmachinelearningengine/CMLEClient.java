@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.ml.v1.CloudMachineLearningEngine;
+import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport side of a predict call, without any Android dependency so it can also be driven
+ * from a plain JVM, e.g. by the load harness of the unit tests against a fake server.
+ */
+public class CMLEClient implements Predictor {
+    public static final String DEFAULT_ROOT_URL = CloudMachineLearningEngine.DEFAULT_ROOT_URL;
+
+    // bodies of known length below this are sent uncompressed, gzip would not pay off
+    public static final long DEFAULT_GZIP_THRESHOLD_BYTES = 1024;
+
+    // CMLE instance for making request
+    private final CloudMachineLearningEngine mCloudMachineLearningEngine;
+
+    // project path string related to project id and model name
+    private final String mModelPath;
+
+    /**
+     * Request compression. Bodies of unknown length, like the ones compressing a bitmap while
+     * streaming, are always compressed when gzip is enabled since they are far above any
+     * sensible threshold.
+     */
+    private volatile boolean mGzipEnabled;
+    private volatile long mGzipThresholdBytes = DEFAULT_GZIP_THRESHOLD_BYTES;
+
+    // network type the next requests are attributed to in mCompressionStats
+    private volatile String mNetworkType = "unknown";
+    private final CompressionStats mCompressionStats = new CompressionStats();
+
+    // wraps a body to count the bytes written when it is sent uncompressed
+    private static class CountingContent implements HttpContent {
+        private final HttpContent mContent;
+        long mCount;
+
+        CountingContent(HttpContent content) {
+            mContent = content;
+        }
+
+        @Override
+        public long getLength() throws IOException {
+            return mContent.getLength();
+        }
+
+        @Override
+        public String getType() {
+            return mContent.getType();
+        }
+
+        @Override
+        public boolean retrySupported() {
+            return mContent.retrySupported();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            mCount = 0;
+            mContent.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    mCount++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    mCount += len;
+                }
+            });
+        }
+    }
+
+    /**
+     * @param credentials initializer adding authentication, may be null for a local stand-in
+     * @param rootUrl     root of the service, {@link #DEFAULT_ROOT_URL} for Cloud ML Engine
+     * @param modelPath   e.g. "projects/my-project/models/my-model"
+     */
+    public CMLEClient(HttpTransport transport, HttpRequestInitializer credentials,
+                      String applicationName, String rootUrl, String modelPath) {
+        mCloudMachineLearningEngine = new CloudMachineLearningEngine.Builder(
+                transport,
+                GsonFactory.getDefaultInstance(),
+                credentials)
+                .setApplicationName(applicationName)
+                .setRootUrl(rootUrl)
+                .build();
+        mModelPath = modelPath;
+    }
+
+    public String getModelPath() {
+        return mModelPath;
+    }
+
+    public void setGzipEnabled(boolean gzipEnabled) {
+        mGzipEnabled = gzipEnabled;
+    }
+
+    public void setGzipThresholdBytes(long gzipThresholdBytes) {
+        mGzipThresholdBytes = gzipThresholdBytes;
+    }
+
+    // e.g. "wifi" or "cellular", set by the caller whenever it may have changed
+    public void setNetworkType(String networkType) {
+        mNetworkType = networkType;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return mCompressionStats;
+    }
+
+    // POST the given body to the predict method of the model, bypassing the generated
+    // {@link CloudMachineLearningEngine.Projects.Predict} so the body does not have to be a
+    // request object held in memory
+    @Override
+    public GoogleApiHttpBody predict(HttpContent content) throws IOException {
+        GenericUrl url = new GenericUrl(
+                mCloudMachineLearningEngine.getBaseUrl() + "v1/" + mModelPath + ":predict");
+        long length = content.getLength();
+        boolean gzip = mGzipEnabled && (length < 0 || length >= mGzipThresholdBytes);
+        GzipRequestEncoding encoding = null;
+        CountingContent countingContent = null;
+        HttpRequest request;
+        if (gzip) {
+            encoding = new GzipRequestEncoding();
+            request = mCloudMachineLearningEngine.getRequestFactory().buildPostRequest(url, content);
+            request.setEncoding(encoding);
+        } else {
+            countingContent = new CountingContent(content);
+            request = mCloudMachineLearningEngine.getRequestFactory()
+                    .buildPostRequest(url, countingContent);
+        }
+        request.setParser(mCloudMachineLearningEngine.getObjectParser());
+
+        long startNs = System.nanoTime();
+        GoogleApiHttpBody response = request.execute().parseAs(GoogleApiHttpBody.class);
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        if (gzip) {
+            mCompressionStats.record(mNetworkType, true, encoding.getRawBytes(),
+                    encoding.getCompressedBytes(), encoding.getDeflateNanos(), latencyMs);
+        } else {
+            mCompressionStats.record(mNetworkType, false, countingContent.mCount,
+                    countingContent.mCount, 0, latencyMs);
+        }
+        return response;
+    }
+}
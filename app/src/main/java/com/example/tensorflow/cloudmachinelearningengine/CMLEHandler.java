@@ -17,39 +17,50 @@
 package com.example.tensorflow.cloudmachinelearningengine;
 
 import android.app.Activity;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
-import android.graphics.Paint;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.TransitionDrawable;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Environment;
 import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.View;
 import android.widget.ImageView;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.apache.ApacheHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.services.ml.v1.CloudMachineLearningEngine;
 import com.google.api.services.ml.v1.CloudMachineLearningEngineScopes;
 import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
-import com.google.api.services.ml.v1.model.GoogleCloudMlV1PredictRequest;
 import com.google.gson.Gson;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-
-public class CMLEHandler {
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CMLEHandler implements MemoryGovernor.MemoryConsumer {
     /**
      * Tag for the {@link Log}.
      */
@@ -59,69 +70,375 @@ public class CMLEHandler {
      * Boolean flag for debugging.
      */
     private static final Boolean DEBUG = false;
-    /**
-     * Debug related to timing
-     */
-    long mRequestStartMs;
-    long mRequestEndMs;
-    
+
     // constants for TF stylizer model on Cloud Machine Learning Engine
     private static final String PROJECT_ID = "<YOUR_PROJECT_ID>";
     private static final String MODEL_NAME = "<YOUR_MODEL_NAME>";
+    // deployed versions requests are spread over, besides the model's default version
+    private static final String[] MODEL_VERSIONS = {};
     // service account for authentication
     private static final String SERVICE_ACCOUNT_JSON_FILE = "<YOUR_SERVICE_ACCOUNT_KEY_JSON>";
 
     // input parameters of the TF stylizer model
-    private static final int NUM_RAW_STYLES = 32;
-    private static final String INSTANCES = "instances";
+    static final String INSTANCES = "instances";
     private static final String PREDICTIONS = "predictions";
     // output parameters of the TF stylizer model
     private static final String OUTPUT_IMAGE = "output_image";
 
+    // send request bodies with Content-Encoding: gzip
+    private static final boolean GZIP_REQUESTS = false;
+
+    // fraction of requests captured by the request recorder
+    private static final float RECORD_SAMPLE_RATE = 0.05f;
+
     // alpha blend between original source bitmap and stylized bitmap:
     private static final int BLEND_ALPHA = 128;
 
-    // ImageView to captured image as well as stylized image
-    private ImageView mImageView;
-    private Activity mCurrentActivity;
+    // names of the stages of a style request
+    static final String STAGE_PREPROCESS = "preprocess";
+    static final String STAGE_ENCODE = "encode";
+    static final String STAGE_TRANSPORT = "transport";
+    static final String STAGE_DECODE = "decode";
+    static final String STAGE_COMPOSITE = "composite";
+    static final String STAGE_RENDER = "render";
+
+    // requests on the network at the same time, the other stages are CPU bound and run single.
+    // One more than the scheduler's in-flight limit, so a request that is still on the network
+    // after being preempted does not hold up the request that preempted it
+    private static final int TRANSPORT_PARALLELISM = 3;
+    // requests that may wait in front of each stage
+    private static final int STAGE_QUEUE_CAPACITY = 2;
+    // longest wait for the UI thread to show a result
+    private static final long RENDER_TIMEOUT_MS = 1000;
+    // lift results to the capture's guide crop rather than keeping them at model resolution
+    private static final boolean GUIDED_UPSAMPLING = true;
+    // fade from the placeholder shown at tap time to the real result
+    private static final int CROSSFADE_MS = 300;
+
+    // send a sentinel request to every target when the UI comes up, see warmUp()
+    private static final boolean WARM_UP_ON_START = true;
+    // side of the blank sentinel image
+    private static final int SENTINEL_SIZE = 16;
+
+    // name of the async trace section of each request, from submission to leaving the pipeline
+    private static final String TRACE_REQUEST = "styleRequest";
+
+    /**
+     * Told about every result once it is the current one.
+     */
+    public interface ResultListener {
+        void onResult(int style, Bitmap source, Bitmap result);
+    }
+
+    /**
+     * State of one style request, handed from stage to stage of {@link #mPipeline}.
+     */
+    private static class StyleRequest {
+        final int mId;
+        final int mStyle;
+        final InferenceScheduler.Task mTask;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final long mStartMs = SystemClock.elapsedRealtime();
+        // stage the request is in or last left, for the dump
+        volatile String mStage = "queued";
+
+        Bitmap mSourceBitmap;
+        // larger crop of the same capture to lift the result to, or null
+        Bitmap mGuideBitmap;
+        // shown from the tap until the result is in: an earlier result or the style's LUT
+        Bitmap mPlaceholder;
+        HttpContent mContent;
+        ModelRouter.Target mTarget;
+        GoogleApiHttpBody mResponse;
+        // owned by the request until handed on, recycled if the request is dropped
+        Bitmap mStylizedBitmap;
+        Bitmap mBlendedBitmap;
+
+        StyleRequest(int id, int style, InferenceScheduler.Task task) {
+            mId = id;
+            mStyle = style;
+            mTask = task;
+        }
+    }
+
+    // application context, the handler outlives the activities it is attached to
+    private final Context mContext;
+
+    // ImageView to captured image as well as stylized image, null while detached
+    private volatile ImageView mImageView;
+    private volatile Activity mCurrentActivity;
 
-    private CameraHandler mCameraHandler;
+    // requests finished while the UI was paused: kept for when it comes back, or thrown away
+    private volatile boolean mPaused;
+    private final AtomicLong mKeptAfterPause = new AtomicLong();
+    private final AtomicLong mWastedAfterPause = new AtomicLong();
 
-    // array of floats for sending image requests with style weights
-    private final Float[] mStyleVals = new Float[NUM_RAW_STYLES];
+    private volatile CameraHandler mCameraHandler;
+
+    // last blended result shown in mImageView
+    private volatile Bitmap mResultBitmap;
+
+    private volatile ResultListener mResultListener;
 
     /**
-     * Cloud Machine Learning Engine objects
+     * Cloud Machine Learning Engine objects. The clients and the router are thread safe and
+     * shared by all requests in flight; setupCMLERequest replaces them as a whole, so a request
+     * reads each field once and keeps using what it got.
      */
     // credentials related to service account
     private GoogleCredential mCredentials = null;
 
-    // CMLE instance for making request
-    private CloudMachineLearningEngine mCloudMachineLearningEngine;
+    // clients sending predict requests to CMLE, one per model path, unmodifiable
+    private volatile List<CMLEClient> mCMLEClients = Collections.emptyList();
+
+    // picks the fastest, least loaded of mCMLEClients for each request
+    private volatile ModelRouter mModelRouter;
 
-    // JSON request for prediction
-    private GoogleCloudMlV1PredictRequest mRequestJson;
+    // root url of the predict service, may point to a stand-in like the tests' fake server
+    private String mRootUrl = CMLEClient.DEFAULT_ROOT_URL;
 
     // project path string related to project id and model name
     private String mProjectPath;
 
-    public CMLEHandler(Activity activity, ImageView imageView) {
+    // samples request/response pairs into a log for offline replay
+    private volatile RequestRecorder mRequestRecorder;
+
+    // results of recent captures, shown at once for a near-duplicate capture
+    private final CaptureIndex mCaptureIndex = new CaptureIndex();
+
+    // color tables learned per style, applied to the capture while a request is in flight
+    private final StyleLuts mStyleLuts;
+
+    // JPEG payload of the current capture, shared by all its requests
+    private final CaptureEncoder mCaptureEncoder = new CaptureEncoder();
+
+    // stages from the captured bitmap to the rendered result
+    private final Pipeline<StyleRequest> mPipeline;
+
+    // requests submitted to the pipeline and not finished yet, ids double as trace cookies
+    private final Set<StyleRequest> mInFlightRequests = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger mNextRequestId = new AtomicInteger();
+    // style of the newest request, the one the user is looking at
+    private volatile int mSelectedStyle = -1;
+    // id of the newest request rendered per style, only touched by the single render stage thread
+    private final SparseIntArray mLatestRenderedIds = new SparseIntArray();
+    // results not shown because a later one for the same style was, or the style was left
+    private final AtomicLong mSuperseded = new AtomicLong();
+
+    // warm-up runs once per handler, the first real request is logged to compare with and without
+    private final AtomicBoolean mWarmUpStarted = new AtomicBoolean();
+    private volatile long mWarmUpMs = -1;
+    private final AtomicBoolean mFirstRequestSent = new AtomicBoolean();
+
+    public CMLEHandler(Context context) {
+        mContext = context.getApplicationContext();
+        mStyleLuts = new StyleLuts(mContext.getFilesDir());
+
+        mPipeline = new Pipeline<>(this::onRequestFinished)
+                .addStage(STAGE_PREPROCESS, 1, STAGE_QUEUE_CAPACITY, this::preprocess)
+                .addStage(STAGE_ENCODE, 1, STAGE_QUEUE_CAPACITY, this::encode)
+                .addStage(STAGE_TRANSPORT, TRANSPORT_PARALLELISM, STAGE_QUEUE_CAPACITY,
+                        this::transport)
+                .addStage(STAGE_DECODE, 1, STAGE_QUEUE_CAPACITY, this::decode)
+                .addStage(STAGE_COMPOSITE, 1, STAGE_QUEUE_CAPACITY, this::composite)
+                .addStage(STAGE_RENDER, 1, STAGE_QUEUE_CAPACITY, this::render);
+        mPipeline.start();
+    }
+
+    // stops the pipeline, requests still in it are dropped
+    public void shutdown() {
+        Log.d(TAG, "pipeline:\n" + mPipeline);
+        mPipeline.shutdown();
+        mCaptureEncoder.shutdown();
+        mStyleLuts.shutdown();
+        RequestRecorder requestRecorder = mRequestRecorder;
+        if (requestRecorder != null) {
+            requestRecorder.shutdown();
+        }
+        Log.d(TAG, "capture encoder: " + mCaptureEncoder);
+        Log.d(TAG, "requests finished after pause: kept " + mKeptAfterPause.get()
+                + ", wasted " + mWastedAfterPause.get() + "; superseded " + mSuperseded.get());
+    }
+
+    // show results in the given view from now on, starting with the last one if any
+    public void attach(Activity activity, ImageView imageView) {
         mCurrentActivity = activity;
         mImageView = imageView;
+        final Bitmap result = mResultBitmap;
+        if (result != null) {
+            activity.runOnUiThread(() -> {
+                if (mImageView == imageView && mResultBitmap == result) {
+                    imageView.setVisibility(View.VISIBLE);
+                    imageView.setAlpha(1.0f);
+                    imageView.setImageBitmap(result);
+                }
+            });
+        }
+    }
+
+    // stop touching the views of the activity, e.g. because it is being recreated
+    public void detach() {
+        mCurrentActivity = null;
+        mImageView = null;
+        mCameraHandler = null;
+    }
+
+    public void setResultListener(ResultListener resultListener) {
+        mResultListener = resultListener;
+    }
+
+    // make a result from a previous session the current one, unless there already is one,
+    // and show it right away if attached
+    public void restoreResult(Bitmap result) {
+        if (mResultBitmap != null || result == null) {
+            return;
+        }
+        mResultBitmap = result;
+        Activity activity = mCurrentActivity;
+        ImageView imageView = mImageView;
+        if (activity != null && imageView != null) {
+            attach(activity, imageView);
+        }
+    }
+
+    public void setPaused(boolean paused) {
+        mPaused = paused;
+    }
+
+    public long getWastedAfterPauseCount() {
+        return mWastedAfterPause.get();
+    }
+
+    public long getSupersededCount() {
+        return mSuperseded.get();
+    }
+
+    // prints the live state of the pipeline, the routing and the requests in flight
+    public void dumpState(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("pipeline:");
+        printIndented(prefix + "  ", String.valueOf(mPipeline), writer);
+        ModelRouter modelRouter = mModelRouter;
+        if (modelRouter != null) {
+            writer.print(prefix);
+            writer.println("routing:");
+            printIndented(prefix + "  ", modelRouter.toString(), writer);
+        }
+        for (CMLEClient client : mCMLEClients) {
+            writer.print(prefix);
+            writer.println("request compression of " + client.getModelPath() + ":");
+            printIndented(prefix + "  ", String.valueOf(client.getCompressionStats()), writer);
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        writer.print(prefix);
+        writer.println("in-flight requests: " + mInFlightRequests.size());
+        for (StyleRequest request : mInFlightRequests) {
+            writer.print(prefix);
+            writer.println("  #" + request.mId + " " + request.mTask.getName()
+                    + " style=" + request.mStyle + " stage=" + request.mStage
+                    + " age=" + (nowMs - request.mStartMs) + "ms"
+                    + (request.mTask.isCancelled() ? " cancelled" : ""));
+        }
+        writer.print(prefix);
+        writer.println("paused=" + mPaused + " keptAfterPause=" + mKeptAfterPause.get()
+                + " wastedAfterPause=" + mWastedAfterPause.get()
+                + " superseded=" + mSuperseded.get()
+                + " resultBytes=" + getSizeBytes() + " warmUpMs=" + mWarmUpMs);
+        writer.print(prefix);
+        writer.println("capture encoder: " + mCaptureEncoder);
+        writer.print(prefix);
+        writer.println("capture index: " + mCaptureIndex);
+        writer.print(prefix);
+        writer.println("style LUTs: " + mStyleLuts);
+        RequestRecorder requestRecorder = mRequestRecorder;
+        if (requestRecorder != null) {
+            writer.print(prefix);
+            writer.println("recorder dropped records: " + requestRecorder.getDroppedRecords());
+        }
+    }
+
+    // prints the lines of a multi-line toString() under the given prefix
+    static void printIndented(String prefix, String text, PrintWriter writer) {
+        for (String line : text.split("\n")) {
+            writer.print(prefix);
+            writer.println(line);
+        }
+    }
+
+    // make an earlier result the current one without waiting for the render stage
+    private void showResult(final Bitmap result) {
+        mResultBitmap = result;
+        runOnUiThread(() -> {
+            ImageView imageView = mImageView;
+            if (imageView != null && mResultBitmap == result) {
+                imageView.setVisibility(View.VISIBLE);
+                imageView.setAlpha(1.0f);
+                imageView.setImageBitmap(result);
+            }
+        });
+    }
+
+    private void runOnUiThread(Runnable runnable) {
+        Activity activity = mCurrentActivity;
+        if (activity != null) {
+            activity.runOnUiThread(runnable);
+        }
+    }
+
+    // to be told about every capture, and given memory to manage
+    public CaptureIndex getCaptureIndex() {
+        return mCaptureIndex;
+    }
+
+    // to be told about every capture, so its payload is ready when a style is picked
+    public CaptureEncoder getCaptureEncoder() {
+        return mCaptureEncoder;
     }
 
     public void setCameraHandler(CameraHandler cameraHandler) {
         mCameraHandler = cameraHandler;
     }
 
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public int getTier() {
+        return MemoryGovernor.TIER_ACTIVE;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        Bitmap result = mResultBitmap;
+        return result == null ? 0 : result.getAllocationByteCount();
+    }
+
+    @Override
+    public void trimToSize(long maxBytes) {
+        if (maxBytes >= getSizeBytes()) {
+            return;
+        }
+        // the result is on screen, so detach it from the view before letting it go
+        mResultBitmap = null;
+        runOnUiThread(() -> {
+            ImageView imageView = mImageView;
+            if (imageView != null && mResultBitmap == null) {
+                imageView.setImageDrawable(null);
+                imageView.setVisibility(View.INVISIBLE);
+            }
+        });
+    }
+
     // authenticate the service account associated with the CMLE project/model
     public void getCMLECredentials() {
         Log.d(TAG, "getCMLECredentials");
 
         // get application default credentials from service account json
-        int credentialId = mCurrentActivity.getResources().getIdentifier(
-                SERVICE_ACCOUNT_JSON_FILE, "raw", mCurrentActivity.getPackageName());
-        InputStream jsonCredentials = mCurrentActivity.getResources().openRawResource(credentialId);
+        int credentialId = mContext.getResources().getIdentifier(
+                SERVICE_ACCOUNT_JSON_FILE, "raw", mContext.getPackageName());
+        InputStream jsonCredentials = mContext.getResources().openRawResource(credentialId);
         try {
             mCredentials = GoogleCredential.fromStream(jsonCredentials).createScoped(
                     Collections.singleton(CloudMachineLearningEngineScopes.CLOUD_PLATFORM));
@@ -136,97 +453,380 @@ public class CMLEHandler {
         }
     }
 
+    // must be called before setupCMLERequest to take effect
+    public void setRootUrl(String rootUrl) {
+        mRootUrl = rootUrl;
+    }
+
     /**
      * Set up the following associated with Cloud Machine Learning Engine request
      * String project path
-     * {@link GoogleCloudMlV1PredictRequest}
-     * {@link CloudMachineLearningEngine}
+     * {@link CMLEClient} for the default version and each of {@link #MODEL_VERSIONS}
+     * {@link ModelRouter} over those clients
      */
     public void setupCMLERequest() {
         Log.d(TAG, "setupCMLERequest");
         // set project path
         mProjectPath = String.format("projects/%s/models/%s", PROJECT_ID, MODEL_NAME);
 
-        // instantiate predict request
-        mRequestJson = new GoogleCloudMlV1PredictRequest();
-
-        // Set up the HTTP transport and JSON factory
+        // Set up the HTTP transport
         final HttpTransport httpTransport = new ApacheHttpTransport();
         //AndroidHttp.newCompatibleTransport();
-        final JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
 
-        // instantiate CloudMachineLearningEngine instance
-        mCloudMachineLearningEngine = new CloudMachineLearningEngine.Builder(
-                httpTransport,
-                jsonFactory,
-                mCredentials)
-                .setApplicationName(mCurrentActivity.getPackageName())
-                .build();
+        // instantiate CMLEClient instances
+        List<CMLEClient> clients = new ArrayList<>();
+        clients.add(createCMLEClient(httpTransport, mProjectPath));
+        for (String version : MODEL_VERSIONS) {
+            clients.add(createCMLEClient(httpTransport, mProjectPath + "/versions/" + version));
+        }
+        mCMLEClients = Collections.unmodifiableList(clients);
+        mModelRouter = new ModelRouter(clients);
+
+        RequestRecorder previousRecorder = mRequestRecorder;
+        mRequestRecorder = new RequestRecorder(mContext.getFilesDir(),
+                DEBUG ? 1f : RECORD_SAMPLE_RATE);
+        if (previousRecorder != null) {
+            previousRecorder.shutdown();
+        }
     }
 
-    // set up parameters for CMLE request
-    private void setRequestInputParameters(Bitmap bitmap, int style_index) {
-        // encode bitmap to string
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, byteArrayOutputStream);
-        byte[] byteArray = byteArrayOutputStream.toByteArray();
-        String encodedByteArrayString = Base64.encodeToString(byteArray, Base64.DEFAULT);
+    private CMLEClient createCMLEClient(HttpTransport httpTransport, String modelPath) {
+        CMLEClient client = new CMLEClient(
+                httpTransport,
+                mCredentials,
+                mContext.getPackageName(),
+                mRootUrl,
+                modelPath);
+        client.setGzipEnabled(GZIP_REQUESTS);
+        return client;
+    }
 
-        // set style to mStyleVals weight array
-        // Image style could be selected as an array of intensities from multiple existing source
-        // styles but their sum need to add up to 1. In this case for simplicity we're only picking
-        // one style so we just set its corresponding intensity to 1 while others to 0.
-        for (int i = 0; i < NUM_RAW_STYLES; i++) {
-            mStyleVals[i] = i == style_index ? 1.00f : 0.0f;
+    /**
+     * Sends a tiny blank image to every model target in the background, so DNS, TCP and TLS
+     * setup, the OAuth token and the model version's cold start are not paid by the first
+     * tap. Only the first call per handler does anything; must come after setupCMLERequest.
+     */
+    public void warmUp(InferenceScheduler scheduler) {
+        if (!WARM_UP_ON_START || !mWarmUpStarted.compareAndSet(false, true)) {
+            return;
         }
+        InferenceScheduler.Task task = scheduler.submit(InferenceScheduler.PRIORITY_BACKGROUND,
+                "warmUp", this::sendWarmUpRequests);
+        if (task == null) {
+            Log.d(TAG, "Warm-up rejected by the scheduler.");
+            mWarmUpStarted.set(false);
+        }
+    }
 
-        // set input image pixel bytes and weights
-        PixelStyleJSON imageStylePixels = new PixelStyleJSON();
-        imageStylePixels.setImageBytesAndWeights(encodedByteArrayString, mStyleVals);
-
-        // set instances input
-        mRequestJson.set(INSTANCES, imageStylePixels.objectifyImageStylePixels());
+    private void sendWarmUpRequests(InferenceScheduler.Task task) {
+        Tracing.begin("warmUp");
+        try {
+            Bitmap blank = Bitmap.createBitmap(SENTINEL_SIZE, SENTINEL_SIZE,
+                    Bitmap.Config.ARGB_8888);
+            byte[] jpegBytes = StreamingPredictContent.encodeJpeg(blank);
+            blank.recycle();
+            long startMs = SystemClock.elapsedRealtime();
+            // each target directly, the router would count their cold starts against them
+            for (CMLEClient client : mCMLEClients) {
+                if (task.isCancelled()) {
+                    return;
+                }
+                long ms = ConnectionWarmer.warmUp(client, new StreamingPredictContent(jpegBytes,
+                        PixelStyleJSON.buildStyleWeights(0)));
+                Log.d(TAG, "warm-up of " + client.getModelPath()
+                        + (ms < 0 ? " failed" : " took " + ms + "ms"));
+            }
+            mWarmUpMs = SystemClock.elapsedRealtime() - startMs;
+        } finally {
+            Tracing.end();
+        }
+    }
 
+    // Use the {@link CMLEClient} to send a predict request to apply styles,
+    // and then process its response to decode stylized bitmap.
+    // Run by the {@link InferenceScheduler}, blocks until the request has left the pipeline
+    // so the scheduler's in-flight limit holds. Once the task is cancelled, e.g. preempted by
+    // a tap, it returns at once and frees its slot; the stages drop the request as soon as
+    // they get to it, a response that is already on its way is thrown away.
+    public void sendRequestToCMLE(int style, InferenceScheduler.Task task) {
+        Log.d(TAG, "sendStylizedRequestToCMLE: " + style);
+        StyleRequest request = new StyleRequest(mNextRequestId.incrementAndGet(), style, task);
+        mSelectedStyle = style;
+        Tracing.beginAsync(TRACE_REQUEST, request.mId);
+        mInFlightRequests.add(request);
+        boolean submitted = false;
+        try {
+            submitted = mPipeline.submit(request);
+            if (submitted) {
+                task.setCancelListener(request.mDone::countDown);
+                request.mDone.await();
+            }
+        } catch (InterruptedException e) {
+            task.cancel();
+        }
+        if (!submitted) {
+            // never entered the pipeline, so it is not finished by it either
+            Log.d(TAG, "Request " + task.getName() + " not submitted to the pipeline.");
+            mInFlightRequests.remove(request);
+            Tracing.endAsync(TRACE_REQUEST, request.mId);
+        }
         if (DEBUG) {
-            Log.d(TAG, "mRequestJson: " + " : " + mRequestJson);
-            writeToFile(mRequestJson.toString());
+            Log.d(TAG, "pipeline:\n" + mPipeline);
         }
     }
 
-    // Use {@create a {@link CloudMachineLearningEngine} object to create a
-    // CloudMachineLearningEngine.Projects.Predict} instance, call its execute()
-    // to apply styles, and then process its response to decode stylized bitmap
-    public void sendRequestToCMLE(int style) {
-        Bitmap bitmap = mCameraHandler.getCroppedBitmap();
-        if (mCameraHandler == null || bitmap == null) {
+    // take the current capture as the source of the request
+    private boolean preprocess(StyleRequest request) {
+        request.mStage = STAGE_PREPROCESS;
+        if (request.mTask.isCancelled()) {
+            return false;
+        }
+        CameraHandler cameraHandler = mCameraHandler;
+        request.mSourceBitmap = cameraHandler == null ? null : cameraHandler.getCroppedBitmap();
+        if (request.mSourceBitmap == null) {
             Log.d(TAG, "Source bitmap is null.");
-            return;
+            return false;
         }
-        Log.d(TAG, "sendStylizedRequestToCMLE: " + style);
+        if (GUIDED_UPSAMPLING) {
+            request.mGuideBitmap = cameraHandler.getGuideBitmap(request.mSourceBitmap);
+        }
+        long shutterLatencyMs = cameraHandler.consumeShutterLatencyMs();
+        if (shutterLatencyMs >= 0) {
+            Log.d(TAG, "shutter to first request time: " + shutterLatencyMs);
+        }
+        // the same scene with this style before: show that now, the request refreshes it.
+        // Otherwise the capture in the style's learned colors, if there are any yet
+        request.mPlaceholder = mCaptureIndex.findResult(request.mSourceBitmap, request.mStyle);
+        if (request.mPlaceholder == null) {
+            Tracing.begin("placeholder");
+            try {
+                request.mPlaceholder = mStyleLuts.placeholder(request.mStyle,
+                        request.mSourceBitmap);
+            } finally {
+                Tracing.end();
+            }
+        }
+        if (request.mPlaceholder != null) {
+            showResult(request.mPlaceholder);
+        }
+        return true;
+    }
 
-        setRequestInputParameters(bitmap, style);
-        GoogleApiHttpBody response = null;
-        mRequestStartMs = SystemClock.elapsedRealtime();
+    // set up the body of a CMLE request, only its base64 encoding is left to the transport
+    private boolean encode(StyleRequest request) throws InterruptedException {
+        request.mStage = STAGE_ENCODE;
+        Tracing.begin("encode");
         try {
-            CloudMachineLearningEngine.Projects.Predict predict =
-                    mCloudMachineLearningEngine.projects().predict(mProjectPath, mRequestJson);
-            response = predict.execute();
+            // usually encoded by the capture encoder already
+            byte[] jpegBytes = mCaptureEncoder.get(request.mSourceBitmap);
+            if (jpegBytes == null) {
+                jpegBytes = StreamingPredictContent.encodeJpeg(request.mSourceBitmap);
+            }
+            request.mContent = new StreamingPredictContent(jpegBytes,
+                    PixelStyleJSON.buildStyleWeights(request.mStyle));
+        } finally {
+            Tracing.end();
+        }
 
-            mRequestEndMs = SystemClock.elapsedRealtime();
-            long lapseMs = mRequestEndMs - mRequestStartMs;
+        if (DEBUG) {
+            writeToFile(request.mContent);
+        }
+        return !request.mTask.isCancelled();
+    }
 
-            Log.d(TAG, "response time: " + lapseMs);
+    private boolean transport(StyleRequest request) {
+        request.mStage = STAGE_TRANSPORT;
+        if (request.mTask.isCancelled()) {
+            Log.d(TAG, "Request cancelled before sending: " + request.mTask.getName());
+            return false;
+        }
+        List<CMLEClient> clients = mCMLEClients;
+        ModelRouter modelRouter = mModelRouter;
+        // shared by every request on the same network, only used to bucket the stats
+        String networkType = getNetworkType();
+        for (CMLEClient client : clients) {
+            client.setNetworkType(networkType);
+        }
+        request.mTarget = modelRouter.select();
+        int status = 0;
+        long startWallClockMs = System.currentTimeMillis();
+        long requestStartMs = SystemClock.elapsedRealtime();
+        // the request body is base64 encoded while it streams, so that is part of this section
+        Tracing.begin("predict");
+        try {
+            request.mResponse = modelRouter.predict(request.mTarget, request.mContent);
+            status = HttpStatusCodes.STATUS_CODE_OK;
+            long responseMs = SystemClock.elapsedRealtime() - requestStartMs;
+            Log.d(TAG, "response time: " + responseMs);
+            if (mFirstRequestSent.compareAndSet(false, true)) {
+                Log.d(TAG, "first request response time: " + responseMs + ", " + (mWarmUpMs < 0
+                        ? "not warmed up" : "after a warm-up of " + mWarmUpMs + "ms"));
+            }
+        } catch (HttpResponseException e) {
+            status = e.getStatusCode();
+            Log.d(TAG, "predict execution http error: " + e);
         } catch (java.io.IOException io) {
             Log.d(TAG, "predict execution i/o error: " + io);
+        } finally {
+            Tracing.end();
         }
+        long requestEndMs = SystemClock.elapsedRealtime();
 
-        if (response != null) {
-            overlayImageViewByStylizedBitmap(
-                    decodeStylizedBitmapFromResponse(response),
-                    bitmap);
-        } else {
+        if (DEBUG) {
+            for (CMLEClient client : clients) {
+                Log.d(TAG, "request compression of " + client.getModelPath() + ":\n"
+                        + client.getCompressionStats());
+            }
+            Log.d(TAG, "routing:\n" + modelRouter);
+        }
+
+        if (mRequestRecorder.shouldRecord()) {
+            mRequestRecorder.record(request.mTarget.getModelPath(), request.mStyle,
+                    request.mContent, startWallClockMs, requestEndMs - requestStartMs, status,
+                    request.mResponse == null ? null : request.mResponse.toString());
+        }
+
+        if (request.mResponse == null) {
             Log.d(TAG, "Response body from CMLE is null.");
+            return false;
+        }
+        if (request.mTask.isCancelled()) {
+            // a more important request took over, do not overwrite its result
+            Log.d(TAG, "Request cancelled after response: " + request.mTask.getName());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean decode(StyleRequest request) {
+        request.mStage = STAGE_DECODE;
+        Tracing.begin("parse");
+        try {
+            request.mStylizedBitmap = decodeStylizedBitmapFromResponse(request.mResponse);
+        } finally {
+            Tracing.end();
+        }
+        request.mResponse = null;
+        return request.mStylizedBitmap != null && !request.mTask.isCancelled();
+    }
+
+    // Overlay stylized bitmap onto the original captured source bitmap
+    private boolean composite(StyleRequest request) {
+        request.mStage = STAGE_COMPOSITE;
+        Tracing.begin("blend");
+        try {
+            request.mBlendedBitmap = request.mGuideBitmap == null
+                    ? blendBitmaps(request.mStylizedBitmap, request.mSourceBitmap)
+                    : upsampleAndBlendBitmaps(request.mStylizedBitmap, request.mGuideBitmap);
+        } finally {
+            Tracing.end();
+        }
+        // only the blended bitmap is kept around
+        request.mStylizedBitmap.recycle();
+        request.mStylizedBitmap = null;
+        return !request.mTask.isCancelled();
+    }
+
+    // render the blended bitmap to the image view, waiting for the UI thread to do so.
+    // While detached the result is only kept, {@link #attach} shows it later.
+    private boolean render(StyleRequest request) throws InterruptedException {
+        request.mStage = STAGE_RENDER;
+        // transports run in parallel and may finish out of order, an older result must not
+        // replace the one of a later tap on the same style
+        if (request.mId < mLatestRenderedIds.get(request.mStyle)) {
+            Log.d(TAG, "Request superseded before rendering: " + request.mTask.getName());
+            mSuperseded.incrementAndGet();
+            return false;
+        }
+        mLatestRenderedIds.put(request.mStyle, request.mId);
+        mCaptureIndex.putResult(request.mSourceBitmap, request.mStyle, request.mBlendedBitmap);
+        mStyleLuts.learnAsync(request.mStyle, request.mSourceBitmap, request.mBlendedBitmap);
+        // the user tapped another style since, keep the result for when they come back to it
+        if (request.mStyle != mSelectedStyle) {
+            Log.d(TAG, "Style left before rendering: " + request.mTask.getName());
+            mSuperseded.incrementAndGet();
+            request.mBlendedBitmap = null;
+            return true;
+        }
+        final Bitmap blended = request.mBlendedBitmap;
+        request.mBlendedBitmap = null;
+        // fade in only over this request's own placeholder, not over another result
+        final Bitmap placeholder = mResultBitmap == request.mPlaceholder
+                ? request.mPlaceholder : null;
+        mResultBitmap = blended;
+        MemoryGovernor.getInstance(mContext).enforceBudget();
+        ResultListener resultListener = mResultListener;
+        if (resultListener != null) {
+            resultListener.onResult(request.mStyle, request.mSourceBitmap, blended);
+        }
+        Activity activity = mCurrentActivity;
+        if (activity == null) {
+            return true;
+        }
+        final CountDownLatch rendered = new CountDownLatch(1);
+        activity.runOnUiThread(() -> {
+            ImageView imageView = mImageView;
+            if (imageView != null && mResultBitmap == blended) {
+                imageView.setVisibility(View.VISIBLE);
+                imageView.setAlpha(1.0f);
+                if (placeholder == null) {
+                    imageView.setImageBitmap(blended);
+                } else {
+                    TransitionDrawable crossfade = new TransitionDrawable(new Drawable[] {
+                            new BitmapDrawable(imageView.getResources(), placeholder),
+                            new BitmapDrawable(imageView.getResources(), blended)});
+                    crossfade.setCrossFadeEnabled(true);
+                    imageView.setImageDrawable(crossfade);
+                    crossfade.startTransition(CROSSFADE_MS);
+                }
+            }
+            rendered.countDown();
+        });
+        rendered.await(RENDER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    // send a request outside the pipeline, e.g. a batch of previews, routed like the others
+    public GoogleApiHttpBody predict(HttpContent content) throws IOException {
+        return mModelRouter.predict(content);
+    }
+
+    // called by the pipeline once a request is done with, rendered or not
+    private void onRequestFinished(StyleRequest request, String stage, Throwable error) {
+        if (stage != null) {
+            if (error == null) {
+                Log.d(TAG, "Request " + request.mTask.getName() + " dropped at " + stage);
+            } else {
+                Log.e(TAG, "Request " + request.mTask.getName() + " failed at " + stage, error);
+            }
         }
+        if (request.mStylizedBitmap != null) {
+            request.mStylizedBitmap.recycle();
+            request.mStylizedBitmap = null;
+        }
+        if (request.mBlendedBitmap != null) {
+            request.mBlendedBitmap.recycle();
+            request.mBlendedBitmap = null;
+        }
+        if (mPaused) {
+            (stage == null ? mKeptAfterPause : mWastedAfterPause).incrementAndGet();
+        }
+        mInFlightRequests.remove(request);
+        Tracing.endAsync(TRACE_REQUEST, request.mId);
+        request.mDone.countDown();
+    }
+
+    // type of the active network, used to tell apart request stats e.g. of wifi and mobile
+    private String getNetworkType() {
+        ConnectivityManager connectivityManager = (ConnectivityManager)
+                mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null) {
+            return "none";
+        }
+        String subtype = networkInfo.getSubtypeName();
+        return subtype == null || subtype.isEmpty()
+                ? networkInfo.getTypeName() : networkInfo.getTypeName() + "-" + subtype;
     }
 
     /*
@@ -262,37 +862,53 @@ public class CMLEHandler {
         }
     }
 
-    // Overlay stylized bitmap onto the original captured source bitmap and render to image view
-    private void overlayImageViewByStylizedBitmap(Bitmap styledBitmap, Bitmap sourceBitmap) {
-        Bitmap blended = blendBitmaps(styledBitmap, sourceBitmap);
-        mCurrentActivity.runOnUiThread(() -> {
-            if (styledBitmap != null) {
-                if (mImageView != null) {
-                    mImageView.setVisibility(View.VISIBLE);
-                    mImageView.setAlpha(1.0f);
-                    mImageView.setImageBitmap(blended);
-                }
-            }
-        });
-    }
-
     /**
      * @param stylized The styled image to use as the base
      * @param original The original image, to overlay at 50% opacity.
      * @return
      */
     public static Bitmap blendBitmaps(Bitmap stylized, Bitmap original) {
-        Bitmap blended = Bitmap.createBitmap(stylized.getWidth(), stylized.getHeight(), stylized.getConfig());
-        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-        paint.setAlpha(BLEND_ALPHA);
-        Canvas canvas = new Canvas(blended);
-        canvas.drawBitmap(stylized, new Matrix(), null);
-        canvas.drawBitmap(original, new Matrix(), paint);
-        return blended;
+        int width = original.getWidth();
+        int height = original.getHeight();
+        int[] stylizedPixels = new int[stylized.getWidth() * stylized.getHeight()];
+        stylized.getPixels(stylizedPixels, 0, stylized.getWidth(), 0, 0,
+                stylized.getWidth(), stylized.getHeight());
+        int[] pixels = new int[width * height];
+        original.getPixels(pixels, 0, width, 0, 0, width, height);
+
+        // scale the stylized bitmap to the original and blend the original over it in one pass,
+        // writing back into the original's pixels
+        PixelKernel kernel = new PixelKernel(width, height);
+        kernel.setCrop(0, 0, stylized.getWidth(), stylized.getHeight());
+        kernel.setOverlay(pixels, BLEND_ALPHA);
+        kernel.run(stylizedPixels, stylized.getWidth(), stylized.getHeight(), pixels);
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Like {@link #blendBitmaps}, but at the resolution of the guide, a larger crop of the same
+     * capture: the stylized image is lifted to it with a {@link GuidedUpsampler}, which keeps
+     * the capture's edges, and the guide is blended over it in the same pass.
+     */
+    public static Bitmap upsampleAndBlendBitmaps(Bitmap stylized, Bitmap guide) {
+        int width = guide.getWidth();
+        int height = guide.getHeight();
+        int[] stylizedPixels = new int[stylized.getWidth() * stylized.getHeight()];
+        stylized.getPixels(stylizedPixels, 0, stylized.getWidth(), 0, 0,
+                stylized.getWidth(), stylized.getHeight());
+        int[] guidePixels = new int[width * height];
+        guide.getPixels(guidePixels, 0, width, 0, 0, width, height);
+
+        GuidedUpsampler upsampler = new GuidedUpsampler();
+        upsampler.setOverlayAlpha(BLEND_ALPHA);
+        // writing back into the guide's pixels
+        upsampler.run(stylizedPixels, stylized.getWidth(), stylized.getHeight(), guidePixels,
+                width, height, guidePixels);
+        return Bitmap.createBitmap(guidePixels, width, height, Bitmap.Config.ARGB_8888);
     }
 
     // Used to save e.g. request CMLE JSON into file for debugging
-    private void writeToFile(String data) {
+    private void writeToFile(HttpContent data) {
         try {
             File sdCard = Environment.getExternalStorageDirectory();
             File dir = new File(sdCard.getAbsolutePath() + "/");
@@ -300,7 +916,7 @@ public class CMLEHandler {
             Log.d(TAG, "current dir path: " + file.toString());
             FileOutputStream stream = new FileOutputStream(file);
             try {
-                stream.write(data.getBytes());
+                data.writeTo(stream);
             } finally {
                 stream.close();
             }
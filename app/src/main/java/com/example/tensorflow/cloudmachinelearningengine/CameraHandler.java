@@ -19,26 +19,26 @@ package com.example.tensorflow.cloudmachinelearningengine;
 import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
@@ -50,14 +50,18 @@ import android.widget.ImageView;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
-public class CameraHandler {
+public class CameraHandler implements MemoryGovernor.MemoryConsumer {
 
     /**
      * Tag for the {@link Log}.
@@ -77,8 +81,12 @@ public class CameraHandler {
         ORIENTATIONS.append(Surface.ROTATION_270, 180);
     }
 
-    // image reader max images
-    private static final int MAX_IMAGES = 1;
+    // image reader max images, more than one so rapid taps do not stall the reader
+    private static final int MAX_IMAGES = 2;
+
+    // zero-shutter-lag: number of preview frames kept and max images of their reader
+    private static final int ZSL_BUFFER_SIZE = 4;
+    private static final int ZSL_MAX_IMAGES = 3;
 
     // camera open timeout in miliseconds
     private static final int CAMERA_OPEN_TIMEOUT = 5000;
@@ -88,6 +96,9 @@ public class CameraHandler {
     private static final int IMAGE_WIDTH = 250;
     private static final int IMAGE_HEIGHT = 250;
 
+    // side of the larger crop of the same region the result is lifted to, about 2MP; 0 for none
+    private static final int GUIDE_SIZE = 1440;
+
     /**
      * Camera state: Showing camera preview.
      */
@@ -120,9 +131,16 @@ public class CameraHandler {
     private String mCameraId;
 
     /**
-     * A list of camera Ids available.
+     * Cached capabilities of the cameras available.
      */
-    private List<String> mCameraIds = new ArrayList<>();
+    private CameraRegistry mCameraRegistry;
+
+    // size of the view the camera was last opened for
+    private int mViewWidth;
+    private int mViewHeight;
+
+    // start of an in-flight camera switch, or 0; cleared by the first preview frame after it
+    private volatile long mSwitchStartMs;
 
     /**
      * A {@link CameraCaptureSession } for camera preview.
@@ -139,6 +157,15 @@ public class CameraHandler {
      */
     private Size mPreviewSize;
 
+    // the previous policy, taking the first (usually largest) size regardless of the view;
+    // switch on to compare frame timings
+    private static final boolean USE_LARGEST_PREVIEW_SIZE = false;
+
+    // preview frame intervals, logged and reset every FRAME_STATS_INTERVAL frames
+    private static final int FRAME_STATS_INTERVAL = 300;
+    private final LatencyStats mFrameIntervalUs = new LatencyStats();
+    private long mLastFrameTimestampNs;
+
     /**
      * UI components
      */
@@ -151,10 +178,35 @@ public class CameraHandler {
      */
     private AutoFitTextureView mTextureView;
 
-    // source bitmap captured by camera
-    private Bitmap mCapturedBitmap;
     // cropped bitmap for displaying and sending to CMLE
-    private Bitmap mCroppedBitmap;
+    private volatile Bitmap mCroppedBitmap;
+    // the same crop at up to GUIDE_SIZE, for upsampling the result, null if there is none
+    private volatile Bitmap mGuideBitmap;
+
+    /**
+     * Zero-shutter-lag capture: recent preview frames at model resolution are kept in a ring
+     * buffer and a tap picks one of them instead of running the still capture sequence.
+     */
+    private boolean mZslEnabled = true;
+    private final ZslRingBuffer mZslRingBuffer = new ZslRingBuffer(ZSL_BUFFER_SIZE);
+    private ImageReader mZslImageReader;
+    private Size mZslSize;
+
+    // preview output surface, kept for as long as the texture it was made from
+    private Surface mPreviewSurface;
+    private SurfaceTexture mPreviewSurfaceTexture;
+
+    // time of the last shutter tap which has not been followed by a CMLE request yet, or 0
+    private volatile long mShutterTimeMs;
+
+    /**
+     * Told about every new cropped capture, on the thread that produced it.
+     */
+    public interface OnCaptureListener {
+        void onCapture(Bitmap croppedBitmap);
+    }
+
+    private final List<OnCaptureListener> mOnCaptureListeners = new CopyOnWriteArrayList<>();
 
     public CameraHandler(Context context, ImageView view, AutoFitTextureView autoTextureView) {
         mCurrentActivity = (Activity) context;
@@ -163,6 +215,71 @@ public class CameraHandler {
     }
 
     public Bitmap getCroppedBitmap() { return mCroppedBitmap; }
+
+    // the larger crop of the given capture, null if there is none or it is no longer current
+    public synchronized Bitmap getGuideBitmap(Bitmap croppedBitmap) {
+        return croppedBitmap == mCroppedBitmap ? mGuideBitmap : null;
+    }
+
+    // prints the camera configuration and the preview frame timing since the last reset
+    public void dumpState(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("camera=" + mCameraId + " preview=" + mPreviewSize + " zsl=" + mZslEnabled
+                + " zslSize=" + mZslSize + " zslBytes=" + mZslRingBuffer.getSizeBytes()
+                + " hasCapture=" + (mCroppedBitmap != null)
+                + " guide=" + (mGuideBitmap == null ? "none"
+                        : mGuideBitmap.getWidth() + "x" + mGuideBitmap.getHeight()));
+        writer.print(prefix);
+        writer.println("frame interval us: " + mFrameIntervalUs);
+    }
+
+    public ZslRingBuffer getZslRingBuffer() { return mZslRingBuffer; }
+
+    public void setZslEnabled(boolean enabled) { mZslEnabled = enabled; }
+
+    public void addOnCaptureListener(OnCaptureListener listener) { mOnCaptureListeners.add(listener); }
+
+    public void removeOnCaptureListener(OnCaptureListener listener) { mOnCaptureListeners.remove(listener); }
+
+    /**
+     * @return milliseconds since the shutter tap if no request has been sent for it yet, else -1.
+     * Only the first caller after a tap gets the latency.
+     */
+    public long consumeShutterLatencyMs() {
+        long shutterTimeMs = mShutterTimeMs;
+        mShutterTimeMs = 0;
+        return shutterTimeMs == 0 ? -1 : SystemClock.elapsedRealtime() - shutterTimeMs;
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public int getTier() {
+        return MemoryGovernor.TIER_ACTIVE;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        Bitmap cropped = mCroppedBitmap;
+        Bitmap guide = mGuideBitmap;
+        return (cropped == null ? 0 : cropped.getAllocationByteCount())
+                + (guide == null ? 0 : guide.getAllocationByteCount());
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        // without the guide results stay at model resolution
+        if (maxBytes < getSizeBytes()) {
+            mGuideBitmap = null;
+        }
+        // the user has to capture again once the crop is dropped
+        if (maxBytes < getSizeBytes()) {
+            mCroppedBitmap = null;
+        }
+    }
     /**
      * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
      */
@@ -243,29 +360,106 @@ public class CameraHandler {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
+            Tracing.begin("imageAvailable");
+            try {
+                Image image = reader.acquireLatestImage();
+
+                // the full resolution capture is only needed to produce the crop, so let the
+                // JPEG decoder drop what the crop would not use anyway
+                Tracing.begin("decode");
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = calculateInSampleSize(
+                        Math.min(image.getWidth(), image.getHeight()),
+                        Math.max(2 * Math.max(IMAGE_WIDTH, IMAGE_HEIGHT), GUIDE_SIZE));
+                ByteBuffer bb = image.getPlanes()[0].getBuffer();
+                Bitmap decodedBitmap = BitmapFactory.decodeStream(
+                        new ByteBufferBackedInputStream(bb), null, options);
+                image.close();
+                Tracing.end();
+
+                Tracing.begin("flipAndCrop");
+                Bitmap[] crops = flipAndCropBitmaps(decodedBitmap, 0);
+                decodedBitmap.recycle();
+                Tracing.end();
+                publishCroppedBitmap(crops[0], crops[1]);
+            } finally {
+                Tracing.end();
+            }
+        }
+    };
 
-            Image image = reader.acquireLatestImage();
-
-            ByteBuffer bb = image.getPlanes()[0].getBuffer();
-            mCapturedBitmap = BitmapFactory.decodeStream(new ByteBufferBackedInputStream(bb));
+    /**
+     * Callback of the zero-shutter-lag {@link ImageReader}, copies every preview frame into
+     * {@link #mZslRingBuffer} and hands the image back to the reader immediately.
+     */
+    private final ImageReader.OnImageAvailableListener mOnZslImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
 
-            mCapturedBitmap = flipBitmap(mCapturedBitmap);
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            Tracing.begin("zslImageAvailable");
+            try {
+                mZslRingBuffer.add(image);
+            } finally {
+                image.close();
+                Tracing.end();
+            }
+        }
+    };
 
-            mCroppedBitmap = Bitmap.createBitmap((int) (IMAGE_WIDTH), (int) (IMAGE_HEIGHT), Bitmap.Config.ARGB_8888);
+    // make a capture kept from a previous instance, e.g. before a rotation, the current one
+    public void restoreCroppedBitmap(Bitmap croppedBitmap) {
+        publishCroppedBitmap(croppedBitmap, null);
+    }
 
-            cropAndRescaleBitmap(mCapturedBitmap, mCroppedBitmap, 0);
+    // make a freshly cropped capture and its guide, if any, the current one and show it
+    private void publishCroppedBitmap(final Bitmap croppedBitmap, Bitmap guideBitmap) {
+        synchronized (this) {
+            mCroppedBitmap = croppedBitmap;
+            mGuideBitmap = guideBitmap;
+        }
+        MemoryGovernor.getInstance(mCurrentActivity).enforceBudget();
+        for (OnCaptureListener listener : mOnCaptureListeners) {
+            listener.onCapture(croppedBitmap);
+        }
 
-            mCurrentActivity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mImageView.setImageBitmap(mCroppedBitmap);
-                    mImageView.setVisibility(View.VISIBLE);
-                }
-            });
+        mCurrentActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mImageView.setImageBitmap(croppedBitmap);
+                mImageView.setVisibility(View.VISIBLE);
+            }
+        });
+    }
 
-            image.close();
+    // crop the best buffered preview frame, falls back to a still capture if there is none
+    private void captureFromZslBuffer() {
+        Tracing.begin("zslCapture");
+        try {
+            Tracing.begin("decode");
+            Bitmap frame = mZslRingBuffer.takeBestFrame();
+            Tracing.end();
+            if (frame == null) {
+                Log.d(TAG, "zsl buffer empty, falling back to still capture");
+                lockFocus();
+                return;
+            }
+            // preview frames are in sensor orientation, rotate the crop the same way the JPEG
+            // orientation would and then apply the same per-camera flip as the still path
+            Tracing.begin("flipAndCrop");
+            int rotation = mCurrentActivity.getWindowManager().getDefaultDisplay().getRotation();
+            Bitmap[] crops = flipAndCropBitmaps(frame, getOrientation(rotation));
+            frame.recycle();
+            Tracing.end();
+            publishCroppedBitmap(crops[0], crops[1]);
+        } finally {
+            Tracing.end();
         }
-    };
+    }
 
     /**
      * {@link CaptureRequest.Builder} for the camera preview
@@ -360,74 +554,220 @@ public class CameraHandler {
         public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
                                        @NonNull TotalCaptureResult result) {
+            long switchStartMs = mSwitchStartMs;
+            if (switchStartMs != 0) {
+                mSwitchStartMs = 0;
+                Log.d(TAG, "switch to first preview frame time: "
+                        + (SystemClock.elapsedRealtime() - switchStartMs));
+            }
+            if (request == mPreviewRequest) {
+                recordFrameTiming(result);
+            }
             processCaptureResult(result);
         }
 
     };
 
     /**
-     * Sets up member variables related to camera.
+     * Sets up member variables related to the current camera. Capabilities come from the
+     * {@link CameraRegistry} and the still {@link ImageReader} is only recreated when its size
+     * changes, so switching cameras reuses it.
      *
      * @param width  The width of available size for camera preview
      * @param height The height of available size for camera preview
      */
     private void setUpCameraOutputs(int width, int height) {
-        CameraManager manager = (CameraManager) mCurrentActivity.getSystemService(Context.CAMERA_SERVICE);
-        try {
-            for (String cameraId : manager.getCameraIdList()) {
-                CameraCharacteristics characteristics
-                        = manager.getCameraCharacteristics(cameraId);
-
-                StreamConfigurationMap map = characteristics.get(
-                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) {
-                    continue;
+        CameraRegistry.CameraInfo cameraInfo = mCameraRegistry.getCameraInfo(mCameraId);
+        if (cameraInfo == null) {
+            return;
+        }
+
+        if (mImageReader == null || mImageReader.getWidth() != width
+                || mImageReader.getHeight() != height) {
+            if (mImageReader != null) {
+                mImageReader.close();
+            }
+            mImageReader = ImageReader.newInstance(width, height,
+                    ImageFormat.JPEG, MAX_IMAGES);
+            mImageReader.setOnImageAvailableListener(
+                    mOnImageAvailableListener, mBackgroundHandler);
+        }
+
+        mSensorOrientation = cameraInfo.sensorOrientation;
+        mZslSize = chooseZslSize(cameraInfo.yuvSizes);
+
+        // the view size in the sensor's orientation, which the output sizes are given in
+        int displayRotation = mCurrentActivity.getWindowManager().getDefaultDisplay().getRotation();
+        boolean swappedDimensions = (displayRotation == Surface.ROTATION_0
+                || displayRotation == Surface.ROTATION_180)
+                == (mSensorOrientation == 90 || mSensorOrientation == 270);
+        int sensorViewWidth = swappedDimensions ? height : width;
+        int sensorViewHeight = swappedDimensions ? width : height;
+        if (USE_LARGEST_PREVIEW_SIZE) {
+            mPreviewSize = cameraInfo.previewSizes[0];
+        } else {
+            // the largest output covers the whole field of view, keep its aspect ratio
+            Size fullFieldOfView = Collections.max(Arrays.asList(cameraInfo.previewSizes),
+                    BY_AREA);
+            mPreviewSize = choosePreviewSize(cameraInfo.previewSizes, sensorViewWidth,
+                    sensorViewHeight, fullFieldOfView);
+        }
+        Log.d(TAG, "preview size " + mPreviewSize + " for view " + width + "x" + height);
+
+        mCurrentActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mCurrentActivity.getResources().getConfiguration().orientation
+                        == Configuration.ORIENTATION_LANDSCAPE) {
+                    mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+                } else {
+                    mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
                 }
+                configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+            }
+        });
+    }
 
-                mImageReader = ImageReader.newInstance(width, height,
-                        ImageFormat.JPEG, MAX_IMAGES);
-                mImageReader.setOnImageAvailableListener(
-                        mOnImageAvailableListener, mBackgroundHandler);
+    // sensor timestamp interval between preview frames, logged with the preview size
+    private void recordFrameTiming(CaptureResult result) {
+        Long timestampNs = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestampNs == null) {
+            return;
+        }
+        if (mLastFrameTimestampNs != 0) {
+            mFrameIntervalUs.add((timestampNs - mLastFrameTimestampNs) / 1000);
+        }
+        mLastFrameTimestampNs = timestampNs;
+        if (mFrameIntervalUs.getCount() >= FRAME_STATS_INTERVAL) {
+            Log.d(TAG, "preview " + mPreviewSize + (USE_LARGEST_PREVIEW_SIZE ? " (largest)" : "")
+                    + " frame interval us: " + mFrameIntervalUs);
+            mFrameIntervalUs.clear();
+        }
+    }
 
-                //noinspection ConstantConditions
-                mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                mPreviewSize = map.getOutputSizes(SurfaceTexture.class)[0];
+    private static final Comparator<Size> BY_AREA = new Comparator<Size>() {
+        @Override
+        public int compare(Size lhs, Size rhs) {
+            return Long.signum((long) lhs.getWidth() * lhs.getHeight()
+                    - (long) rhs.getWidth() * rhs.getHeight());
+        }
+    };
 
-                mCameraId = cameraId;
-                mCameraIds.add(cameraId);
+    /**
+     * Smallest size with the aspect ratio of {@code aspectRatio} that covers the view, or the
+     * largest one with that ratio if none does, or the first choice if none has the ratio.
+     * Anything larger than the view only costs ISP, GPU and memory bandwidth.
+     */
+    static Size choosePreviewSize(Size[] choices, int viewWidth, int viewHeight,
+                                  Size aspectRatio) {
+        Size smallestCovering = null;
+        Size largestMatching = null;
+        for (Size option : choices) {
+            if ((long) option.getHeight() * aspectRatio.getWidth()
+                    != (long) option.getWidth() * aspectRatio.getHeight()) {
+                continue;
             }
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        } catch (NullPointerException e) {
+            if (option.getWidth() >= viewWidth && option.getHeight() >= viewHeight) {
+                if (smallestCovering == null || BY_AREA.compare(option, smallestCovering) < 0) {
+                    smallestCovering = option;
+                }
+            } else if (largestMatching == null || BY_AREA.compare(option, largestMatching) > 0) {
+                largestMatching = option;
+            }
+        }
+        if (smallestCovering != null) {
+            return smallestCovering;
+        }
+        return largestMatching != null ? largestMatching : choices[0];
+    }
+
+    /**
+     * Maps the preview buffer onto the view, which needs a rotation in landscape since the
+     * buffer is in the sensor's orientation. Called once the preview size is known and whenever
+     * the view size changes.
+     */
+    public void configureTransform(int viewWidth, int viewHeight) {
+        if (null == mTextureView || null == mPreviewSize || viewWidth == 0 || viewHeight == 0) {
+            return;
+        }
+        int rotation = mCurrentActivity.getWindowManager().getDefaultDisplay().getRotation();
+        Matrix matrix = new Matrix();
+        RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
+        RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        float centerX = viewRect.centerX();
+        float centerY = viewRect.centerY();
+        if (Surface.ROTATION_90 == rotation || Surface.ROTATION_270 == rotation) {
+            bufferRect.offset(centerX - bufferRect.centerX(), centerY - bufferRect.centerY());
+            matrix.setRectToRect(viewRect, bufferRect, Matrix.ScaleToFit.FILL);
+            float scale = Math.max(
+                    (float) viewHeight / mPreviewSize.getHeight(),
+                    (float) viewWidth / mPreviewSize.getWidth());
+            matrix.postScale(scale, scale, centerX, centerY);
+            matrix.postRotate(90 * (rotation - 2), centerX, centerY);
+        } else if (Surface.ROTATION_180 == rotation) {
+            matrix.postRotate(180, centerX, centerY);
         }
+        mTextureView.setTransform(matrix);
     }
 
+    // smallest YUV size that still covers the model input, keeps the per-frame copy cheap
+    private static Size chooseZslSize(Size[] sizes) {
+        Size best = null;
+        for (Size size : sizes) {
+            if (Math.min(size.getWidth(), size.getHeight()) < Math.max(IMAGE_WIDTH, IMAGE_HEIGHT)) {
+                continue;
+            }
+            if (best == null || (long) size.getWidth() * size.getHeight()
+                    < (long) best.getWidth() * best.getHeight()) {
+                best = size;
+            }
+        }
+        return best;
+    }
 
     /**
      * switch camera e.g. front vs back.
      */
     public void switchCameras() {
         // if there's less than two cameras, do nothing
-        if (mCameraIds.size() < 2) return;
-
-        mCameraOpenCloseLock.release();
-        mCameraDevice.close();
-
-        CameraManager mCameraManager = (CameraManager) mCurrentActivity
-                .getSystemService(Context.CAMERA_SERVICE);
-        if (mCameraId.equals(Integer.toString(CameraCharacteristics.LENS_FACING_FRONT))) {
-            mCameraId = Integer.toString(CameraCharacteristics.LENS_FACING_BACK);
-            Log.d(TAG, "back facing transform");
-        } else {  // If currently on BACK camera
-            mCameraId = Integer.toString(CameraCharacteristics.LENS_FACING_FRONT);
-        }
-
-        try {
-            mCameraManager.openCamera(mCameraId, mStateCallback, null);
-        } catch (CameraAccessException e) {
-            Log.d(TAG, "switched camera : " + mCameraId + " count : " + mCameraIds.size());
-            e.printStackTrace();
-        }
+        final List<String> cameraIds = mCameraRegistry.getCameraIds();
+        if (cameraIds.size() < 2 || mBackgroundHandler == null) return;
+
+        // Only the session and the device are closed, the readers and the preview surface are
+        // kept for the next camera. All of it runs on the camera thread, like openCamera.
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSwitchStartMs = SystemClock.elapsedRealtime();
+                try {
+                    if (!mCameraOpenCloseLock.tryAcquire(CAMERA_OPEN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        throw new RuntimeException("Time out waiting to lock camera switching.");
+                    }
+                    if (null != mCaptureSession) {
+                        mCaptureSession.close();
+                        mCaptureSession = null;
+                    }
+                    if (null != mCameraDevice) {
+                        mCameraDevice.close();
+                        mCameraDevice = null;
+                    }
+                    mZslRingBuffer.clear();
+
+                    mCameraId = cameraIds.get((cameraIds.indexOf(mCameraId) + 1) % cameraIds.size());
+                    setUpCameraOutputs(mViewWidth, mViewHeight);
+
+                    CameraManager manager = (CameraManager) mCurrentActivity
+                            .getSystemService(Context.CAMERA_SERVICE);
+                    manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
+                    Log.d(TAG, "switched camera : " + mCameraId + " count : " + cameraIds.size());
+                } catch (CameraAccessException e) {
+                    mCameraOpenCloseLock.release();
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException("Interrupted while trying to lock camera switching.", e);
+                }
+            }
+        });
     }
 
     /**
@@ -438,8 +778,19 @@ public class CameraHandler {
                 != PackageManager.PERMISSION_GRANTED) {
             return;
         }
+        mCameraRegistry = CameraRegistry.getInstance(mCurrentActivity);
+        List<String> cameraIds = mCameraRegistry.getCameraIds();
+        if (cameraIds.isEmpty()) {
+            Log.d(TAG, "no camera available");
+            return;
+        }
+        // keep the camera the user switched to across resumes, default to the second one
+        if (mCameraId == null || !cameraIds.contains(mCameraId)) {
+            mCameraId = cameraIds.get(Math.min(1, cameraIds.size() - 1));
+        }
+        mViewWidth = width;
+        mViewHeight = height;
         setUpCameraOutputs(width, height);
-        mCameraId = mCameraIds.get(1);
 
         CameraManager manager = (CameraManager) mCurrentActivity
                 .getSystemService(Context.CAMERA_SERVICE);
@@ -473,6 +824,16 @@ public class CameraHandler {
                 mImageReader.close();
                 mImageReader = null;
             }
+            if (null != mZslImageReader) {
+                mZslImageReader.close();
+                mZslImageReader = null;
+            }
+            if (null != mPreviewSurface) {
+                mPreviewSurface.release();
+                mPreviewSurface = null;
+                mPreviewSurfaceTexture = null;
+            }
+            mZslRingBuffer.clear();
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
         } finally {
@@ -490,17 +851,46 @@ public class CameraHandler {
 
             // We configure the size of default buffer to be the size of camera preview we want.
             texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-
-            // This is the output Surface we need to start preview.
-            Surface surface = new Surface(texture);
+            mLastFrameTimestampNs = 0;
+            mFrameIntervalUs.clear();
+
+            // This is the output Surface we need to start preview. It is reused as long as the
+            // texture stays the same, e.g. across camera switches.
+            if (mPreviewSurface == null || mPreviewSurfaceTexture != texture) {
+                if (mPreviewSurface != null) {
+                    mPreviewSurface.release();
+                }
+                mPreviewSurface = new Surface(texture);
+                mPreviewSurfaceTexture = texture;
+            }
+            Surface surface = mPreviewSurface;
 
             // We set up a CaptureRequest.Builder with the output Surface.
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
 
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(surface, mImageReader.getSurface()));
+
+            // Preview frames also feed the zero-shutter-lag ring buffer.
+            if (mZslEnabled && mZslSize != null) {
+                if (mZslImageReader == null || mZslImageReader.getWidth() != mZslSize.getWidth()
+                        || mZslImageReader.getHeight() != mZslSize.getHeight()) {
+                    if (mZslImageReader != null) {
+                        mZslImageReader.close();
+                    }
+                    mZslImageReader = ImageReader.newInstance(mZslSize.getWidth(),
+                            mZslSize.getHeight(), ImageFormat.YUV_420_888, ZSL_MAX_IMAGES);
+                    mZslImageReader.setOnImageAvailableListener(
+                            mOnZslImageAvailableListener, mBackgroundHandler);
+                }
+                mZslRingBuffer.clear();
+                mPreviewRequestBuilder.addTarget(mZslImageReader.getSurface());
+                outputs.add(mZslImageReader.getSurface());
+            }
+
             // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
+            mCameraDevice.createCaptureSession(outputs,
                     new CameraCaptureSession.StateCallback() {
 
                         @Override
@@ -541,7 +931,13 @@ public class CameraHandler {
      * Initiate a still image capture.
      */
     public void takePicture() {
-        lockFocus();
+        mShutterTimeMs = SystemClock.elapsedRealtime();
+        if (mZslEnabled && mBackgroundHandler != null && mZslRingBuffer.hasFrames()) {
+            // each tap is queued on the camera thread, so burst taps never wait on each other
+            mBackgroundHandler.post(this::captureFromZslBuffer);
+        } else {
+            lockFocus();
+        }
     }
 
     /**
@@ -655,49 +1051,51 @@ public class CameraHandler {
         }
     }
 
-    public static void cropAndRescaleBitmap(final Bitmap src,
-                                            final Bitmap dst,
-                                            int sensorOrientation) {
-        final float minDim = Math.min(src.getWidth(), src.getHeight());
-
-        final Matrix matrix = new Matrix();
-
-        // We only want the center square out of the original rectangle.
-        final float translateX = -Math.max(0, (src.getWidth() - minDim) / 2);
-        final float translateY = -Math.max(0, (src.getHeight() - minDim) / 2);
-        matrix.preTranslate(translateX, translateY);
-
-        final float scaleFactor = dst.getHeight() / minDim;
-        matrix.postScale(scaleFactor, scaleFactor);
-
-        // Rotate around the center if necessary.
-        if (sensorOrientation != 0) {
-            matrix.postTranslate(-dst.getWidth() / 2.0f, -dst.getHeight() / 2.0f);
-            matrix.postRotate(sensorOrientation);
-            matrix.postTranslate(dst.getWidth() / 2.0f, dst.getHeight() / 2.0f);
+    // largest power of two the capture can be subsampled by while keeping minSize, e.g. twice
+    // the crop size so the crop still averages several pixels
+    private static int calculateInSampleSize(int minDim, int minSize) {
+        int inSampleSize = 1;
+        while (minDim / (inSampleSize * 2) >= minSize) {
+            inSampleSize *= 2;
         }
-
-        final Canvas canvas = new Canvas(dst);
-        canvas.drawBitmap(src, matrix, null);
+        return inSampleSize;
     }
 
-    // flip bitmap depending on which camera
-    private Bitmap flipBitmap(Bitmap bmp) {
-        int width = bmp.getWidth();
-        int height = bmp.getHeight();
-
-        Log.d(TAG, "w: " + width + " h: " + height);
-        // createa matrix for the manipulation
-        Matrix matrix = new Matrix();
+    // the crop for the model and, if the source has more pixels than that, the same crop at up
+    // to GUIDE_SIZE or else null; the source's pixels are read only once for both
+    private Bitmap[] flipAndCropBitmaps(Bitmap src, int sensorOrientation) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int[] srcPixels = new int[width * height];
+        src.getPixels(srcPixels, 0, width, 0, 0, width, height);
+
+        Bitmap croppedBitmap = flipAndCropBitmap(srcPixels, width, height, sensorOrientation,
+                IMAGE_WIDTH, IMAGE_HEIGHT);
+        // the crop is square, so its side is the smaller dimension of the source
+        int guideSize = Math.min(GUIDE_SIZE, Math.min(width, height));
+        Bitmap guideBitmap = guideSize > Math.max(IMAGE_WIDTH, IMAGE_HEIGHT)
+                ? flipAndCropBitmap(srcPixels, width, height, sensorOrientation, guideSize,
+                        guideSize)
+                : null;
+        return new Bitmap[] {croppedBitmap, guideBitmap};
+    }
 
+    // center crop, rotate by sensorOrientation, flip depending on which camera and scale the
+    // source to dstWidth x dstHeight, all in one {@link PixelKernel} pass
+    private Bitmap flipAndCropBitmap(int[] srcPixels, int width, int height,
+                                     int sensorOrientation, int dstWidth, int dstHeight) {
+        PixelKernel kernel = new PixelKernel(dstWidth, dstHeight);
+        kernel.setRotation(sensorOrientation);
         if (mCameraId.equals("0")) {
             // rotate captured bitmap by 180 degree for back facing
-            matrix.postRotate(180);
+            kernel.setFlip(true, true);
         } else if (mCameraId.equals("1")) {
-            // flip left/right for back facing
-            matrix.postScale(-1, 1, width / 2, height / 2);
+            // flip left/right for front facing
+            kernel.setFlip(true, false);
         }
-        return Bitmap.createBitmap(bmp, 0, 0, width, height, matrix, true);
+        int[] dstPixels = new int[dstWidth * dstHeight];
+        kernel.run(srcPixels, width, height, dstPixels);
+        return Bitmap.createBitmap(dstPixels, dstWidth, dstHeight, Bitmap.Config.ARGB_8888);
     }
 
     // inner class for reading byte buffer from ImageReader
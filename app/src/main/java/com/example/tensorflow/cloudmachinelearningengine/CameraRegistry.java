@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the capabilities of every camera. {@link CameraCharacteristics} are
+ * queried once, the first time the registry is used, instead of on every camera open.
+ */
+public class CameraRegistry {
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "CameraRegistry";
+
+    /**
+     * Capabilities of one camera that the app cares about.
+     */
+    public static class CameraInfo {
+        public final String id;
+        public final Integer facing;
+        public final int sensorOrientation;
+        public final Size[] previewSizes;
+        public final Size[] yuvSizes;
+
+        CameraInfo(String id, CameraCharacteristics characteristics, StreamConfigurationMap map) {
+            this.id = id;
+            this.facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            this.sensorOrientation = orientation == null ? 0 : orientation;
+            this.previewSizes = map.getOutputSizes(SurfaceTexture.class);
+            this.yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        }
+    }
+
+    private static CameraRegistry sInstance;
+
+    // cameras with a stream configuration map, in camera manager order
+    private final List<String> mCameraIds = new ArrayList<>();
+    private final Map<String, CameraInfo> mCameraInfos = new HashMap<>();
+
+    private CameraRegistry(Context context) {
+        long startMs = SystemClock.elapsedRealtime();
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            for (String cameraId : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+                StreamConfigurationMap map = characteristics.get(
+                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                if (map == null) {
+                    continue;
+                }
+                mCameraIds.add(cameraId);
+                mCameraInfos.put(cameraId, new CameraInfo(cameraId, characteristics, map));
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        Log.d(TAG, "queried " + mCameraIds.size() + " cameras in "
+                + (SystemClock.elapsedRealtime() - startMs) + " ms");
+    }
+
+    public static synchronized CameraRegistry getInstance(Context context) {
+        // an empty registry is most likely a transient access error, so try again next time
+        if (sInstance == null || sInstance.mCameraIds.isEmpty()) {
+            sInstance = new CameraRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public List<String> getCameraIds() {
+        return Collections.unmodifiableList(mCameraIds);
+    }
+
+    public CameraInfo getCameraInfo(String cameraId) {
+        return mCameraInfos.get(cameraId);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * JPEG payload of the current capture, encoded once on a background thread as soon as the
+ * capture is published, and shared by every style request sent for it. Taps then only
+ * base64-encode the cached bytes while streaming, the JPEG compression is off the tap path.
+ */
+public class CaptureEncoder implements CameraHandler.OnCaptureListener {
+    private static final String TAG = "CaptureEncoder";
+
+    /**
+     * A capture and its payload, being encoded or done.
+     */
+    private static class Entry {
+        // weak so a capture trimmed by the memory governor is not kept alive here
+        final WeakReference<Bitmap> mCapture;
+        final FutureTask<byte[]> mJpegBytes;
+        // time the encoding took, set before mJpegBytes completes
+        long mEncodeMs;
+
+        Entry(Bitmap capture) {
+            mCapture = new WeakReference<>(capture);
+            mJpegBytes = new FutureTask<>(() -> {
+                Bitmap bitmap = mCapture.get();
+                if (bitmap == null) {
+                    throw new IllegalStateException("Capture released before encoding");
+                }
+                long startMs = SystemClock.elapsedRealtime();
+                byte[] jpegBytes = StreamingPredictContent.encodeJpeg(bitmap);
+                mEncodeMs = SystemClock.elapsedRealtime() - startMs;
+                return jpegBytes;
+            });
+        }
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private volatile Entry mEntry;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mSavedMs = new AtomicLong();
+
+    @Override
+    public void onCapture(Bitmap croppedBitmap) {
+        Entry entry = new Entry(croppedBitmap);
+        Entry previous;
+        synchronized (this) {
+            previous = mEntry;
+            mEntry = entry;
+        }
+        // nobody asks for the previous capture any more, skip it if it has not started
+        if (previous != null) {
+            previous.mJpegBytes.cancel(false);
+        }
+        mExecutor.execute(entry.mJpegBytes);
+    }
+
+    /**
+     * The payload of the given capture, waiting for its encoding if it is still running, or
+     * null if it is not the cached capture or its encoding failed.
+     */
+    public byte[] get(Bitmap capture) throws InterruptedException {
+        Entry entry = mEntry;
+        if (entry == null || entry.mCapture.get() != capture) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            byte[] jpegBytes = entry.mJpegBytes.get();
+            // a tap right after the capture may still have waited for part of the encoding
+            long savedMs = Math.max(0, entry.mEncodeMs - (SystemClock.elapsedRealtime() - startMs));
+            mHits.incrementAndGet();
+            mSavedMs.addAndGet(savedMs);
+            Log.d(TAG, "payload from cache, saved " + savedMs + "ms");
+            return jpegBytes;
+        } catch (ExecutionException | CancellationException e) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        long hits = mHits.get();
+        return "hits=" + hits + " misses=" + mMisses.get() + " savedMs=" + mSavedMs.get()
+                + " savedMsPerHit=" + (hits == 0 ? 0 : mSavedMs.get() / hits);
+    }
+}
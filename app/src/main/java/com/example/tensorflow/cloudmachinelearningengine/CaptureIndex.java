@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stylized results of the last {@link #MAX_CAPTURES} captures, keyed by the
+ * {@link PerceptualHash} of each capture. A new capture within {@link #setMaxDistance} bits of an
+ * earlier one is a near-duplicate, and its results for a style can be shown right away while
+ * a fresh request runs. Every capture is hashed when it is published, which takes well under a
+ * millisecond for a camera crop.
+ */
+public class CaptureIndex implements CameraHandler.OnCaptureListener,
+        MemoryGovernor.MemoryConsumer {
+    private static final String TAG = "CaptureIndex";
+
+    // captures remembered, each with its results by style
+    private static final int MAX_CAPTURES = 4;
+
+    // out of 64 bits; lower it if different scenes get matched
+    static final int DEFAULT_MAX_DISTANCE = 6;
+
+    /**
+     * A remembered capture.
+     */
+    private static class Entry {
+        final long mHash;
+        final SparseArray<Bitmap> mResults = new SparseArray<>();
+
+        Entry(long hash) {
+            mHash = hash;
+        }
+    }
+
+    // oldest first
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    // hash of the latest capture, so requests for it do not hash it again
+    private WeakReference<Bitmap> mLastCapture = new WeakReference<>(null);
+    private long mLastHash;
+
+    private volatile int mMaxDistance = DEFAULT_MAX_DISTANCE;
+
+    private long mLookups;
+    private long mHits;
+
+    // Hamming distance up to which two captures count as the same scene
+    public void setMaxDistance(int maxDistance) {
+        mMaxDistance = maxDistance;
+    }
+
+    @Override
+    public void onCapture(Bitmap croppedBitmap) {
+        long startNs = System.nanoTime();
+        long hash = hash(croppedBitmap);
+        synchronized (this) {
+            mLastCapture = new WeakReference<>(croppedBitmap);
+            mLastHash = hash;
+        }
+        Log.d(TAG, "capture hash " + Long.toHexString(hash) + " in "
+                + (System.nanoTime() - startNs) / 1000 + "us");
+    }
+
+    /**
+     * The result of the given style for the closest near-duplicate of the capture, or null.
+     */
+    public synchronized Bitmap findResult(Bitmap capture, int style) {
+        mLookups++;
+        long hash = hashOf(capture);
+        Entry best = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (Entry entry : mEntries) {
+            int distance = PerceptualHash.distance(hash, entry.mHash);
+            if (distance <= mMaxDistance && distance < bestDistance
+                    && entry.mResults.get(style) != null) {
+                best = entry;
+                bestDistance = distance;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        mHits++;
+        Log.d(TAG, "near-duplicate capture at distance " + bestDistance);
+        return best.mResults.get(style);
+    }
+
+    // remembers a result under its capture, or the near-duplicate it was matched to before
+    public synchronized void putResult(Bitmap capture, int style, Bitmap result) {
+        long hash = hashOf(capture);
+        Entry entry = null;
+        int bestDistance = Integer.MAX_VALUE;
+        for (Entry candidate : mEntries) {
+            int distance = PerceptualHash.distance(hash, candidate.mHash);
+            if (distance <= mMaxDistance && distance < bestDistance) {
+                entry = candidate;
+                bestDistance = distance;
+            }
+        }
+        if (entry == null) {
+            entry = new Entry(hash);
+            if (mEntries.size() >= MAX_CAPTURES) {
+                mEntries.remove(0);
+            }
+        } else {
+            mEntries.remove(entry);
+        }
+        // the newest last
+        mEntries.add(entry);
+        entry.mResults.put(style, result);
+    }
+
+    private long hashOf(Bitmap capture) {
+        if (capture == mLastCapture.get()) {
+            return mLastHash;
+        }
+        return hash(capture);
+    }
+
+    private static long hash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return PerceptualHash.dHash(pixels, width, height);
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public int getTier() {
+        return MemoryGovernor.TIER_CACHE;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        for (Entry entry : mEntries) {
+            for (int i = 0; i < entry.mResults.size(); i++) {
+                size += entry.mResults.valueAt(i).getAllocationByteCount();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        // results may still be on screen, so they are only dropped, never recycled
+        while (!mEntries.isEmpty() && getSizeBytes() > maxBytes) {
+            mEntries.remove(0);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "captures=" + mEntries.size() + " lookups=" + mLookups + " hits=" + mHits
+                + " maxDistance=" + mMaxDistance + " bytes=" + getSizeBytes();
+    }
+}
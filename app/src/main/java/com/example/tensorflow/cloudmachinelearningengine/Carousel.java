@@ -17,16 +17,17 @@
 package com.example.tensorflow.cloudmachinelearningengine;
 
 import android.app.Activity;
-import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.SystemClock;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.util.SparseIntArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,39 +35,181 @@ import java.util.List;
  * image thumbnails carousel using RecyclerView
  */
 
-public class Carousel extends RecyclerView.Adapter<Carousel.CarouselViewHolder> {
+public class Carousel extends RecyclerView.Adapter<Carousel.CarouselViewHolder>
+        implements MemoryGovernor.MemoryConsumer {
     private static final String TAG = "CAROUSEL";
 
-    // client parameters: number of thumbnails available
-    private static final int NUM_THUMB_STYLES = 26;
-
     private Activity activity;
     private List<CarouselImage> carouselImageList;
 
+    // thumbnails packed at build time, null if the atlas could not be read
+    private ThumbnailAtlas mThumbnailAtlas;
+
     private CMLEHandler mCMLEHandler;
 
+    // runs the style requests, taps are interactive
+    private InferenceScheduler mScheduler;
+
+    // views showing each position, their bitmaps cannot be freed by dropping our reference;
+    // guarded by itself
+    private final SparseIntArray mBoundViews = new SparseIntArray();
+
     public Carousel(Activity activity,
-                    CMLEHandler cmleHandler) {
+                    CMLEHandler cmleHandler,
+                    InferenceScheduler scheduler) {
         this.activity = activity;
         this.mCMLEHandler = cmleHandler;
+        this.mScheduler = scheduler;
         carouselImageList = new ArrayList<>();
     }
 
-    // Load style thumbnail images into an array
+    // Load style thumbnail images into an array, decoding the atlas once
     public void loadCarouselImages() {
-        TypedArray styleThumbIds = activity.getResources().obtainTypedArray(R.array.styleThumbnails);
-        for (int i = 0; i < NUM_THUMB_STYLES; i++) {
-            carouselImageList.add(new Carousel.CarouselImage(
-                    BitmapFactory.decodeResource(
-                            activity.getResources(),
-                            styleThumbIds.getResourceId(i, 0))));
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            mThumbnailAtlas = new ThumbnailAtlas(activity.getAssets());
+            Bitmap[] thumbnails = mThumbnailAtlas.decodeAll();
+            for (Bitmap thumbnail : thumbnails) {
+                carouselImageList.add(new Carousel.CarouselImage(thumbnail));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading the thumbnail atlas", e);
         }
-        // recycle the array
-        styleThumbIds.recycle();
+        Log.d(TAG, "loaded " + carouselImageList.size() + " thumbnails in "
+                + (SystemClock.elapsedRealtime() - startMs) + "ms");
+        MemoryGovernor.getInstance(activity).enforceBudget();
+    }
+
+    // decode a thumbnail, it may have been evicted under memory pressure since it was last shown
+    private Bitmap getThumbnail(int position) {
+        CarouselImage carouselImage = carouselImageList.get(position);
+        Bitmap bitmap = carouselImage.getBitmap();
+        if (bitmap == null) {
+            try {
+                bitmap = mThumbnailAtlas.decode(position);
+            } catch (IOException e) {
+                Log.e(TAG, "Error decoding thumbnail " + position, e);
+                return null;
+            }
+            carouselImage.setBitmap(bitmap);
+            MemoryGovernor.getInstance(activity).enforceBudget();
+        }
+        return bitmap;
+    }
+
+    // show a stylized preview of the current capture in place of a thumbnail
+    public void setPreview(final int position, final Bitmap preview,
+                           final InferenceScheduler.Task task) {
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // checked here too, a newer capture may have cleared the previews meanwhile
+                if (task.isCancelled() || position >= carouselImageList.size()) {
+                    preview.recycle();
+                    return;
+                }
+                carouselImageList.get(position).setPreview(preview);
+                notifyItemChanged(position);
+            }
+        });
+        MemoryGovernor.getInstance(activity).enforceBudget();
+    }
+
+    // back to the plain thumbnails, e.g. because the capture changed
+    public void clearPreviews() {
+        activity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (CarouselImage carouselImage : carouselImageList) {
+                    carouselImage.setPreview(null);
+                }
+                notifyDataSetChanged();
+            }
+        });
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public int getTier() {
+        return MemoryGovernor.TIER_CACHE;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        long size = 0;
+        for (CarouselImage carouselImage : carouselImageList) {
+            Bitmap bitmap = carouselImage.getBitmap();
+            if (bitmap != null) {
+                size += bitmap.getAllocationByteCount();
+            }
+            Bitmap preview = carouselImage.getPreview();
+            if (preview != null) {
+                size += preview.getAllocationByteCount();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void trimToSize(long maxBytes) {
+        // thumbnails are decoded again when their view is bound, previews are lost. Bitmaps
+        // on screen stay, the view would keep them alive anyway.
+        long size = getSizeBytes();
+        for (int position = 0; position < carouselImageList.size(); position++) {
+            if (size <= maxBytes) {
+                break;
+            }
+            if (isBound(position)) {
+                continue;
+            }
+            CarouselImage carouselImage = carouselImageList.get(position);
+            Bitmap bitmap = carouselImage.getBitmap();
+            if (bitmap != null) {
+                size -= bitmap.getAllocationByteCount();
+                carouselImage.setBitmap(null);
+            }
+            Bitmap preview = carouselImage.getPreview();
+            if (preview != null) {
+                size -= preview.getAllocationByteCount();
+                carouselImage.setPreview(null);
+            }
+        }
+    }
+
+    private boolean isBound(int position) {
+        synchronized (mBoundViews) {
+            return mBoundViews.get(position) > 0;
+        }
+    }
+
+    private void setBoundPosition(CarouselViewHolder holder, int position) {
+        synchronized (mBoundViews) {
+            if (holder.mBoundPosition != RecyclerView.NO_POSITION) {
+                mBoundViews.put(holder.mBoundPosition,
+                        mBoundViews.get(holder.mBoundPosition) - 1);
+            }
+            holder.mBoundPosition = position;
+            if (position != RecyclerView.NO_POSITION) {
+                mBoundViews.put(position, mBoundViews.get(position) + 1);
+            }
+        }
+    }
+
+    @Override
+    public void onViewRecycled(CarouselViewHolder holder) {
+        // let go of the bitmap, so trimming can free it
+        holder.imageView.setImageDrawable(null);
+        setBoundPosition(holder, RecyclerView.NO_POSITION);
     }
 
     public class CarouselViewHolder extends RecyclerView.ViewHolder {
         ImageView imageView;
+        // position whose bitmap the view shows
+        int mBoundPosition = RecyclerView.NO_POSITION;
 
         public CarouselViewHolder(View view) {
             super(view);
@@ -83,17 +226,24 @@ public class Carousel extends RecyclerView.Adapter<Carousel.CarouselViewHolder>
 
     @Override
     public void onBindViewHolder(final CarouselViewHolder holder, final int position) {
-        holder.imageView.setImageBitmap(carouselImageList.get(position).getBitmap());
+        setBoundPosition(holder, position);
+        Bitmap preview = carouselImageList.get(position).getPreview();
+        holder.imageView.setImageBitmap(preview != null ? preview : getThumbnail(position));
 
         holder.imageView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 Log.d(TAG, "onClick sendStylizedRequest");
-                new Thread(new Runnable() {
-                    public void run() {
-                        mCMLEHandler.sendRequestToCMLE(position);
-                    }
-                }).start();
+                InferenceScheduler.Task task = mScheduler.submit(
+                        InferenceScheduler.PRIORITY_INTERACTIVE, "style " + position,
+                        new InferenceScheduler.Job() {
+                            public void run(InferenceScheduler.Task task) {
+                                mCMLEHandler.sendRequestToCMLE(position, task);
+                            }
+                        });
+                if (task == null) {
+                    Log.d(TAG, "Style request rejected:\n" + mScheduler);
+                }
             }
         });
 
@@ -106,14 +256,28 @@ public class Carousel extends RecyclerView.Adapter<Carousel.CarouselViewHolder>
 
     // inner class for loadng thumbnails into carousel for style thumbnails
     protected static class CarouselImage {
-        private Bitmap mBitmap;
+        private volatile Bitmap mBitmap;
+        // stylized preview of the current capture, if any
+        private volatile Bitmap mPreview;
 
         CarouselImage(Bitmap bitmap) {
             mBitmap = bitmap;
         }
 
+        public Bitmap getPreview() {
+            return mPreview;
+        }
+
+        public void setPreview(Bitmap preview) {
+            mPreview = preview;
+        }
+
         public Bitmap getBitmap() {
             return mBitmap;
         }
+
+        public void setBitmap(Bitmap bitmap) {
+            mBitmap = bitmap;
+        }
     }
 }
\ No newline at end of file
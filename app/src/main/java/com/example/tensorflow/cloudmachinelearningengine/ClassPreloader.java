@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.ml.v1.CloudMachineLearningEngine;
+import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
+import com.google.gson.Gson;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads and initializes the classes of the startup path and of the first stylize request on a
+ * background thread, while the main thread inflates the layout, so it does not stall on class
+ * loading and static initializers later on. Started first thing in the activity's onCreate;
+ * only the first start per process does anything.
+ *
+ * Class literals rather than names, so the list survives code shrinking and obfuscation.
+ */
+public final class ClassPreloader {
+    private static final String TAG = "ClassPreloader";
+
+    // set to false to compare cold starts without preloading
+    private static final boolean PRELOAD_CLASSES = true;
+
+    private static final AtomicBoolean sStarted = new AtomicBoolean();
+
+    private ClassPreloader() {
+    }
+
+    public static void start() {
+        if (!PRELOAD_CLASSES || !sStarted.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(ClassPreloader::preload, TAG);
+        thread.start();
+    }
+
+    // roughly in the order the main thread and the first request get to them. Built when
+    // called, on the preloading thread, since resolving a literal already loads its class
+    private static Class<?>[] classes() {
+        return new Class<?>[] {
+            // holder fragment: credentials, transport and client
+            GoogleCredential.class,
+            GsonFactory.class,
+            ApacheHttpTransport.class,
+            CloudMachineLearningEngine.class,
+            CMLEHandler.class,
+            CMLEClient.class,
+            ModelRouter.class,
+            Pipeline.class,
+            InferenceScheduler.class,
+            SessionStore.class,
+            BatchStylizer.class,
+            StyleLuts.class,
+            // UI fragment and camera
+            MemoryGovernor.class,
+            CameraHandler.class,
+            ZslRingBuffer.class,
+            Carousel.class,
+            ThumbnailAtlas.class,
+            // first capture and request
+            PixelKernel.class,
+            PerceptualHash.class,
+            CaptureIndex.class,
+            CaptureEncoder.class,
+            StreamingPredictContent.class,
+            Base64EncodingOutputStream.class,
+            GoogleApiHttpBody.class,
+            HttpResponseException.class,
+            Gson.class,
+            ColorLut.class,
+            GuidedUpsampler.class,
+        };
+    }
+
+    private static void preload() {
+        // behind the main and render threads
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long startMs = SystemClock.elapsedRealtime();
+        ClassLoader classLoader = ClassPreloader.class.getClassLoader();
+        int loaded = 0;
+        for (Class<?> clazz : classes()) {
+            try {
+                // a literal only loads the class, this runs its static initializers too
+                Class.forName(clazz.getName(), true, classLoader);
+                loaded++;
+            } catch (ClassNotFoundException | LinkageError e) {
+                Log.d(TAG, "Not preloaded: " + clazz.getName() + ": " + e);
+            }
+        }
+        Log.d(TAG, "preloaded " + loaded + " classes in "
+                + (SystemClock.elapsedRealtime() - startMs) + "ms");
+    }
+}
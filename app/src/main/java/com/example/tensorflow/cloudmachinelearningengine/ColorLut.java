@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 3D color lookup table learned from (input, output) pixel pairs of one style, a cheap stand-in
+ * for the model's color response while its real result is on the way. Every pair is splatted
+ * onto the {@link #GRID}^3 nodes around its input color; a node's output is the weighted mean
+ * of what it has seen, pulled towards the identity where it has seen little. Node weights are
+ * capped, so newer results gradually outweigh older ones. Thread safe, pure Java.
+ *
+ * Stored as written by {@link DataOutputStream}:
+ * <pre>
+ * int MAGIC, int VERSION, int GRID, long samples,
+ * GRID^3 times: float weight, float red, float green, float blue   (sums, red slowest)
+ * </pre>
+ */
+public class ColorLut {
+
+    static final int MAGIC = 0x434c5554;
+    static final int VERSION = 1;
+
+    // nodes per channel, 16 cells of 16 levels
+    static final int GRID = 17;
+    private static final int NODES = GRID * GRID * GRID;
+
+    // weight of the identity at every node, so an unseen color passes through unchanged
+    private static final float PRIOR_WEIGHT = 0.5f;
+    // a node is scaled down beyond this, so it keeps following the model
+    private static final float MAX_NODE_WEIGHT = 256f;
+    // pairs seen before the table is worth showing
+    private static final long MIN_SAMPLES = 1000;
+
+    // node below and distance to it in 1/256, per channel value
+    private static final int[] INDEX = new int[256];
+    private static final int[] FRACTION = new int[256];
+
+    static {
+        for (int c = 0; c < 256; c++) {
+            int position = c * (GRID - 1) * 256 / 255;
+            INDEX[c] = Math.min(position >> 8, GRID - 2);
+            FRACTION[c] = position - (INDEX[c] << 8);
+        }
+    }
+
+    // per node: weight, then the weighted sums of red, green and blue
+    private final float[] mSums = new float[4 * NODES];
+    private long mSamples;
+
+    // packed RGB of every node, rebuilt from mSums after learning
+    private final int[] mTable = new int[NODES];
+    private boolean mTableValid;
+
+    public synchronized long getSamples() {
+        return mSamples;
+    }
+
+    // whether enough has been learned to stand in for the model
+    public synchronized boolean isTrained() {
+        return mSamples >= MIN_SAMPLES;
+    }
+
+    /**
+     * Learns from every step-th pixel in both directions of two images of the same size, e.g.
+     * a capture and its stylized result.
+     */
+    public synchronized void learn(int[] input, int[] output, int width, int height, int step) {
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                splat(input[y * width + x], output[y * width + x]);
+                mSamples++;
+            }
+        }
+        for (int node = 0; node < NODES; node++) {
+            float weight = mSums[4 * node];
+            if (weight > MAX_NODE_WEIGHT) {
+                float scale = MAX_NODE_WEIGHT / weight;
+                for (int i = 0; i < 4; i++) {
+                    mSums[4 * node + i] *= scale;
+                }
+            }
+        }
+        mTableValid = false;
+    }
+
+    // adds one pair to the 8 nodes around the input color, trilinearly weighted
+    private void splat(int in, int out) {
+        int r = (in >> 16) & 0xff;
+        int g = (in >> 8) & 0xff;
+        int b = in & 0xff;
+        float outR = (out >> 16) & 0xff;
+        float outG = (out >> 8) & 0xff;
+        float outB = out & 0xff;
+        float fr = FRACTION[r] / 256f;
+        float fg = FRACTION[g] / 256f;
+        float fb = FRACTION[b] / 256f;
+        int base = (INDEX[r] * GRID + INDEX[g]) * GRID + INDEX[b];
+        for (int corner = 0; corner < 8; corner++) {
+            int dr = corner >> 2;
+            int dg = (corner >> 1) & 1;
+            int db = corner & 1;
+            float weight = (dr == 0 ? 1 - fr : fr) * (dg == 0 ? 1 - fg : fg)
+                    * (db == 0 ? 1 - fb : fb);
+            int i = 4 * (base + (dr * GRID + dg) * GRID + db);
+            mSums[i] += weight;
+            mSums[i + 1] += weight * outR;
+            mSums[i + 2] += weight * outG;
+            mSums[i + 3] += weight * outB;
+        }
+    }
+
+    /**
+     * Maps count pixels of src into dst, which may be the same array. Alpha is kept.
+     */
+    public synchronized void apply(int[] src, int[] dst, int count) {
+        if (!mTableValid) {
+            buildTable();
+        }
+        int[] table = mTable;
+        for (int i = 0; i < count; i++) {
+            int pixel = src[i];
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            int fr = FRACTION[r];
+            int fg = FRACTION[g];
+            int fb = FRACTION[b];
+            int n000 = (INDEX[r] * GRID + INDEX[g]) * GRID + INDEX[b];
+            int n010 = n000 + GRID;
+            int n100 = n000 + GRID * GRID;
+            int n110 = n100 + GRID;
+            // along blue, then green, then red, all three channels at once in 8.8 fixed point
+            int red = lerp(lerp(lerp(table[n000], table[n000 + 1], fb, 16),
+                    lerp(table[n010], table[n010 + 1], fb, 16), fg),
+                    lerp(lerp(table[n100], table[n100 + 1], fb, 16),
+                            lerp(table[n110], table[n110 + 1], fb, 16), fg), fr);
+            int green = lerp(lerp(lerp(table[n000], table[n000 + 1], fb, 8),
+                    lerp(table[n010], table[n010 + 1], fb, 8), fg),
+                    lerp(lerp(table[n100], table[n100 + 1], fb, 8),
+                            lerp(table[n110], table[n110 + 1], fb, 8), fg), fr);
+            int blue = lerp(lerp(lerp(table[n000], table[n000 + 1], fb, 0),
+                    lerp(table[n010], table[n010 + 1], fb, 0), fg),
+                    lerp(lerp(table[n100], table[n100 + 1], fb, 0),
+                            lerp(table[n110], table[n110 + 1], fb, 0), fg), fr);
+            dst[i] = (pixel & 0xff000000) | ((red + 128) >> 8) << 16 | ((green + 128) >> 8) << 8
+                    | ((blue + 128) >> 8);
+        }
+    }
+
+    // the channel at shift of two packed nodes, interpolated into 8.8 fixed point
+    private static int lerp(int from, int to, int fraction, int shift) {
+        int a = (from >> shift) & 0xff;
+        int b = (to >> shift) & 0xff;
+        return (a << 8) + (b - a) * fraction;
+    }
+
+    // two 8.8 fixed point values
+    private static int lerp(int from, int to, int fraction) {
+        return from + (((to - from) * fraction) >> 8);
+    }
+
+    private void buildTable() {
+        for (int r = 0; r < GRID; r++) {
+            for (int g = 0; g < GRID; g++) {
+                for (int b = 0; b < GRID; b++) {
+                    int node = (r * GRID + g) * GRID + b;
+                    int i = 4 * node;
+                    float weight = mSums[i] + PRIOR_WEIGHT;
+                    int red = channel((mSums[i + 1] + PRIOR_WEIGHT * level(r)) / weight);
+                    int green = channel((mSums[i + 2] + PRIOR_WEIGHT * level(g)) / weight);
+                    int blue = channel((mSums[i + 3] + PRIOR_WEIGHT * level(b)) / weight);
+                    mTable[node] = red << 16 | green << 8 | blue;
+                }
+            }
+        }
+        mTableValid = true;
+    }
+
+    // channel value of a node index
+    private static float level(int index) {
+        return index * 255f / (GRID - 1);
+    }
+
+    private static int channel(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(GRID);
+        out.writeLong(mSamples);
+        for (float sum : mSums) {
+            out.writeFloat(sum);
+        }
+    }
+
+    public static ColorLut readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != GRID) {
+            throw new IOException("Unknown LUT format");
+        }
+        ColorLut lut = new ColorLut();
+        lut.mSamples = in.readLong();
+        for (int i = 0; i < lut.mSums.length; i++) {
+            lut.mSums[i] = in.readFloat();
+        }
+        return lut;
+    }
+}
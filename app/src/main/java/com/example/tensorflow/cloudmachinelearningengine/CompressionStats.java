@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Request body sizes, compression CPU time and latency, bucketed by network type and by whether
+ * the body was gzipped, so both can be compared per network.
+ */
+public class CompressionStats {
+
+    /**
+     * Totals of one network type and encoding.
+     */
+    public static class Bucket {
+        public long requests;
+        public long rawBytes;
+        public long wireBytes;
+        public long deflateNanos;
+        public final LatencyStats latencyMs = new LatencyStats();
+
+        public float getRatio() {
+            return rawBytes == 0 ? 1f : (float) wireBytes / rawBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requests + " ratio=" + String.format("%.3f", getRatio())
+                    + " cpu/request=" + (requests == 0 ? 0 : deflateNanos / requests / 1000) + "us"
+                    + " latency " + latencyMs;
+        }
+    }
+
+    private final Map<String, Bucket> mBuckets = new LinkedHashMap<>();
+
+    public synchronized void record(String networkType, boolean gzip, long rawBytes,
+                                    long wireBytes, long deflateNanos, long latencyMs) {
+        String key = networkType + (gzip ? "/gzip" : "/identity");
+        Bucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new Bucket();
+            mBuckets.put(key, bucket);
+        }
+        bucket.requests++;
+        bucket.rawBytes += rawBytes;
+        bucket.wireBytes += wireBytes;
+        bucket.deflateNanos += deflateNanos;
+        bucket.latencyMs.add(latencyMs);
+    }
+
+    public synchronized Bucket getBucket(String networkType, boolean gzip) {
+        return mBuckets.get(networkType + (gzip ? "/gzip" : "/identity"));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Bucket> entry : mBuckets.entrySet()) {
+            builder.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+}
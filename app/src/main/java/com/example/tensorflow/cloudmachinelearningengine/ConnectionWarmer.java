@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.IOException;
+
+/**
+ * Pays the one-off costs of the first predict before the user asks for one: DNS, TCP and TLS
+ * setup of the pooled connection, fetching the OAuth token, and the model version's own cold
+ * start. It sends a sentinel request, a tiny blank image, and ignores the prediction.
+ */
+public class ConnectionWarmer {
+
+    /**
+     * Sends the sentinel and waits for its response.
+     *
+     * @return how long that took in milliseconds, or -1 if it failed. A failed warm-up has
+     * still set up the connection, unless the failure was on the network.
+     */
+    public static long warmUp(Predictor predictor, HttpContent sentinel) {
+        long startNs = System.nanoTime();
+        try {
+            predictor.predict(sentinel);
+        } catch (IOException e) {
+            return -1;
+        }
+        return (System.nanoTime() - startNs) / 1000000;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Lifts a low resolution result to the resolution of a guide image of the same scene, keeping
+ * the guide's edges: a fast guided filter. At low resolution every color channel of the result
+ * is fitted locally as a * luma + b of the guide shrunk to the result's size; the a and b of
+ * each channel are then interpolated bilinearly to full resolution and applied to the full
+ * resolution luma. Only that last pass touches every output pixel, its rows are split into
+ * bands processed on the common {@link ForkJoinPool} like {@link PixelKernel}'s.
+ *
+ * The guide may be blended over the output in the same pass, the way the composite stage
+ * blends the capture over the stylized image. Pure Java, see GuidedUpsamplerTest.
+ * An upsampler may be reused for any number of {@link #run} calls, but not configured while
+ * one is running.
+ */
+public class GuidedUpsampler {
+
+    private static final int MIN_BAND_ROWS = 8;
+    private static final int BANDS_PER_THREAD = 4;
+
+    // coefficients per low resolution pixel: a and b of red, green and blue
+    private static final int COEFFICIENTS = 6;
+
+    // in low resolution pixels, the window of each local fit is 2 * radius + 1 wide
+    static final int DEFAULT_RADIUS = 2;
+    // on 0..255 values: larger flattens the result towards local means, smaller copies more
+    // of the guide's texture into it
+    static final float DEFAULT_EPSILON = 100f;
+
+    private int mRadius = DEFAULT_RADIUS;
+    private float mEpsilon = DEFAULT_EPSILON;
+
+    // guide drawn over the output with mOverlayAlpha, 0 for none
+    private int mOverlayAlpha;
+
+    private boolean mParallel = true;
+
+    public void setRadius(int radius) {
+        mRadius = radius;
+    }
+
+    public void setEpsilon(float epsilon) {
+        mEpsilon = epsilon;
+    }
+
+    // like drawing the guide with a Paint of the given alpha over the output
+    public void setOverlayAlpha(int alpha) {
+        mOverlayAlpha = alpha;
+    }
+
+    // whether to split the full resolution pass over the common pool
+    public void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    /**
+     * Fills dst, guideWidth * guideHeight ARGB pixels, with src lifted to the guide's size.
+     * src and the guide must show the same region; the output is opaque. dst may be the guide.
+     */
+    public void run(int[] src, int srcWidth, int srcHeight, int[] guide, int guideWidth,
+                    int guideHeight, int[] dst) {
+        if (src.length < srcWidth * srcHeight || guide.length < guideWidth * guideHeight
+                || dst.length < guideWidth * guideHeight) {
+            throw new IllegalArgumentException("Buffer smaller than its dimensions");
+        }
+        // the guide at the source's resolution, averaged the same way the crop is
+        int[] smallGuide = new int[srcWidth * srcHeight];
+        PixelKernel kernel = new PixelKernel(srcWidth, srcHeight);
+        kernel.setCrop(0, 0, guideWidth, guideHeight);
+        kernel.setParallel(mParallel);
+        kernel.run(guide, guideWidth, guideHeight, smallGuide);
+
+        float[] coefficients = fit(src, smallGuide, srcWidth, srcHeight);
+
+        Pass pass = new Pass(coefficients, srcWidth, srcHeight, guide, guideWidth, guideHeight,
+                dst, mOverlayAlpha);
+        if (!mParallel) {
+            pass.processRows(0, guideHeight);
+            return;
+        }
+        int bandRows = Math.max(MIN_BAND_ROWS, guideHeight
+                / (ForkJoinPool.getCommonPoolParallelism() * BANDS_PER_THREAD));
+        ForkJoinPool.commonPool().invoke(new Band(pass, 0, guideHeight, bandRows));
+    }
+
+    // the smoothed a and b of every channel at every low resolution pixel, interleaved
+    private float[] fit(int[] src, int[] smallGuide, int width, int height) {
+        int count = width * height;
+        // guide luma, its square, and per channel the value and its product with the luma
+        float[] luma = new float[count];
+        float[] lumaSquared = new float[count];
+        float[][] values = new float[3][count];
+        float[][] products = new float[3][count];
+        for (int i = 0; i < count; i++) {
+            float l = luma(smallGuide[i]);
+            luma[i] = l;
+            lumaSquared[i] = l * l;
+            for (int c = 0; c < 3; c++) {
+                float v = (src[i] >> (16 - 8 * c)) & 0xff;
+                values[c][i] = v;
+                products[c][i] = l * v;
+            }
+        }
+        float[] meanLuma = boxMean(luma, width, height, mRadius);
+        float[] meanLumaSquared = boxMean(lumaSquared, width, height, mRadius);
+
+        float[] coefficients = new float[COEFFICIENTS * count];
+        float[] a = new float[count];
+        float[] b = new float[count];
+        for (int c = 0; c < 3; c++) {
+            float[] meanValue = boxMean(values[c], width, height, mRadius);
+            float[] meanProduct = boxMean(products[c], width, height, mRadius);
+            for (int i = 0; i < count; i++) {
+                float variance = meanLumaSquared[i] - meanLuma[i] * meanLuma[i];
+                float covariance = meanProduct[i] - meanLuma[i] * meanValue[i];
+                a[i] = covariance / (variance + mEpsilon);
+                b[i] = meanValue[i] - a[i] * meanLuma[i];
+            }
+            // averaged over the windows each pixel is part of, as in the guided filter
+            float[] meanA = boxMean(a, width, height, mRadius);
+            float[] meanB = boxMean(b, width, height, mRadius);
+            for (int i = 0; i < count; i++) {
+                coefficients[COEFFICIENTS * i + 2 * c] = meanA[i];
+                coefficients[COEFFICIENTS * i + 2 * c + 1] = meanB[i];
+            }
+        }
+        return coefficients;
+    }
+
+    // mean over the (2 * radius + 1)^2 window around each pixel, clipped at the borders
+    static float[] boxMean(float[] values, int width, int height, int radius) {
+        float[] rows = new float[values.length];
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            float sum = 0;
+            int from = 0;
+            int to = 0;
+            for (int x = 0; x < width; x++) {
+                while (to < Math.min(width, x + radius + 1)) {
+                    sum += values[row + to++];
+                }
+                while (from < x - radius) {
+                    sum -= values[row + from++];
+                }
+                rows[row + x] = sum / (to - from);
+            }
+        }
+        float[] means = new float[values.length];
+        for (int x = 0; x < width; x++) {
+            float sum = 0;
+            int from = 0;
+            int to = 0;
+            for (int y = 0; y < height; y++) {
+                while (to < Math.min(height, y + radius + 1)) {
+                    sum += rows[to++ * width + x];
+                }
+                while (from < y - radius) {
+                    sum -= rows[from++ * width + x];
+                }
+                means[y * width + x] = sum / (to - from);
+            }
+        }
+        return means;
+    }
+
+    // Rec. 601 luma, 0 to 255
+    static float luma(int pixel) {
+        return 0.299f * ((pixel >> 16) & 0xff) + 0.587f * ((pixel >> 8) & 0xff)
+                + 0.114f * (pixel & 0xff);
+    }
+
+    /**
+     * Everything the full resolution pass needs, immutable so bands can run on any thread.
+     */
+    private static class Pass {
+        final float[] mCoefficients;
+        final int mSrcWidth;
+        final int mSrcHeight;
+        final int[] mGuide;
+        final int mWidth;
+        final int[] mDst;
+        final int mOverlayAlpha;
+        // per output column and row: low resolution pixel before it and the weight of the next
+        final int[] mX0;
+        final float[] mFx;
+        final int[] mY0;
+        final float[] mFy;
+
+        Pass(float[] coefficients, int srcWidth, int srcHeight, int[] guide, int width,
+             int height, int[] dst, int overlayAlpha) {
+            mCoefficients = coefficients;
+            mSrcWidth = srcWidth;
+            mSrcHeight = srcHeight;
+            mGuide = guide;
+            mWidth = width;
+            mDst = dst;
+            mOverlayAlpha = overlayAlpha;
+            mX0 = new int[width];
+            mFx = new float[width];
+            sampling(width, srcWidth, mX0, mFx);
+            mY0 = new int[height];
+            mFy = new float[height];
+            sampling(height, srcHeight, mY0, mFy);
+        }
+
+        // pixel centers of the output mapped onto the source, clamped at the borders
+        private static void sampling(int size, int srcSize, int[] index, float[] fraction) {
+            for (int i = 0; i < size; i++) {
+                float position = (i + 0.5f) * srcSize / size - 0.5f;
+                position = Math.max(0, Math.min(srcSize - 1, position));
+                int i0 = Math.min((int) position, srcSize - 2);
+                index[i] = Math.max(0, i0);
+                fraction[i] = srcSize < 2 ? 0 : position - index[i];
+            }
+        }
+
+        void processRows(int fromRow, int toRow) {
+            final float[] coefficients = mCoefficients;
+            final int stride = COEFFICIENTS * mSrcWidth;
+            // a source of a single column or row interpolates with itself
+            final int nextColumn = mSrcWidth > 1 ? COEFFICIENTS : 0;
+            final int nextRow = mSrcHeight > 1 ? stride : 0;
+            final float overlay = mOverlayAlpha / 255f;
+            // the coefficients of the current output row, interpolated vertically once
+            float[] row = new float[stride];
+            for (int y = fromRow; y < toRow; y++) {
+                int top = mY0[y] * stride;
+                int bottom = top + nextRow;
+                float fy = mFy[y];
+                for (int i = 0; i < stride; i++) {
+                    row[i] = coefficients[top + i]
+                            + (coefficients[bottom + i] - coefficients[top + i]) * fy;
+                }
+                int out = y * mWidth;
+                for (int x = 0; x < mWidth; x++, out++) {
+                    int left = COEFFICIENTS * mX0[x];
+                    int right = left + nextColumn;
+                    float fx = mFx[x];
+                    int guidePixel = mGuide[out];
+                    float l = luma(guidePixel);
+                    int pixel = 0xff000000;
+                    for (int c = 0; c < 3; c++) {
+                        float a = row[left + 2 * c] + (row[right + 2 * c] - row[left + 2 * c]) * fx;
+                        float b = row[left + 2 * c + 1]
+                                + (row[right + 2 * c + 1] - row[left + 2 * c + 1]) * fx;
+                        float value = a * l + b;
+                        value = value < 0 ? 0 : value > 255 ? 255 : value;
+                        if (overlay != 0) {
+                            value += (((guidePixel >> (16 - 8 * c)) & 0xff) - value) * overlay;
+                        }
+                        pixel |= (int) (value + 0.5f) << (16 - 8 * c);
+                    }
+                    mDst[out] = pixel;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows [mFrom, mTo) of a pass, split in halves down to mBandRows.
+     */
+    private static class Band extends RecursiveAction {
+        private final Pass mPass;
+        private final int mFrom;
+        private final int mTo;
+        private final int mBandRows;
+
+        Band(Pass pass, int from, int to, int bandRows) {
+            mPass = pass;
+            mFrom = from;
+            mTo = to;
+            mBandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mBandRows) {
+                mPass.processRows(mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new Band(mPass, mFrom, middle, mBandRows),
+                    new Band(mPass, middle, mTo, mBandRows));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.HttpEncoding;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link HttpEncoding} sending the request body with Content-Encoding: gzip through a
+ * {@link ReusableGzipOutputStream}. One instance is used per request, it keeps the numbers of
+ * the last encoded body.
+ */
+public class GzipRequestEncoding implements HttpEncoding {
+    private long mRawBytes;
+    private long mCompressedBytes;
+    private long mDeflateNanos;
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public void encode(StreamingContent content, OutputStream out) throws IOException {
+        ReusableGzipOutputStream gzipOut = new ReusableGzipOutputStream(out);
+        content.writeTo(gzipOut);
+        gzipOut.finish();
+        mRawBytes = gzipOut.getRawBytes();
+        mCompressedBytes = gzipOut.getCompressedBytes();
+        mDeflateNanos = gzipOut.getDeflateNanos();
+    }
+
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    public long getDeflateNanos() {
+        return mDeflateNanos;
+    }
+}
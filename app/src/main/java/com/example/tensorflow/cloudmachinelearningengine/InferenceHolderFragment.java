@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.app.Fragment;
+import android.app.FragmentManager;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Headless retained fragment holding the inference state across configuration changes: the
+ * {@link InferenceScheduler}, the {@link CMLEHandler} with its last result and in-flight
+ * requests, and the last capture. It is only destroyed when the user really leaves, which
+ * cancels whatever is still running.
+ */
+public class InferenceHolderFragment extends Fragment {
+    static final String TAG = "InferenceHolderFragment";
+
+    // inference requests running at the same time, and waiting for a slot
+    private static final int MAX_INFLIGHT_REQUESTS = 2;
+    private static final int MAX_QUEUED_REQUESTS = 8;
+
+    private InferenceScheduler mScheduler;
+    private CMLEHandler mCMLEHandler;
+
+    // cropped capture of the camera handler of the previous view or session, if any
+    private Bitmap mLastCapture;
+
+    // persists the results for the next cold start
+    private SessionStore mSessionStore;
+    private int mSelectedStyle = -1;
+    private long mRestoreMs;
+    // told about the previous session if it is restored while a view is showing
+    private SessionListener mSessionListener;
+    private boolean mDestroyed;
+
+    /**
+     * Shows the capture and the style of the previous session, restored after the view was
+     * created.
+     */
+    public interface SessionListener {
+        void onSessionRestored(Bitmap capture, int selectedStyle);
+    }
+
+    // stylizes existing images in the background, jobs survive the process
+    private BatchStylizer mBatchStylizer;
+
+    // finds the holder of the activity, adding it on first use. Adding commits immediately,
+    // so the first call must not come from within a fragment transaction, e.g. a fragment's
+    // lifecycle callback; the activity makes it from onCreate.
+    public static InferenceHolderFragment getInstance(FragmentManager fragmentManager) {
+        InferenceHolderFragment holder =
+                (InferenceHolderFragment) fragmentManager.findFragmentByTag(TAG);
+        if (holder == null) {
+            holder = new InferenceHolderFragment();
+            fragmentManager.beginTransaction().add(holder, TAG).commitNow();
+        }
+        return holder;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+
+        mScheduler = new InferenceScheduler(MAX_INFLIGHT_REQUESTS, MAX_QUEUED_REQUESTS);
+        mCMLEHandler = new CMLEHandler(getActivity());
+        // authenticate service account using json file
+        mCMLEHandler.getCMLECredentials();
+        // set up CMLE project path, request json and engine instance
+        mCMLEHandler.setupCMLERequest();
+
+        // a new holder means a cold start, pick up the previous session without holding up
+        // the first frame
+        mSessionStore = new SessionStore(getActivity().getFilesDir());
+        mSessionStore.restoreAsync(this::onSessionRestored);
+        mCMLEHandler.setResultListener(new CMLEHandler.ResultListener() {
+            @Override
+            public void onResult(int style, Bitmap source, Bitmap result) {
+                mSelectedStyle = style;
+                mSessionStore.saveAsync(style, source, result);
+            }
+        });
+
+        mBatchStylizer = new BatchStylizer(getActivity().getContentResolver(), mCMLEHandler,
+                mScheduler, getActivity().getFilesDir());
+        mBatchStylizer.resumePending();
+    }
+
+    // on the main thread, anything from this session already takes precedence
+    private void onSessionRestored(SessionStore.Session session) {
+        if (mDestroyed) {
+            return;
+        }
+        mRestoreMs = session.restoreMs;
+        mCMLEHandler.restoreResult(session.latestResult);
+        if (mSelectedStyle < 0) {
+            mSelectedStyle = session.selectedStyle;
+        }
+        if (mSessionListener != null) {
+            mSessionListener.onSessionRestored(session.capture, mSelectedStyle);
+        } else if (mLastCapture == null) {
+            mLastCapture = session.capture;
+        }
+    }
+
+    public void setSessionListener(SessionListener sessionListener) {
+        mSessionListener = sessionListener;
+    }
+
+    public InferenceScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public CMLEHandler getCMLEHandler() {
+        return mCMLEHandler;
+    }
+
+    public BatchStylizer getBatchStylizer() {
+        return mBatchStylizer;
+    }
+
+    // style of the last result, or -1
+    public int getSelectedStyle() {
+        return mSelectedStyle;
+    }
+
+    // time restoring the previous session took on cold start
+    public long getRestoreMs() {
+        return mRestoreMs;
+    }
+
+    public Bitmap getLastCapture() {
+        return mLastCapture;
+    }
+
+    public void setLastCapture(Bitmap lastCapture) {
+        mLastCapture = lastCapture;
+    }
+
+    // prints the scheduler and the handler state, see MainStylizerActivity#dump
+    public void dumpState(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("restoreMs=" + mRestoreMs + " selectedStyle=" + mSelectedStyle
+                + " hasLastCapture=" + (mLastCapture != null));
+        writer.print(prefix);
+        writer.println("scheduler:");
+        CMLEHandler.printIndented(prefix + "  ", mScheduler.toString(), writer);
+        mCMLEHandler.dumpState(prefix, writer);
+    }
+
+    @Override
+    public void onDestroy() {
+        // not a configuration change: the user has left, nobody will see what is in flight
+        Log.d(TAG, "inference scheduler:\n" + mScheduler);
+        mScheduler.shutdown();
+        mCMLEHandler.shutdown();
+        mSessionStore.shutdown();
+        mBatchStylizer.shutdown();
+        mDestroyed = true;
+        mLastCapture = null;
+        super.onDestroy();
+    }
+}
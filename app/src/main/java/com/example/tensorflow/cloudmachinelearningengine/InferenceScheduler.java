@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs inference work by priority with a global limit on jobs in flight.
+ *
+ * Queued jobs are bounded as a whole. When the queue is full, a new job evicts the newest
+ * queued job of a lower priority class, otherwise it is rejected. When all slots are busy, a
+ * new interactive job also preempts the newest running job of a lower class. Preemption is
+ * cooperative: the job is marked cancelled and has to check {@link Task#isCancelled()}, or
+ * return early from a {@link Task#setCancelListener cancel listener}, to free its slot.
+ */
+public class InferenceScheduler {
+    private static final String TAG = "InferenceScheduler";
+
+    // a user is waiting for the result, e.g. a tapped style
+    public static final int PRIORITY_INTERACTIVE = 0;
+    // likely to be asked for soon, e.g. previews of other styles
+    public static final int PRIORITY_SPECULATIVE = 1;
+    // nobody is waiting, e.g. prefetches and retries
+    public static final int PRIORITY_BACKGROUND = 2;
+    private static final int NUM_PRIORITIES = 3;
+
+    private static final String[] PRIORITY_NAMES = {"interactive", "speculative", "background"};
+
+    /**
+     * Work run by the scheduler, given its task so it can stop early once cancelled.
+     */
+    public interface Job {
+        void run(Task task);
+    }
+
+    /**
+     * Handle of a submitted job.
+     */
+    public static class Task {
+        private final int mPriority;
+        private final String mName;
+        private final Job mJob;
+        private final long mEnqueuedNs = System.nanoTime();
+        // counted down once the job ran, or was dropped without running
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mCancelled;
+        // guarded by this
+        private Runnable mCancelListener;
+
+        Task(int priority, String name, Job job) {
+            mPriority = priority;
+            mName = name;
+            mJob = job;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public void cancel() {
+            Runnable listener;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                listener = mCancelListener;
+            }
+            if (listener != null) {
+                listener.run();
+            }
+        }
+
+        /**
+         * Runs the listener on the cancelling thread once the task is cancelled, e.g. to stop
+         * waiting for work the job handed on. Runs it at once if the task already is.
+         */
+        public void setCancelListener(Runnable listener) {
+            synchronized (this) {
+                mCancelListener = listener;
+                if (!mCancelled) {
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        // waits until the job returned, or was evicted, cancelled or shut down before it ran
+        public void awaitDone() throws InterruptedException {
+            mDone.await();
+        }
+    }
+
+    private final int mMaxInFlight;
+    private final int mMaxQueued;
+
+    private final Object mLock = new Object();
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Task>[] mQueues = new ArrayDeque[NUM_PRIORITIES];
+    private final List<Task> mRunning = new ArrayList<>();
+    private boolean mShutdown;
+
+    // metrics, per priority class
+    private final LatencyStats[] mWaitTimeMs = new LatencyStats[NUM_PRIORITIES];
+    private final long[] mSubmitted = new long[NUM_PRIORITIES];
+    private final long[] mRejected = new long[NUM_PRIORITIES];
+    private final long[] mEvicted = new long[NUM_PRIORITIES];
+    private final long[] mPreempted = new long[NUM_PRIORITIES];
+    private final long[] mCompleted = new long[NUM_PRIORITIES];
+
+    /**
+     * @param maxInFlight jobs running at the same time, each on its own worker thread
+     * @param maxQueued   jobs waiting for a slot, over all priority classes
+     */
+    public InferenceScheduler(int maxInFlight, int maxQueued) {
+        mMaxInFlight = maxInFlight;
+        mMaxQueued = maxQueued;
+        for (int i = 0; i < NUM_PRIORITIES; i++) {
+            mQueues[i] = new ArrayDeque<>();
+            mWaitTimeMs[i] = new LatencyStats();
+        }
+        for (int i = 0; i < maxInFlight; i++) {
+            Thread worker = new Thread(this::runWorker, "InferenceScheduler-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @return its task, or null if it was rejected because the queue is full
+     */
+    public Task submit(int priority, String name, Job job) {
+        Task task = new Task(priority, name, job);
+        synchronized (mLock) {
+            mSubmitted[priority]++;
+            if (mShutdown) {
+                mRejected[priority]++;
+                return null;
+            }
+            if (getQueuedLocked() >= mMaxQueued) {
+                Task victim = newestQueuedBelow(priority);
+                if (victim == null) {
+                    mRejected[priority]++;
+                    return null;
+                }
+                mQueues[victim.mPriority].removeLastOccurrence(victim);
+                victim.cancel();
+                victim.mDone.countDown();
+                mEvicted[victim.mPriority]++;
+            }
+            if (priority == PRIORITY_INTERACTIVE && mRunning.size() >= mMaxInFlight
+                    && mQueues[PRIORITY_INTERACTIVE].isEmpty()) {
+                Task victim = newestRunningBelow(priority);
+                if (victim != null) {
+                    victim.cancel();
+                    mPreempted[victim.mPriority]++;
+                }
+            }
+            mQueues[priority].addLast(task);
+            mLock.notify();
+        }
+        return task;
+    }
+
+    // newest queued task of the lowest class below the given priority
+    private Task newestQueuedBelow(int priority) {
+        for (int i = NUM_PRIORITIES - 1; i > priority; i--) {
+            if (!mQueues[i].isEmpty()) {
+                return mQueues[i].peekLast();
+            }
+        }
+        return null;
+    }
+
+    // running task of the lowest class below the given priority, the newest one among equals
+    private Task newestRunningBelow(int priority) {
+        Task victim = null;
+        for (Task task : mRunning) {
+            if (task.mPriority > priority && !task.mCancelled
+                    && (victim == null || task.mPriority >= victim.mPriority)) {
+                victim = task;
+            }
+        }
+        return victim;
+    }
+
+    private int getQueuedLocked() {
+        int queued = 0;
+        for (ArrayDeque<Task> queue : mQueues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    private void runWorker() {
+        while (true) {
+            Task task = null;
+            synchronized (mLock) {
+                while (!mShutdown && (task = pollLocked()) == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (task == null) {
+                    return;
+                }
+                mRunning.add(task);
+                mWaitTimeMs[task.mPriority].add(
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.mEnqueuedNs));
+            }
+            try {
+                if (!task.mCancelled) {
+                    task.mJob.run(task);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Job " + task.getName() + " failed", e);
+            } finally {
+                synchronized (mLock) {
+                    mRunning.remove(task);
+                    mCompleted[task.mPriority]++;
+                }
+                task.mDone.countDown();
+            }
+        }
+    }
+
+    private Task pollLocked() {
+        for (ArrayDeque<Task> queue : mQueues) {
+            Task task = queue.pollFirst();
+            if (task != null) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    // cancels everything queued or running and stops the workers once they are idle
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (ArrayDeque<Task> queue : mQueues) {
+                for (Task task : queue) {
+                    task.cancel();
+                    task.mDone.countDown();
+                }
+                queue.clear();
+            }
+            for (Task task : mRunning) {
+                task.cancel();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    public int getQueueDepth(int priority) {
+        synchronized (mLock) {
+            return mQueues[priority].size();
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (mLock) {
+            return mRunning.size();
+        }
+    }
+
+    public LatencyStats getWaitTimeMs(int priority) {
+        return mWaitTimeMs[priority];
+    }
+
+    public long getRejectedCount(int priority) {
+        synchronized (mLock) {
+            return mRejected[priority];
+        }
+    }
+
+    public long getEvictedCount(int priority) {
+        synchronized (mLock) {
+            return mEvicted[priority];
+        }
+    }
+
+    public long getPreemptedCount(int priority) {
+        synchronized (mLock) {
+            return mPreempted[priority];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (mLock) {
+            builder.append("in flight=").append(mRunning.size()).append('/').append(mMaxInFlight)
+                    .append(" queued=").append(getQueuedLocked()).append('/').append(mMaxQueued)
+                    .append('\n');
+            for (int i = 0; i < NUM_PRIORITIES; i++) {
+                builder.append(PRIORITY_NAMES[i])
+                        .append(": depth=").append(mQueues[i].size())
+                        .append(" submitted=").append(mSubmitted[i])
+                        .append(" completed=").append(mCompleted[i])
+                        .append(" rejected=").append(mRejected[i])
+                        .append(" evicted=").append(mEvicted[i])
+                        .append(" preempted=").append(mPreempted[i])
+                        .append(" wait ").append(mWaitTimeMs[i])
+                        .append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.Arrays;
+
+/**
+ * Thread-safe collection of latency samples with percentile queries. Only the latest samples
+ * are kept, in a ring buffer of a fixed capacity, so a long session or a stats object that is
+ * never cleared takes bounded memory; the mean and the percentiles are over those samples.
+ * The sorted copy for percentiles is reused until the next sample comes in.
+ */
+public class LatencyStats {
+    // enough for stable p99s, see the constructor with a capacity for offline runs
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final long[] mSamples;
+    private final long[] mSorted;
+    // next slot to write, the oldest sample once the buffer is full
+    private int mNext;
+    private int mSize;
+    private long mCount;
+    private long mSum;
+    private boolean mSortedValid;
+
+    public LatencyStats() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity samples kept, e.g. the number of requests of a load run to keep them all
+     */
+    public LatencyStats(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mSamples = new long[capacity];
+        mSorted = new long[capacity];
+    }
+
+    public synchronized void add(long latency) {
+        if (mSize == mSamples.length) {
+            mSum -= mSamples[mNext];
+        } else {
+            mSize++;
+        }
+        mSamples[mNext] = latency;
+        mNext = (mNext + 1) % mSamples.length;
+        mSum += latency;
+        mCount++;
+        mSortedValid = false;
+    }
+
+    // samples added since the last clear, including those no longer kept
+    public synchronized int getCount() {
+        return (int) Math.min(Integer.MAX_VALUE, mCount);
+    }
+
+    public synchronized long getMean() {
+        return mSize == 0 ? 0 : mSum / mSize;
+    }
+
+    /**
+     * @param percentile between 0 and 100, e.g. 99.9
+     * @return the nearest-rank percentile of the kept samples, or 0 without samples
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mSize == 0) {
+            return 0;
+        }
+        if (!mSortedValid) {
+            System.arraycopy(mSamples, 0, mSorted, 0, mSize);
+            Arrays.sort(mSorted, 0, mSize);
+            mSortedValid = true;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * mSize);
+        return mSorted[Math.max(0, Math.min(mSize, rank) - 1)];
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mSize = 0;
+        mCount = 0;
+        mSum = 0;
+        mSortedValid = false;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + mCount + " mean=" + getMean() + " p50=" + getPercentile(50)
+                + " p99=" + getPercentile(99) + " p999=" + getPercentile(99.9);
+    }
+}
@@ -16,9 +16,13 @@
 
 package com.example.tensorflow.cloudmachinelearningengine;
 
+import android.app.Fragment;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 
 public class MainStylizerActivity extends AppCompatActivity {
 
@@ -26,13 +30,42 @@ public class MainStylizerActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        // overlaps class loading of what comes next with the layout inflation
+        ClassPreloader.start();
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.main_activity);
+        // added before the UI fragment, which picks it up while its view is created
+        InferenceHolderFragment.getInstance(getFragmentManager());
         if (null == savedInstanceState) {
             getFragmentManager().beginTransaction()
                     .replace(R.id.container, MainStylizerFragment.newInstance())
                     .commit();
         }
     }
+
+    // adb shell dumpsys activity com.example.tensorflow.cloudmachinelearningengine
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        String innerPrefix = prefix + "  ";
+        writer.print(prefix);
+        writer.println("Stylizer:");
+        writer.print(prefix);
+        writer.println(" memory:");
+        MemoryGovernor.getInstance(this).dumpState(innerPrefix, writer);
+        InferenceHolderFragment holder = (InferenceHolderFragment)
+                getFragmentManager().findFragmentByTag(InferenceHolderFragment.TAG);
+        if (holder != null) {
+            writer.print(prefix);
+            writer.println(" inference:");
+            holder.dumpState(innerPrefix, writer);
+        }
+        Fragment fragment = getFragmentManager().findFragmentById(R.id.container);
+        if (fragment instanceof MainStylizerFragment) {
+            writer.print(prefix);
+            writer.println(" ui:");
+            ((MainStylizerFragment) fragment).dumpState(innerPrefix, writer);
+        }
+    }
 }
@@ -18,8 +18,11 @@ package com.example.tensorflow.cloudmachinelearningengine;
 
 import android.app.Activity;
 import android.app.Fragment;
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v13.app.FragmentCompat;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -29,10 +32,12 @@ import android.view.MotionEvent;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -71,8 +76,20 @@ public class MainStylizerFragment extends Fragment
     
     private CMLEHandler mCMLEHandler;
 
+    // runs the inference work of the carousel and the handlers by priority
+    private InferenceScheduler mScheduler;
+
+    // stylizes a tiny copy of each capture with all styles for the carousel
+    private StylePreviewer mStylePreviewer;
+
+    // keeps the scheduler, the CMLE handler and the last capture across rotations
+    private InferenceHolderFragment mInferenceHolder;
+
     private CameraHandler mCameraHandler;
 
+    // tracks and trims the bitmaps held by the handlers and the carousel
+    private MemoryGovernor mMemoryGovernor;
+
     /**
      * MainStylizerFragment
      */
@@ -101,11 +118,15 @@ public class MainStylizerFragment extends Fragment
         //  set up switch camera button click event
         ImageButton switchCameraButton = view.findViewById(R.id.switch_camera);
 
-        mCMLEHandler = new CMLEHandler(getActivity(), mImageView);
+        mInferenceHolder = InferenceHolderFragment.getInstance(getFragmentManager());
+        mCMLEHandler = mInferenceHolder.getCMLEHandler();
+        mScheduler = mInferenceHolder.getScheduler();
+        // the holder has set up the CMLE request, get the connection and the model ready
+        mCMLEHandler.warmUp(mScheduler);
 
         // carousel of thumbnails
         mHorizontalRecyclerView = view.findViewById(R.id.horizontal_recycler_view);
-        mCarousel = new Carousel(getActivity(), mCMLEHandler);
+        mCarousel = new Carousel(getActivity(), mCMLEHandler, mScheduler);
         LinearLayoutManager horizontalLayoutManager = new LinearLayoutManager(mActivity, LinearLayoutManager.HORIZONTAL, false);
         mHorizontalRecyclerView.setLayoutManager(horizontalLayoutManager);
         mHorizontalRecyclerView.setAdapter(mCarousel);
@@ -114,10 +135,53 @@ public class MainStylizerFragment extends Fragment
         mCameraHandler = new CameraHandler(getActivity(), mImageView, mTextureView);
 
         mCMLEHandler.setCameraHandler(mCameraHandler);
-        // authenticate service account using json file
-        mCMLEHandler.getCMLECredentials();
-        // set up CMLE project path, request json and engine instance
-        mCMLEHandler.setupCMLERequest();
+        // encode every capture for the requests ahead of the first tap, the restored one too
+        mCameraHandler.addOnCaptureListener(mCMLEHandler.getCaptureEncoder());
+        mCameraHandler.addOnCaptureListener(mCMLEHandler.getCaptureIndex());
+
+        // bring back the capture and the result from before a rotation, the result on top
+        Bitmap lastCapture = mInferenceHolder.getLastCapture();
+        if (lastCapture != null) {
+            mCameraHandler.restoreCroppedBitmap(lastCapture);
+            mInferenceHolder.setLastCapture(null);
+        }
+        mCMLEHandler.attach(mActivity, mImageView);
+        mStylePreviewer = new StylePreviewer(mScheduler, mCMLEHandler, mCarousel);
+        mCameraHandler.addOnCaptureListener(mStylePreviewer);
+        if (mInferenceHolder.getSelectedStyle() >= 0) {
+            mHorizontalRecyclerView.scrollToPosition(mInferenceHolder.getSelectedStyle());
+        }
+        // on a cold start the previous session is usually restored only after this
+        mInferenceHolder.setSessionListener(new InferenceHolderFragment.SessionListener() {
+            @Override
+            public void onSessionRestored(Bitmap capture, int selectedStyle) {
+                if (capture != null && mCameraHandler.getCroppedBitmap() == null) {
+                    mCameraHandler.restoreCroppedBitmap(capture);
+                }
+                if (selectedStyle >= 0) {
+                    mHorizontalRecyclerView.scrollToPosition(selectedStyle);
+                }
+            }
+        });
+
+        // how soon the first frame is on screen after a cold start, SessionStore logs its restore
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.d(TAG, "first frame " + (SystemClock.elapsedRealtime()
+                        - Process.getStartElapsedRealtime()) + "ms after process start");
+                return true;
+            }
+        });
+
+        // register everything that holds bitmaps with the memory governor
+        mMemoryGovernor = MemoryGovernor.getInstance(mActivity);
+        mMemoryGovernor.register(mCarousel);
+        mMemoryGovernor.register(mCameraHandler);
+        mMemoryGovernor.register(mCameraHandler.getZslRingBuffer());
+        mMemoryGovernor.register(mCMLEHandler);
+        mMemoryGovernor.register(mCMLEHandler.getCaptureIndex());
 
         // Listener for Switch cameras button
         switchCameraButton.setOnClickListener(new View.OnClickListener() {
@@ -136,6 +200,24 @@ public class MainStylizerFragment extends Fragment
         });
     }
 
+    @Override
+    public void onDestroyView() {
+        // the holder outlives this view, hand it what the next view should show
+        mInferenceHolder.setLastCapture(mCameraHandler.getCroppedBitmap());
+        mInferenceHolder.setSessionListener(null);
+        mCMLEHandler.detach();
+        mCameraHandler.removeOnCaptureListener(mStylePreviewer);
+        mCameraHandler.removeOnCaptureListener(mCMLEHandler.getCaptureEncoder());
+        mCameraHandler.removeOnCaptureListener(mCMLEHandler.getCaptureIndex());
+        mStylePreviewer.cancel();
+        mMemoryGovernor.unregister(mCarousel);
+        mMemoryGovernor.unregister(mCameraHandler);
+        mMemoryGovernor.unregister(mCameraHandler.getZslRingBuffer());
+        mMemoryGovernor.unregister(mCMLEHandler);
+        mMemoryGovernor.unregister(mCMLEHandler.getCaptureIndex());
+        super.onDestroyView();
+    }
+
     @Override
     public boolean onTouch(View v, MotionEvent event) {
         int id = v.getId();
@@ -161,6 +243,7 @@ public class MainStylizerFragment extends Fragment
     @Override
     public void onResume() {
         super.onResume();
+        mCMLEHandler.setPaused(false);
         mCameraHandler.startBackgroundThread();
 
         // When the screen is turned off and turned back on, the SurfaceTexture is already
@@ -176,11 +259,24 @@ public class MainStylizerFragment extends Fragment
 
     @Override
     public void onPause() {
+        mCMLEHandler.setPaused(true);
         mCameraHandler.closeCamera();
         mCameraHandler.stopBackgroundThread();
         super.onPause();
     }
 
+    // prints the camera state, see MainStylizerActivity#dump
+    public void dumpState(String prefix, PrintWriter writer) {
+        if (mCameraHandler == null) {
+            writer.print(prefix);
+            writer.println("no view");
+            return;
+        }
+        writer.print(prefix);
+        writer.println("styles=" + mCarousel.getItemCount() + " resumed=" + isResumed());
+        mCameraHandler.dumpState(prefix, writer);
+    }
+
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
      * {@link TextureView}.
@@ -196,7 +292,7 @@ public class MainStylizerFragment extends Fragment
 
         @Override
         public void onSurfaceTextureSizeChanged(SurfaceTexture texture, int width, int height) {
-            //configureTransform(width, height);
+            mCameraHandler.configureTransform(width, height);
         }
 
         @Override
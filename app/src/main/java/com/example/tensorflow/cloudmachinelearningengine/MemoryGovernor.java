@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Central bookkeeping of the bytes held by bitmap caches, pools and buffers in the app.
+ * Consumers register themselves and are trimmed tier by tier, either when the system reports
+ * memory pressure through {@link ComponentCallbacks2} or when their sum exceeds a budget derived
+ * from {@link ActivityManager#getMemoryClass()}.
+ */
+public class MemoryGovernor implements ComponentCallbacks2 {
+    /**
+     * Tag for the {@link Log}.
+     */
+    private static final String TAG = "MemoryGovernor";
+
+    /**
+     * Eviction tiers. Lower tiers are trimmed first.
+     */
+    // content that can be re-created on demand, e.g. decoded style thumbnails
+    public static final int TIER_CACHE = 0;
+    // reusable buffers that only save allocations
+    public static final int TIER_POOL = 1;
+    // content currently shown to the user, e.g. the capture and the stylized result
+    public static final int TIER_ACTIVE = 2;
+
+    // fraction (1/n) of the per-app heap limit that registered consumers may hold together
+    private static final int BUDGET_DIVISOR = 4;
+    // low-RAM devices get a tighter share
+    private static final int LOW_RAM_BUDGET_DIVISOR = 8;
+
+    /**
+     * Anything that holds a significant amount of memory which it can give back on request.
+     */
+    public interface MemoryConsumer {
+        // name used in logs and diagnostics
+        String getName();
+
+        // one of the TIER_* constants
+        int getTier();
+
+        // bytes currently held
+        long getSizeBytes();
+
+        // release memory until no more than maxBytes are held
+        void trimToSize(long maxBytes);
+    }
+
+    private static MemoryGovernor sInstance;
+
+    private final List<MemoryConsumer> mConsumers = new CopyOnWriteArrayList<>();
+
+    // global budget for all registered consumers, in bytes
+    private final long mBudgetBytes;
+
+    // last trim level reported by the system
+    private volatile int mLastTrimLevel;
+
+    private MemoryGovernor(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int divisor = activityManager.isLowRamDevice() ? LOW_RAM_BUDGET_DIVISOR : BUDGET_DIVISOR;
+        mBudgetBytes = (long) activityManager.getMemoryClass() * 1024 * 1024 / divisor;
+        Log.d(TAG, "memory budget: " + mBudgetBytes);
+    }
+
+    public static synchronized MemoryGovernor getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new MemoryGovernor(appContext);
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    public void register(MemoryConsumer consumer) {
+        if (!mConsumers.contains(consumer)) {
+            mConsumers.add(consumer);
+        }
+        enforceBudget();
+    }
+
+    public void unregister(MemoryConsumer consumer) {
+        mConsumers.remove(consumer);
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public int getLastTrimLevel() {
+        return mLastTrimLevel;
+    }
+
+    public List<MemoryConsumer> getConsumers() {
+        return mConsumers;
+    }
+
+    // bytes held by all registered consumers
+    public long getTotalBytes() {
+        long total = 0;
+        for (MemoryConsumer consumer : mConsumers) {
+            total += consumer.getSizeBytes();
+        }
+        return total;
+    }
+
+    // prints the budget and what each consumer holds, i.e. the cache and pool stats
+    public void dumpState(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("budget=" + mBudgetBytes + " total=" + getTotalBytes()
+                + " lastTrimLevel=" + mLastTrimLevel);
+        for (MemoryConsumer consumer : mConsumers) {
+            writer.print(prefix);
+            writer.println("  " + consumer.getName() + " tier=" + consumer.getTier()
+                    + " bytes=" + consumer.getSizeBytes());
+        }
+    }
+
+    /**
+     * Trims consumers, lowest tier first, until the total is back under the budget. Consumers
+     * should call this after they grow.
+     */
+    public synchronized void enforceBudget() {
+        long excess = getTotalBytes() - mBudgetBytes;
+        for (int tier = TIER_CACHE; tier <= TIER_ACTIVE && excess > 0; tier++) {
+            for (MemoryConsumer consumer : mConsumers) {
+                if (consumer.getTier() != tier || excess <= 0) {
+                    continue;
+                }
+                long size = consumer.getSizeBytes();
+                consumer.trimToSize(Math.max(0, size - excess));
+                excess -= size - consumer.getSizeBytes();
+            }
+        }
+        if (excess > 0) {
+            Log.d(TAG, "still over budget by " + excess + " bytes");
+        }
+    }
+
+    // trim every consumer in tiers up to and including maxTier to the given fraction of its size
+    private synchronized void trimTiers(int maxTier, float keepFraction) {
+        for (MemoryConsumer consumer : mConsumers) {
+            if (consumer.getTier() <= maxTier) {
+                long before = consumer.getSizeBytes();
+                consumer.trimToSize((long) (before * keepFraction));
+                Log.d(TAG, "trimmed " + consumer.getName() + ": " + before + " -> "
+                        + consumer.getSizeBytes());
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        Log.d(TAG, "onTrimMemory: " + level);
+        mLastTrimLevel = level;
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            // next in line to be killed: give back everything
+            trimTiers(TIER_ACTIVE, 0f);
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            trimTiers(TIER_POOL, 0f);
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            trimTiers(TIER_CACHE, 0f);
+            trimTiers(TIER_POOL, 0.5f);
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // UI is not visible, nothing in the cache tier is needed until we come back
+            trimTiers(TIER_CACHE, 0f);
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTiers(TIER_POOL, 0f);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimTiers(TIER_CACHE, 0f);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            trimTiers(TIER_CACHE, 0.5f);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side load balancer over several model paths (versions, models or projects), each
+ * served by its own {@link CMLEClient}.
+ *
+ * A target's score is the EWMA latency of its successful requests times (outstanding requests
+ * + 1), and each request goes to the healthy target with the lowest score. Failed requests do
+ * not update the EWMA, so a target failing fast does not attract more traffic. A target is
+ * ejected after consecutive failures, or when its EWMA latency is several times the median of
+ * the healthy targets. After the ejection period a single probe request is let through. If
+ * the probe succeeds the target is readmitted, otherwise it is ejected again for twice as long.
+ */
+public class ModelRouter implements Predictor {
+
+    // weight of the newest sample in the latency EWMA
+    private static final double EWMA_ALPHA = 0.3;
+    // initial EWMA of a target without samples, optimistic so new targets get tried
+    private static final double INITIAL_EWMA_MS = 1;
+
+    // a target is ejected once this many requests failed in a row
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    // a target is ejected once its EWMA exceeds this multiple of the healthy median
+    private static final double SLOW_EJECTION_FACTOR = 3.0;
+    // samples a target needs before it can be ejected for being slow
+    private static final int MIN_SAMPLES_FOR_SLOW_EJECTION = 5;
+
+    private static final long BASE_EJECTION_MS = 1000;
+    private static final long MAX_EJECTION_MS = 60000;
+
+    private enum State { HEALTHY, EJECTED, PROBING }
+
+    /**
+     * One routing target and its statistics.
+     */
+    public static class Target {
+        private final CMLEClient mClient;
+        private final LatencyStats mLatencyMs = new LatencyStats();
+
+        // written under the router's lock, read without it by isHealthy()
+        private volatile State mState = State.HEALTHY;
+        private double mEwmaMs = INITIAL_EWMA_MS;
+        private int mOutstanding;
+        private int mConsecutiveFailures;
+        private long mRequests;
+        private long mFailures;
+        private long mEjections;
+        private long mEjectionMs = BASE_EJECTION_MS;
+        private long mEjectedUntilNs;
+
+        Target(CMLEClient client) {
+            mClient = client;
+        }
+
+        public String getModelPath() {
+            return mClient.getModelPath();
+        }
+
+        public LatencyStats getLatencyMs() {
+            return mLatencyMs;
+        }
+
+        // whether the target takes regular traffic, i.e. is neither ejected nor being probed
+        public boolean isHealthy() {
+            return mState == State.HEALTHY;
+        }
+
+        private double score() {
+            return mEwmaMs * (mOutstanding + 1);
+        }
+
+        @Override
+        public String toString() {
+            return getModelPath() + " state=" + mState
+                    + String.format(" ewma=%.1fms", mEwmaMs)
+                    + " outstanding=" + mOutstanding + " requests=" + mRequests
+                    + " failures=" + mFailures + " ejections=" + mEjections
+                    + " latency " + mLatencyMs;
+        }
+    }
+
+    private final List<Target> mTargets = new ArrayList<>();
+
+    public ModelRouter(List<CMLEClient> clients) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("ModelRouter needs at least one target.");
+        }
+        for (CMLEClient client : clients) {
+            mTargets.add(new Target(client));
+        }
+    }
+
+    public List<Target> getTargets() {
+        return Collections.unmodifiableList(mTargets);
+    }
+
+    @Override
+    public GoogleApiHttpBody predict(HttpContent content) throws IOException {
+        return predict(select(), content);
+    }
+
+    /**
+     * Picks the target for the next request and counts it as outstanding. Every call must be
+     * followed by {@link #predict(Target, HttpContent)} with the returned target.
+     */
+    public synchronized Target select() {
+        long nowNs = System.nanoTime();
+        Target best = null;
+        for (Target target : mTargets) {
+            if (target.mState == State.EJECTED && nowNs >= target.mEjectedUntilNs
+                    && target.mOutstanding == 0) {
+                // let exactly one probe through
+                target.mState = State.PROBING;
+                best = target;
+                break;
+            }
+            if (target.mState == State.HEALTHY && (best == null || target.score() < best.score())) {
+                best = target;
+            }
+        }
+        if (best == null) {
+            // everything is ejected or probing: fall back to the least bad target
+            for (Target target : mTargets) {
+                if (best == null || target.score() < best.score()) {
+                    best = target;
+                }
+            }
+        }
+        best.mOutstanding++;
+        best.mRequests++;
+        return best;
+    }
+
+    public GoogleApiHttpBody predict(Target target, HttpContent content) throws IOException {
+        long startNs = System.nanoTime();
+        try {
+            GoogleApiHttpBody response = target.mClient.predict(content);
+            onCompleted(target, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs), true);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            onCompleted(target, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs), false);
+            throw e;
+        }
+    }
+
+    private synchronized void onCompleted(Target target, long latencyMs, boolean success) {
+        target.mOutstanding--;
+        if (success) {
+            // failures count towards ejection, not the latency
+            target.mLatencyMs.add(latencyMs);
+            target.mEwmaMs = target.mLatencyMs.getCount() == 1
+                    ? latencyMs : EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * target.mEwmaMs;
+            target.mConsecutiveFailures = 0;
+        } else {
+            target.mFailures++;
+            target.mConsecutiveFailures++;
+        }
+
+        if (target.mState == State.PROBING) {
+            if (success && !isSlow(target)) {
+                target.mState = State.HEALTHY;
+                target.mEjectionMs = BASE_EJECTION_MS;
+            } else {
+                eject(target, Math.min(MAX_EJECTION_MS, target.mEjectionMs * 2));
+            }
+        } else if (target.mState == State.HEALTHY
+                && (target.mConsecutiveFailures >= MAX_CONSECUTIVE_FAILURES || isSlow(target))) {
+            eject(target, target.mEjectionMs);
+        }
+    }
+
+    private void eject(Target target, long ejectionMs) {
+        // never eject the last healthy target
+        int healthy = 0;
+        for (Target other : mTargets) {
+            if (other != target && other.mState == State.HEALTHY) {
+                healthy++;
+            }
+        }
+        if (healthy == 0) {
+            target.mState = State.HEALTHY;
+            return;
+        }
+        target.mState = State.EJECTED;
+        target.mEjections++;
+        target.mEjectionMs = ejectionMs;
+        target.mEjectedUntilNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ejectionMs);
+    }
+
+    // slow compared to the median EWMA of the other healthy targets
+    private boolean isSlow(Target target) {
+        if (target.mLatencyMs.getCount() < MIN_SAMPLES_FOR_SLOW_EJECTION) {
+            return false;
+        }
+        List<Double> others = new ArrayList<>();
+        for (Target other : mTargets) {
+            if (other != target && other.mState == State.HEALTHY
+                    && other.mLatencyMs.getCount() > 0) {
+                others.add(other.mEwmaMs);
+            }
+        }
+        if (others.isEmpty()) {
+            return false;
+        }
+        Double[] sorted = others.toArray(new Double[0]);
+        Arrays.sort(sorted);
+        return target.mEwmaMs > SLOW_EJECTION_FACTOR * sorted[(sorted.length - 1) / 2];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Target target : mTargets) {
+            builder.append(target).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+/**
+ * 64 bit difference hash (dHash) of an image: it is shrunk to 9x8 gray pixels and every bit
+ * tells whether a pixel is brighter than its right neighbour. Small changes of exposure,
+ * framing or noise flip few bits, so the Hamming distance between two hashes measures how
+ * different two scenes look. Pure Java.
+ */
+public class PerceptualHash {
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+
+    private PerceptualHash() {
+    }
+
+    // hash of ARGB pixels, e.g. from Bitmap.getPixels
+    public static long dHash(int[] pixels, int width, int height) {
+        PixelKernel kernel = new PixelKernel(HASH_WIDTH, HASH_HEIGHT);
+        // the whole image, squeezed rather than cropped
+        kernel.setCrop(0, 0, width, height);
+        // far too little work to split
+        kernel.setParallel(false);
+        int[] small = new int[HASH_WIDTH * HASH_HEIGHT];
+        kernel.run(pixels, width, height, small);
+
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++) {
+            for (int x = 0; x < HASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luma(small[y * HASH_WIDTH + x]) > luma(small[y * HASH_WIDTH + x + 1])) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    public static int distance(long hash, long otherHash) {
+        return Long.bitCount(hash ^ otherHash);
+    }
+
+    // integer approximation of the Rec. 601 luma, 0 to 255 * 256
+    private static int luma(int pixel) {
+        return 77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff);
+    }
+}
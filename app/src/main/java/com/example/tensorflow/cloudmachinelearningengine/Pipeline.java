@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A chain of named stages, each with its own bounded input queue and its own worker threads.
+ * An item is handed from stage to stage, and a stage blocks while the queue of the next one is
+ * full, so a slow stage backs up the ones in front of it down to {@link #submit(Object)}.
+ *
+ * Every stage reports its queue depth and its utilization, the share of its threads' time
+ * spent processing rather than waiting for input or for room downstream.
+ */
+public class Pipeline<T> {
+
+    /**
+     * Work of one stage on an item.
+     */
+    public interface Processor<T> {
+        // returns false to drop the item instead of passing it on
+        boolean process(T item) throws Exception;
+    }
+
+    /**
+     * Told when an item leaves the pipeline.
+     */
+    public interface Listener<T> {
+        // stage is null when the item went through all stages, error null unless one was thrown
+        void onFinished(T item, String stage, Throwable error);
+    }
+
+    private class Stage {
+        final String mName;
+        final int mParallelism;
+        final Processor<T> mProcessor;
+        final BlockingQueue<T> mQueue;
+        final List<Thread> mThreads = new ArrayList<>();
+        Stage mNext;
+
+        long mProcessed;
+        long mDropped;
+        long mBusyNanos;
+        long mBlockedNanos;
+
+        Stage(String name, int parallelism, int capacity, Processor<T> processor) {
+            mName = name;
+            mParallelism = parallelism;
+            mProcessor = processor;
+            mQueue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void run() {
+            while (!mShutdown) {
+                T item;
+                try {
+                    item = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long startNs = System.nanoTime();
+                boolean passOn = false;
+                Throwable error = null;
+                try {
+                    passOn = mProcessor.process(item);
+                } catch (Throwable t) {
+                    // errors too, e.g. running out of memory on one item: the item still has to
+                    // be reported and the stage has to keep its thread
+                    error = t;
+                }
+                long processedNs = System.nanoTime();
+                synchronized (this) {
+                    mBusyNanos += processedNs - startNs;
+                    if (passOn) {
+                        mProcessed++;
+                    } else {
+                        mDropped++;
+                    }
+                }
+                if (!passOn) {
+                    mListener.onFinished(item, mName, error);
+                } else if (mNext == null) {
+                    mListener.onFinished(item, null, null);
+                } else {
+                    try {
+                        mNext.mQueue.put(item);
+                    } catch (InterruptedException e) {
+                        mListener.onFinished(item, mName, e);
+                        return;
+                    }
+                    // shut down meanwhile: the next stage will not take it any more
+                    if (mShutdown && mNext.mQueue.remove(item)) {
+                        mListener.onFinished(item, mNext.mName, null);
+                        return;
+                    }
+                    synchronized (this) {
+                        mBlockedNanos += System.nanoTime() - processedNs;
+                    }
+                }
+            }
+        }
+
+        synchronized float getUtilization(long elapsedNs) {
+            return elapsedNs == 0 ? 0 : (float) mBusyNanos / (elapsedNs * mParallelism);
+        }
+    }
+
+    private final List<Stage> mStages = new ArrayList<>();
+    private final Listener<T> mListener;
+    private long mStartNs;
+    private volatile boolean mShutdown;
+
+    public Pipeline(Listener<T> listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Appends a stage. All stages have to be added before {@link #start()}.
+     *
+     * @param parallelism threads working on this stage
+     * @param capacity    items that may wait for this stage
+     */
+    public Pipeline<T> addStage(String name, int parallelism, int capacity,
+                                Processor<T> processor) {
+        Stage stage = new Stage(name, parallelism, capacity, processor);
+        if (!mStages.isEmpty()) {
+            mStages.get(mStages.size() - 1).mNext = stage;
+        }
+        mStages.add(stage);
+        return this;
+    }
+
+    public void start() {
+        mStartNs = System.nanoTime();
+        for (final Stage stage : mStages) {
+            for (int i = 0; i < stage.mParallelism; i++) {
+                Thread thread = new Thread(stage::run, "Pipeline-" + stage.mName + "-" + i);
+                thread.setDaemon(true);
+                stage.mThreads.add(thread);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Hands an item to the first stage, waiting while its queue is full.
+     *
+     * @return false if the pipeline is shut down; the item was not taken and the listener is
+     * not told about it
+     */
+    public boolean submit(T item) throws InterruptedException {
+        if (mShutdown) {
+            return false;
+        }
+        BlockingQueue<T> queue = mStages.get(0).mQueue;
+        queue.put(item);
+        // shut down while waiting for room: take the item back unless it was already drained
+        return !(mShutdown && queue.remove(item));
+    }
+
+    /**
+     * Stops all stages. Items still queued are reported to the listener as dropped, items being
+     * processed are reported once their stage is done with them, later submits are refused.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (Stage stage : mStages) {
+            for (Thread thread : stage.mThreads) {
+                thread.interrupt();
+            }
+        }
+        for (Stage stage : mStages) {
+            List<T> pending = new ArrayList<>();
+            stage.mQueue.drainTo(pending);
+            for (T item : pending) {
+                mListener.onFinished(item, stage.mName, null);
+            }
+        }
+    }
+
+    public int getQueueDepth(String stageName) {
+        for (Stage stage : mStages) {
+            if (stage.mName.equals(stageName)) {
+                return stage.mQueue.size();
+            }
+        }
+        throw new IllegalArgumentException("No stage " + stageName);
+    }
+
+    public float getUtilization(String stageName) {
+        long elapsedNs = System.nanoTime() - mStartNs;
+        for (Stage stage : mStages) {
+            if (stage.mName.equals(stageName)) {
+                return stage.getUtilization(elapsedNs);
+            }
+        }
+        throw new IllegalArgumentException("No stage " + stageName);
+    }
+
+    @Override
+    public String toString() {
+        long elapsedNs = System.nanoTime() - mStartNs;
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : mStages) {
+            synchronized (stage) {
+                builder.append(String.format("%s x%d: depth=%d processed=%d dropped=%d"
+                                + " utilization=%.1f%% blocked=%dms\n",
+                        stage.mName, stage.mParallelism, stage.mQueue.size(), stage.mProcessed,
+                        stage.mDropped, 100 * stage.getUtilization(elapsedNs),
+                        stage.mBlockedNanos / 1000000));
+            }
+        }
+        return builder.toString();
+    }
+}
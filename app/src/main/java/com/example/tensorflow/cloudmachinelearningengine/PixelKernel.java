@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Crops, scales, rotates, flips and blends ARGB pixel buffers (as returned by
+ * Bitmap.getPixels) in a single pass, without intermediate bitmaps. Each destination pixel is
+ * the average of up to {@link #MAX_TAPS} by {@link #MAX_TAPS} of the source pixels it covers,
+ * so downscaling aliases far less than nearest sampling. Rows are split into bands processed on
+ * the common {@link ForkJoinPool}.
+ *
+ * Pure Java, so it is checked and timed on the JVM by the unit tests, see PixelKernelTest.
+ * A kernel may be reused for any number of {@link #run} calls, but not configured while one
+ * is running.
+ */
+public class PixelKernel {
+
+    // bands are not split below this many rows, smaller ones cost more to schedule than to run
+    private static final int MIN_BAND_ROWS = 8;
+    // bands per worker, so a worker that is late does not hold up the whole pass
+    private static final int BANDS_PER_THREAD = 4;
+    // source pixels averaged along each axis at most, larger footprints are sampled evenly
+    private static final int MAX_TAPS = 4;
+
+    private final int mDstWidth;
+    private final int mDstHeight;
+
+    // source rectangle, the centered crop with the aspect of the destination if width is 0
+    private int mCropX;
+    private int mCropY;
+    private int mCropWidth;
+    private int mCropHeight;
+
+    // clockwise, applied to the crop
+    private int mRotation;
+    // applied to the result, after the rotation
+    private boolean mFlipHorizontal;
+    private boolean mFlipVertical;
+
+    // drawn over the result with mOverlayAlpha, the size of the destination
+    private int[] mOverlay;
+    private int mOverlayAlpha;
+
+    private boolean mParallel = true;
+
+    public PixelKernel(int dstWidth, int dstHeight) {
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Empty destination " + dstWidth + "x" + dstHeight);
+        }
+        mDstWidth = dstWidth;
+        mDstHeight = dstHeight;
+    }
+
+    public void setCrop(int x, int y, int width, int height) {
+        mCropX = x;
+        mCropY = y;
+        mCropWidth = width;
+        mCropHeight = height;
+    }
+
+    // one of 0, 90, 180 and 270
+    public void setRotation(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90: " + degrees);
+        }
+        mRotation = ((degrees % 360) + 360) % 360;
+    }
+
+    public void setFlip(boolean horizontal, boolean vertical) {
+        mFlipHorizontal = horizontal;
+        mFlipVertical = vertical;
+    }
+
+    // like drawing the overlay with a Paint of the given alpha over the result; the overlay
+    // may be the destination buffer itself. null for none.
+    public void setOverlay(int[] overlay, int alpha) {
+        mOverlay = overlay;
+        mOverlayAlpha = alpha;
+    }
+
+    // whether to split the pass over the common pool or run it on the calling thread
+    public void setParallel(boolean parallel) {
+        mParallel = parallel;
+    }
+
+    public int getDstWidth() {
+        return mDstWidth;
+    }
+
+    public int getDstHeight() {
+        return mDstHeight;
+    }
+
+    /**
+     * Fills dst, mDstWidth * mDstHeight pixels, from the crop of src.
+     */
+    public void run(int[] src, int srcWidth, int srcHeight, int[] dst) {
+        if (src.length < srcWidth * srcHeight || dst.length < mDstWidth * mDstHeight) {
+            throw new IllegalArgumentException("Buffer smaller than its dimensions");
+        }
+        if (mOverlay != null && mOverlay.length < mDstWidth * mDstHeight) {
+            throw new IllegalArgumentException("Overlay smaller than the destination");
+        }
+        // with a quarter turn destination columns walk along source rows and vice versa
+        boolean swap = mRotation == 90 || mRotation == 270;
+
+        int cropX = mCropX;
+        int cropY = mCropY;
+        int cropWidth = mCropWidth;
+        int cropHeight = mCropHeight;
+        if (cropWidth <= 0 || cropHeight <= 0) {
+            int aspectWidth = swap ? mDstHeight : mDstWidth;
+            int aspectHeight = swap ? mDstWidth : mDstHeight;
+            if ((long) srcWidth * aspectHeight > (long) srcHeight * aspectWidth) {
+                cropHeight = srcHeight;
+                cropWidth = (int) ((long) srcHeight * aspectWidth / aspectHeight);
+            } else {
+                cropWidth = srcWidth;
+                cropHeight = (int) ((long) srcWidth * aspectHeight / aspectWidth);
+            }
+            cropX = (srcWidth - cropWidth) / 2;
+            cropY = (srcHeight - cropHeight) / 2;
+        }
+        if (cropX < 0 || cropY < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX + cropWidth > srcWidth || cropY + cropHeight > srcHeight) {
+            throw new IllegalArgumentException("Crop outside of the source");
+        }
+
+        // a flip of the result mirrors whichever source axis the flipped destination axis feeds
+        boolean mirrorX = (mRotation == 180 || mRotation == 270)
+                ^ (swap ? mFlipVertical : mFlipHorizontal);
+        boolean mirrorY = (mRotation == 90 || mRotation == 180)
+                ^ (swap ? mFlipHorizontal : mFlipVertical);
+
+        Pass pass = new Pass(src, srcWidth, dst, mDstWidth, swap,
+                spans(swap ? mDstHeight : mDstWidth, cropX, cropWidth, mirrorX),
+                spans(swap ? mDstWidth : mDstHeight, cropY, cropHeight, mirrorY),
+                mOverlay, mOverlayAlpha);
+        if (!mParallel) {
+            pass.processRows(0, mDstHeight);
+            return;
+        }
+        int bandRows = Math.max(MIN_BAND_ROWS, mDstHeight
+                / (ForkJoinPool.getCommonPoolParallelism() * BANDS_PER_THREAD));
+        ForkJoinPool.commonPool().invoke(new Band(pass, 0, mDstHeight, bandRows));
+    }
+
+    // source range [start, end) covered by each of count destination pixels along one axis,
+    // as pairs in one array
+    private static int[] spans(int count, int offset, int length, boolean mirror) {
+        int[] spans = new int[2 * count];
+        for (int i = 0; i < count; i++) {
+            int start = (int) ((long) i * length / count);
+            int end = (int) ((long) (i + 1) * length / count);
+            // upscaling, the pixel lies within a single source pixel
+            if (end <= start) {
+                end = start + 1;
+            }
+            if (mirror) {
+                int mirroredStart = length - end;
+                end = length - start;
+                start = mirroredStart;
+            }
+            spans[2 * i] = offset + start;
+            spans[2 * i + 1] = offset + end;
+        }
+        return spans;
+    }
+
+    /**
+     * Everything a pass needs, immutable so bands can run on any thread.
+     */
+    private static class Pass {
+        final int[] mSrc;
+        final int mSrcWidth;
+        final int[] mDst;
+        final int mDstWidth;
+        final boolean mSwap;
+        final int[] mXSpans;
+        final int[] mYSpans;
+        final int[] mOverlay;
+        final int mOverlayAlpha;
+
+        Pass(int[] src, int srcWidth, int[] dst, int dstWidth, boolean swap, int[] xSpans,
+             int[] ySpans, int[] overlay, int overlayAlpha) {
+            mSrc = src;
+            mSrcWidth = srcWidth;
+            mDst = dst;
+            mDstWidth = dstWidth;
+            mSwap = swap;
+            mXSpans = xSpans;
+            mYSpans = ySpans;
+            mOverlay = overlay;
+            mOverlayAlpha = overlayAlpha;
+        }
+
+        void processRows(int fromRow, int toRow) {
+            final int[] src = mSrc;
+            final int srcWidth = mSrcWidth;
+            for (int dy = fromRow; dy < toRow; dy++) {
+                int out = dy * mDstWidth;
+                for (int dx = 0; dx < mDstWidth; dx++, out++) {
+                    int xi = 2 * (mSwap ? dy : dx);
+                    int yi = 2 * (mSwap ? dx : dy);
+                    int x0 = mXSpans[xi];
+                    int x1 = mXSpans[xi + 1];
+                    int y0 = mYSpans[yi];
+                    int y1 = mYSpans[yi + 1];
+
+                    int pixel;
+                    if (x1 - x0 == 1 && y1 - y0 == 1) {
+                        pixel = src[y0 * srcWidth + x0];
+                    } else {
+                        int stepX = (x1 - x0 + MAX_TAPS - 1) / MAX_TAPS;
+                        int stepY = (y1 - y0 + MAX_TAPS - 1) / MAX_TAPS;
+                        int a = 0;
+                        int r = 0;
+                        int g = 0;
+                        int b = 0;
+                        int count = 0;
+                        for (int y = y0; y < y1; y += stepY) {
+                            int row = y * srcWidth;
+                            for (int x = x0; x < x1; x += stepX) {
+                                int p = src[row + x];
+                                a += p >>> 24;
+                                r += (p >> 16) & 0xff;
+                                g += (p >> 8) & 0xff;
+                                b += p & 0xff;
+                                count++;
+                            }
+                        }
+                        int half = count / 2;
+                        pixel = ((a + half) / count) << 24 | ((r + half) / count) << 16
+                                | ((g + half) / count) << 8 | ((b + half) / count);
+                    }
+
+                    if (mOverlay != null) {
+                        pixel = blend(mOverlay[out], pixel, mOverlayAlpha);
+                    }
+                    mDst[out] = pixel;
+                }
+            }
+        }
+    }
+
+    // top over bottom with the given alpha, per channel and rounded
+    static int blend(int top, int bottom, int alpha) {
+        int inverse = 255 - alpha;
+        int a = ((top >>> 24) * alpha + (bottom >>> 24) * inverse + 127) / 255;
+        int r = (((top >> 16) & 0xff) * alpha + ((bottom >> 16) & 0xff) * inverse + 127) / 255;
+        int g = (((top >> 8) & 0xff) * alpha + ((bottom >> 8) & 0xff) * inverse + 127) / 255;
+        int b = ((top & 0xff) * alpha + (bottom & 0xff) * inverse + 127) / 255;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Rows [mFrom, mTo) of a pass, split in halves down to mBandRows.
+     */
+    private static class Band extends RecursiveAction {
+        private final Pass mPass;
+        private final int mFrom;
+        private final int mTo;
+        private final int mBandRows;
+
+        Band(Pass pass, int from, int to, int bandRows) {
+            mPass = pass;
+            mFrom = from;
+            mTo = to;
+            mBandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mBandRows) {
+                mPass.processRows(mFrom, mTo);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new Band(mPass, mFrom, middle, mBandRows),
+                    new Band(mPass, middle, mTo, mBandRows));
+        }
+    }
+}
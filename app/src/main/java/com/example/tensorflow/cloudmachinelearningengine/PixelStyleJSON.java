@@ -22,9 +22,12 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 public class PixelStyleJSON {
-    private static final String STYLE_ENCODE = "b64";
-    private static final String STYLE_WEIGHT = "style_weights";
-    private static final String STYLE_IMAGE_BYTES = "image_bytes";
+    static final String STYLE_ENCODE = "b64";
+    static final String STYLE_WEIGHT = "style_weights";
+    static final String STYLE_IMAGE_BYTES = "image_bytes";
+
+    // input parameters of the TF stylizer model
+    static final int NUM_RAW_STYLES = 32;
 
     ArrayList<HashMap<String, Object>> pixelStyleMapList;
     HashMap<String, Object> pixelStyleMap;
@@ -34,6 +37,17 @@ public class PixelStyleJSON {
         pixelStyleMap = new HashMap<>();
     }
 
+    // Image style could be selected as an array of intensities from multiple existing source
+    // styles but their sum need to add up to 1. In this case for simplicity we're only picking
+    // one style so we just set its corresponding intensity to 1 while others to 0.
+    static Float[] buildStyleWeights(int style_index) {
+        Float[] styleVals = new Float[NUM_RAW_STYLES];
+        for (int i = 0; i < NUM_RAW_STYLES; i++) {
+            styleVals[i] = i == style_index ? 1.00f : 0.0f;
+        }
+        return styleVals;
+    }
+
     protected void setImageBytesAndWeights(String bytes, Float[] w) {
         HashMap<String, String> encodedContent = new HashMap<>();
         encodedContent.put(STYLE_ENCODE, bytes);
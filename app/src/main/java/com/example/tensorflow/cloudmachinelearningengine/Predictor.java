@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
+
+import java.io.IOException;
+
+/**
+ * Anything that can execute a predict request: a single {@link CMLEClient} or a
+ * {@link ModelRouter} spreading requests over several of them.
+ */
+public interface Predictor {
+    GoogleApiHttpBody predict(HttpContent content) throws IOException;
+}
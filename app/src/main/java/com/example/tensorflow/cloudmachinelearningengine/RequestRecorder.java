@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.util.Log;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records sampled CMLE request/response pairs with their timings into a size-capped binary log
+ * that RequestReplayer of the unit test sources can re-issue later. The request body is
+ * re-serialized and everything is written on a single background thread, the caller only
+ * enqueues a record.
+ *
+ * Log format, all values big endian as written by {@link DataOutputStream}:
+ * <pre>
+ * header: int MAGIC, int VERSION
+ * record: long startWallClockMs, int durationMs, int status, UTF path, int style,
+ *         int requestLength, byte[] request, int responseLength, byte[] response
+ * </pre>
+ * status is the HTTP status of the response, or 0 if the request failed without one.
+ */
+public class RequestRecorder {
+    private static final String TAG = "RequestRecorder";
+
+    static final int MAGIC = 0x434D4C45;
+    static final int VERSION = 1;
+
+    static final String LOG_FILE_NAME = "cmle_requests.bin";
+    // the previous log is kept under this name when the current one reaches the cap
+    static final String ROTATED_LOG_FILE_NAME = "cmle_requests.1.bin";
+
+    // cap of a single log file, at most two files exist at a time
+    private static final long MAX_LOG_BYTES = 8 * 1024 * 1024;
+
+    // records waiting to be written, more than this are dropped rather than queued
+    private static final int MAX_PENDING_RECORDS = 4;
+
+    private final File mLogFile;
+    private final File mRotatedLogFile;
+    private final float mSampleRate;
+    private final Random mRandom = new Random();
+    private final ExecutorService mExecutor;
+
+    private long mDroppedRecords;
+
+    /**
+     * @param dir        directory the log is written to
+     * @param sampleRate fraction of requests recorded, between 0 and 1
+     */
+    public RequestRecorder(File dir, float sampleRate) {
+        mLogFile = new File(dir, LOG_FILE_NAME);
+        mRotatedLogFile = new File(dir, ROTATED_LOG_FILE_NAME);
+        mSampleRate = sampleRate;
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_RECORDS),
+                r -> {
+                    Thread thread = new Thread(r, "RequestRecorder");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                });
+    }
+
+    public File getLogFile() {
+        return mLogFile;
+    }
+
+    public synchronized long getDroppedRecords() {
+        return mDroppedRecords;
+    }
+
+    /**
+     * Decides whether the next request is sampled. Cheap enough for the hot path.
+     */
+    public boolean shouldRecord() {
+        return mSampleRate > 0 && mRandom.nextFloat() < mSampleRate;
+    }
+
+    /**
+     * Enqueues a record. Returns immediately, the record is dropped if the writer falls behind.
+     *
+     * @param response the response body, or null if there was none
+     */
+    public void record(final String path, final int style, final HttpContent request,
+                       final long startWallClockMs, final long durationMs, final int status,
+                       final String response) {
+        try {
+            mExecutor.execute(() -> write(path, style, request, startWallClockMs, durationMs,
+                    status, response));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mDroppedRecords++;
+            }
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void write(String path, int style, HttpContent request, long startWallClockMs,
+                       long durationMs, int status, String response) {
+        try {
+            ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+            request.writeTo(requestBytes);
+            byte[] responseBytes = response == null
+                    ? new byte[0] : response.getBytes(StandardCharsets.UTF_8);
+
+            if (mLogFile.length() >= MAX_LOG_BYTES) {
+                if (!mLogFile.renameTo(mRotatedLogFile)) {
+                    Log.d(TAG, "could not rotate " + mLogFile);
+                }
+            }
+            boolean newFile = !mLogFile.exists() || mLogFile.length() == 0;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mLogFile, true)));
+            try {
+                if (newFile) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                out.writeLong(startWallClockMs);
+                out.writeInt((int) durationMs);
+                out.writeInt(status);
+                out.writeUTF(path);
+                out.writeInt(style);
+                out.writeInt(requestBytes.size());
+                requestBytes.writeTo(out);
+                out.writeInt(responseBytes.length);
+                out.write(responseBytes);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "recording failed", e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming gzip compressor that, unlike {@link java.util.zip.GZIPOutputStream}, reuses its
+ * {@link Deflater} and output buffer per thread instead of allocating them for every stream.
+ * It also counts bytes in and out and the time spent deflating, which is the CPU cost of the
+ * compression. {@link #finish()} leaves the wrapped stream open.
+ */
+public class ReusableGzipOutputStream extends FilterOutputStream {
+    private static final byte[] GZIP_HEADER = {
+            (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // fast levels pay off on slow links without costing much CPU on the device
+    private static final int COMPRESSION_LEVEL = 5;
+
+    private static final ThreadLocal<Deflater> sDeflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(COMPRESSION_LEVEL, true);
+        }
+    };
+
+    private static final ThreadLocal<byte[]> sBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final Deflater mDeflater;
+    private final byte[] mBuffer;
+    private final CRC32 mCrc = new CRC32();
+
+    private long mRawBytes;
+    private long mCompressedBytes;
+    private long mDeflateNanos;
+    private boolean mFinished;
+
+    public ReusableGzipOutputStream(OutputStream out) throws IOException {
+        super(out);
+        mDeflater = sDeflaters.get();
+        mDeflater.reset();
+        mBuffer = sBuffers.get();
+        out.write(GZIP_HEADER);
+        mCompressedBytes = GZIP_HEADER.length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        mCrc.update(bytes, off, len);
+        mRawBytes += len;
+        mDeflater.setInput(bytes, off, len);
+        // drain completely, the caller may reuse its array as soon as we return
+        while (!mDeflater.needsInput()) {
+            deflate();
+        }
+    }
+
+    private void deflate() throws IOException {
+        long startNs = System.nanoTime();
+        int count = mDeflater.deflate(mBuffer, 0, mBuffer.length);
+        mDeflateNanos += System.nanoTime() - startNs;
+        if (count > 0) {
+            out.write(mBuffer, 0, count);
+            mCompressedBytes += count;
+        }
+    }
+
+    /**
+     * Writes the remaining compressed data and the gzip trailer, leaving the wrapped stream open.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        writeIntLittleEndian((int) mCrc.getValue());
+        writeIntLittleEndian((int) mRawBytes);
+        mCompressedBytes += 8;
+        mDeflater.reset();
+        out.flush();
+    }
+
+    private void writeIntLittleEndian(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+        out.write((value >> 16) & 0xFF);
+        out.write((value >> 24) & 0xFF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    public long getDeflateNanos() {
+        return mDeflateNanos;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the last capture, the last {@link #MAX_RESULTS} stylized results and the selected
+ * style, so a cold start can show where the user left off. Writes happen on a single
+ * background thread after each result; {@link #restoreAsync} reads the session on the same
+ * thread ahead of any write, so the first frame does not wait for the files and the decoding.
+ *
+ * Bitmaps are stored as JPEG files next to an index, all values big endian as written by
+ * {@link DataOutputStream}:
+ * <pre>
+ * int MAGIC, int VERSION, int selectedStyle, int resultCount,
+ * resultCount times: int style, long wallClockMs, UTF fileName   (newest first)
+ * </pre>
+ * The index is replaced atomically by a rename, so a crash mid-write leaves the previous
+ * session intact.
+ */
+public class SessionStore {
+    private static final String TAG = "SessionStore";
+
+    static final int MAGIC = 0x53455353;
+    static final int VERSION = 1;
+
+    // stylized results kept on disk
+    static final int MAX_RESULTS = 4;
+
+    private static final String DIR_NAME = "session";
+    private static final String INDEX_FILE_NAME = "index.bin";
+    private static final String CAPTURE_FILE_NAME = "capture.jpg";
+
+    private static final int JPEG_QUALITY = 90;
+
+    // writes waiting for the writer thread, older ones are superseded anyway
+    private static final int MAX_PENDING_WRITES = 2;
+
+    /**
+     * A persisted result.
+     */
+    public static class Result {
+        public final int style;
+        public final long wallClockMs;
+        final String mFileName;
+
+        Result(int style, long wallClockMs, String fileName) {
+            this.style = style;
+            this.wallClockMs = wallClockMs;
+            mFileName = fileName;
+        }
+    }
+
+    /**
+     * What {@link #restoreAsync} found, any of the bitmaps may be null.
+     */
+    public static class Session {
+        public int selectedStyle = -1;
+        public Bitmap capture;
+        public Bitmap latestResult;
+        public List<Result> results = Collections.emptyList();
+        public long restoreMs;
+    }
+
+    /**
+     * Told on the main thread once the session has been read.
+     */
+    public interface RestoreListener {
+        void onRestored(Session session);
+    }
+
+    private final File mDir;
+    private final ExecutorService mExecutor;
+
+    // only touched on the writer thread
+    private final List<Result> mResults = new ArrayList<>();
+    // weak so a capture trimmed by the memory governor is not kept alive here
+    private WeakReference<Bitmap> mWrittenCapture = new WeakReference<>(null);
+    private long mNextResultId;
+
+    public SessionStore(File filesDir) {
+        mDir = new File(filesDir, DIR_NAME);
+        mExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_WRITES),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Reads the persisted session in the background and hands it to the listener on the main
+     * thread. Must be called before the first {@link #saveAsync}.
+     */
+    public void restoreAsync(final RestoreListener listener) {
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        mExecutor.execute(() -> {
+            final Session session = restore();
+            mainHandler.post(() -> listener.onRestored(session));
+        });
+    }
+
+    private Session restore() {
+        long startMs = SystemClock.elapsedRealtime();
+        Session session = new Session();
+        File index = new File(mDir, INDEX_FILE_NAME);
+        if (index.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(index)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unknown session format");
+                }
+                session.selectedStyle = in.readInt();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    mResults.add(new Result(in.readInt(), in.readLong(), in.readUTF()));
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Session not restored: " + e);
+                mResults.clear();
+                session.selectedStyle = -1;
+            }
+        }
+        for (Result result : mResults) {
+            mNextResultId = Math.max(mNextResultId, parseResultId(result.mFileName) + 1);
+        }
+        session.capture = decode(CAPTURE_FILE_NAME);
+        if (!mResults.isEmpty()) {
+            session.latestResult = decode(mResults.get(0).mFileName);
+        }
+        session.results = new ArrayList<>(mResults);
+        session.restoreMs = SystemClock.elapsedRealtime() - startMs;
+        Log.d(TAG, "restored session with " + mResults.size() + " results in "
+                + session.restoreMs + "ms");
+        return session;
+    }
+
+    // decodes an older result listed by restoreAsync()
+    public Bitmap loadResult(Result result) {
+        return decode(result.mFileName);
+    }
+
+    /**
+     * Queues writing a new result, its capture unless already written, and the selected style.
+     */
+    public void saveAsync(final int style, final Bitmap capture, final Bitmap result) {
+        final long wallClockMs = System.currentTimeMillis();
+        mExecutor.execute(() -> {
+            try {
+                save(style, wallClockMs, capture, result);
+            } catch (IOException | IllegalStateException e) {
+                // IllegalStateException if a bitmap got recycled in the meantime
+                Log.d(TAG, "Session not saved: " + e);
+            }
+        });
+    }
+
+    private void save(int style, long wallClockMs, Bitmap capture, Bitmap result)
+            throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+        if (capture != null && capture != mWrittenCapture.get()) {
+            writeJpeg(capture, CAPTURE_FILE_NAME);
+            mWrittenCapture = new WeakReference<>(capture);
+        }
+        String fileName = "result_" + (mNextResultId++) + ".jpg";
+        writeJpeg(result, fileName);
+        mResults.add(0, new Result(style, wallClockMs, fileName));
+        List<Result> dropped = new ArrayList<>();
+        while (mResults.size() > MAX_RESULTS) {
+            dropped.add(mResults.remove(mResults.size() - 1));
+        }
+
+        File tmp = new File(mDir, INDEX_FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(style);
+            out.writeInt(mResults.size());
+            for (Result entry : mResults) {
+                out.writeInt(entry.style);
+                out.writeLong(entry.wallClockMs);
+                out.writeUTF(entry.mFileName);
+            }
+        }
+        if (!tmp.renameTo(new File(mDir, INDEX_FILE_NAME))) {
+            throw new IOException("Cannot replace the session index");
+        }
+        // only once the index no longer refers to them
+        for (Result entry : dropped) {
+            new File(mDir, entry.mFileName).delete();
+        }
+    }
+
+    private void writeJpeg(Bitmap bitmap, String fileName) throws IOException {
+        File tmp = new File(mDir, fileName + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        }
+        if (!tmp.renameTo(new File(mDir, fileName))) {
+            throw new IOException("Cannot write " + fileName);
+        }
+    }
+
+    private Bitmap decode(String fileName) {
+        File file = new File(mDir, fileName);
+        if (!file.exists()) {
+            return null;
+        }
+        return BitmapFactory.decodeFile(file.getPath());
+    }
+
+    private static long parseResultId(String fileName) {
+        try {
+            return Long.parseLong(fileName.substring("result_".length(), fileName.indexOf('.')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.graphics.Bitmap;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link HttpContent} for a predict request that streams the JSON envelope straight into the
+ * transport. The bitmap is JPEG-compressed into a {@link Base64EncodingOutputStream} on the fly,
+ * so neither the JPEG bytes nor their base64 string are ever held in memory as a whole.
+ * Alternatively the JPEG can be encoded up front with {@link #encodeJpeg(Bitmap)}, so the
+ * compression does not run on the thread doing the network I/O; only base64 is then streamed.
+ *
+ * The body has the same shape as the one built from {@link PixelStyleJSON}:
+ * {"instances": [{"style_weights": [...], "image_bytes": {"b64": "..."}}]}
+ * A batch has one instance per style applied to the same image, or per image with the same
+ * style.
+ *
+ * The length of a body built from JPEG bytes is known up front, so small bodies can be sent
+ * uncompressed with a Content-Length; a body compressed from a bitmap is sent chunked.
+ *
+ * Instances are immutable, so one may be written any number of times and from any thread. The
+ * style weights are copied; JPEG bytes are shared, e.g. between the requests of one capture, and
+ * must not be modified once handed in.
+ */
+public class StreamingPredictContent implements HttpContent {
+    private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    private static final byte[] BODY_PREFIX = "{\"instances\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BODY_SUFFIX = "]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INSTANCE_SUFFIX = "\"}}".getBytes(StandardCharsets.UTF_8);
+
+    // JPEG quality used for the image payload
+    private static final int JPEG_QUALITY = 100;
+
+    // exactly one of the bitmap and the encoded JPEGs is set
+    private final Bitmap mBitmap;
+    // image of each instance
+    private final byte[][] mJpegBytes;
+    // style weights of each instance
+    private final Float[][] mStyleWeights;
+    // bytes of the body, -1 while the JPEG is still to be compressed
+    private final long mLength;
+
+    public StreamingPredictContent(Bitmap bitmap, Float[] styleWeights) {
+        mBitmap = bitmap;
+        mJpegBytes = null;
+        mStyleWeights = new Float[][] {styleWeights.clone()};
+        mLength = -1;
+    }
+
+    public StreamingPredictContent(byte[] jpegBytes, Float[] styleWeights) {
+        this(jpegBytes, new Float[][] {styleWeights});
+    }
+
+    // one instance per entry of styleWeights, all of the same image
+    public StreamingPredictContent(byte[] jpegBytes, Float[][] styleWeights) {
+        mBitmap = null;
+        mJpegBytes = new byte[styleWeights.length][];
+        mStyleWeights = new Float[styleWeights.length][];
+        for (int i = 0; i < styleWeights.length; i++) {
+            mJpegBytes[i] = jpegBytes;
+            mStyleWeights[i] = styleWeights[i].clone();
+        }
+        mLength = computeLength();
+    }
+
+    // one instance per image, all with the same style weights
+    public StreamingPredictContent(byte[][] jpegBytes, Float[] styleWeights) {
+        mBitmap = null;
+        mJpegBytes = jpegBytes.clone();
+        mStyleWeights = new Float[jpegBytes.length][];
+        for (int i = 0; i < jpegBytes.length; i++) {
+            mStyleWeights[i] = styleWeights.clone();
+        }
+        mLength = computeLength();
+    }
+
+    // what writeTo() will write, the base64 of n bytes is 4 * ceil(n / 3) long
+    private long computeLength() {
+        long length = BODY_PREFIX.length + BODY_SUFFIX.length
+                + Math.max(0, mStyleWeights.length - 1);
+        for (int i = 0; i < mStyleWeights.length; i++) {
+            length += instancePrefix(mStyleWeights[i]).length
+                    + 4L * ((mJpegBytes[i].length + 2) / 3) + INSTANCE_SUFFIX.length;
+        }
+        return length;
+    }
+
+    // JPEG payload of a bitmap, encoded with the same quality as a streamed one
+    public static byte[] encodeJpeg(Bitmap bitmap) {
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(
+                bitmap.getWidth() * bitmap.getHeight());
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, jpeg);
+        return jpeg.toByteArray();
+    }
+
+    @Override
+    public long getLength() {
+        return mLength;
+    }
+
+    @Override
+    public String getType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        // the body can be produced again from the bitmap or the JPEG
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(BODY_PREFIX);
+        for (int i = 0; i < mStyleWeights.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeInstance(out, mJpegBytes == null ? null : mJpegBytes[i], mStyleWeights[i]);
+        }
+        out.write(BODY_SUFFIX);
+        out.flush();
+    }
+
+    private void writeInstance(OutputStream out, byte[] jpegBytes, Float[] styleWeights)
+            throws IOException {
+        out.write(instancePrefix(styleWeights));
+
+        Base64EncodingOutputStream base64Out = new Base64EncodingOutputStream(out);
+        if (jpegBytes != null) {
+            base64Out.write(jpegBytes);
+        } else {
+            mBitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, base64Out);
+        }
+        base64Out.finish();
+
+        out.write(INSTANCE_SUFFIX);
+    }
+
+    // the JSON of an instance up to its base64 image
+    private static byte[] instancePrefix(Float[] styleWeights) {
+        StringBuilder prefix = new StringBuilder(64 + styleWeights.length * 6);
+        prefix.append("{\"").append(PixelStyleJSON.STYLE_WEIGHT).append("\":[");
+        for (int i = 0; i < styleWeights.length; i++) {
+            if (i > 0) {
+                prefix.append(',');
+            }
+            prefix.append(styleWeights[i]);
+        }
+        prefix.append("],\"").append(PixelStyleJSON.STYLE_IMAGE_BYTES).append("\":{\"")
+                .append(PixelStyleJSON.STYLE_ENCODE).append("\":\"");
+        return prefix.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A {@link ColorLut} per style, learned from every rendered result and kept in files/luts,
+ * so a tap can show the capture in roughly the colors of its style while the real result is
+ * on the way. Loading, learning and saving happen on one background thread; {@link
+ * #placeholder} is called on the tap path and only applies a table already in memory.
+ */
+public class StyleLuts {
+    private static final String TAG = "StyleLuts";
+
+    private static final String DIR_NAME = "luts";
+
+    // every 4th pixel in both directions is plenty for a 17^3 table
+    private static final int LEARN_STEP = 4;
+
+    private final File mDir;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // by style, guarded by this
+    private final SparseArray<ColorLut> mLuts = new SparseArray<>();
+
+    public StyleLuts(File filesDir) {
+        mDir = new File(filesDir, DIR_NAME);
+        mExecutor.execute(this::load);
+    }
+
+    /**
+     * The capture mapped through the table of the style, or null if the style has not been
+     * learned well enough yet.
+     */
+    public Bitmap placeholder(int style, Bitmap capture) {
+        ColorLut lut;
+        synchronized (this) {
+            lut = mLuts.get(style);
+        }
+        if (lut == null || !lut.isTrained()) {
+            return null;
+        }
+        long startNs = System.nanoTime();
+        int width = capture.getWidth();
+        int height = capture.getHeight();
+        int[] pixels = new int[width * height];
+        capture.getPixels(pixels, 0, width, 0, 0, width, height);
+        lut.apply(pixels, pixels, pixels.length);
+        Bitmap placeholder = Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+        Log.d(TAG, "placeholder for style " + style + " in "
+                + (System.nanoTime() - startNs) / 1000 + "us");
+        return placeholder;
+    }
+
+    /**
+     * Queues learning from a capture and its result of the style, then saving the table.
+     */
+    public void learnAsync(final int style, final Bitmap capture, final Bitmap result) {
+        mExecutor.execute(() -> {
+            try {
+                learn(style, capture, result);
+            } catch (IOException | IllegalStateException e) {
+                // IllegalStateException if a bitmap got recycled in the meantime
+                Log.d(TAG, "LUT of style " + style + " not updated: " + e);
+            }
+        });
+    }
+
+    private void learn(int style, Bitmap capture, Bitmap result) throws IOException {
+        int width = capture.getWidth();
+        int height = capture.getHeight();
+        int[] input = new int[width * height];
+        capture.getPixels(input, 0, width, 0, 0, width, height);
+        int[] output = new int[width * height];
+        if (result.getWidth() == width && result.getHeight() == height) {
+            result.getPixels(output, 0, width, 0, 0, width, height);
+        } else {
+            // an upsampled result, compared at the capture's resolution
+            Bitmap scaled = Bitmap.createScaledBitmap(result, width, height, true);
+            scaled.getPixels(output, 0, width, 0, 0, width, height);
+            scaled.recycle();
+        }
+
+        ColorLut lut;
+        synchronized (this) {
+            lut = mLuts.get(style);
+            if (lut == null) {
+                lut = new ColorLut();
+                mLuts.put(style, lut);
+            }
+        }
+        lut.learn(input, output, width, height, LEARN_STEP);
+        save(style, lut);
+    }
+
+    // reads the tables of all styles learned in earlier sessions
+    private void load() {
+        long startMs = SystemClock.elapsedRealtime();
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            int style = parseStyle(file.getName());
+            if (style < 0) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                ColorLut lut = ColorLut.readFrom(in);
+                synchronized (this) {
+                    // learned from a result that came in first
+                    if (mLuts.get(style) == null) {
+                        mLuts.put(style, lut);
+                    }
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "LUT " + file + " not loaded: " + e);
+            }
+        }
+        Log.d(TAG, "loaded " + mLuts.size() + " LUTs in "
+                + (SystemClock.elapsedRealtime() - startMs) + "ms");
+    }
+
+    // replaced atomically by a rename, like the session index
+    private void save(int style, ColorLut lut) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+        File file = new File(mDir, fileName(style));
+        File tmp = new File(mDir, fileName(style) + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            lut.writeTo(out);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+    }
+
+    private static String fileName(int style) {
+        return "style_" + style + ".lut";
+    }
+
+    // style of a table file name, or -1
+    private static int parseStyle(String fileName) {
+        if (!fileName.startsWith("style_") || !fileName.endsWith(".lut")) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(6, fileName.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("luts=" + mLuts.size());
+        for (int i = 0; i < mLuts.size(); i++) {
+            builder.append(" style").append(mLuts.keyAt(i)).append('=')
+                    .append(mLuts.valueAt(i).getSamples());
+        }
+        return builder.toString();
+    }
+}
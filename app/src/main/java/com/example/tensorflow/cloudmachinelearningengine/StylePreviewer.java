@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stylizes a tiny copy of each new capture with every style in one batched request, so the
+ * carousel can show what each style will look like before the user picks one. Runs as a
+ * speculative job of the {@link InferenceScheduler}: taps preempt it, and a new capture
+ * cancels the previous one.
+ */
+public class StylePreviewer implements CameraHandler.OnCaptureListener {
+    private static final String TAG = "StylePreviewer";
+
+    // size of the preview image sent for each style
+    private static final int PREVIEW_SIZE = 64;
+
+    private static final String PREDICTIONS = "predictions";
+    private static final String OUTPUT_IMAGE = "output_image";
+
+    private final InferenceScheduler mScheduler;
+    private final CMLEHandler mCMLEHandler;
+    private final Carousel mCarousel;
+
+    private InferenceScheduler.Task mTask;
+
+    public StylePreviewer(InferenceScheduler scheduler, CMLEHandler cmleHandler,
+                          Carousel carousel) {
+        mScheduler = scheduler;
+        mCMLEHandler = cmleHandler;
+        mCarousel = carousel;
+    }
+
+    @Override
+    public synchronized void onCapture(Bitmap croppedBitmap) {
+        cancel();
+        mCarousel.clearPreviews();
+        final Bitmap preview = Bitmap.createScaledBitmap(croppedBitmap, PREVIEW_SIZE,
+                PREVIEW_SIZE, true);
+        final int styles = mCarousel.getItemCount();
+        mTask = mScheduler.submit(InferenceScheduler.PRIORITY_SPECULATIVE, "previews",
+                new InferenceScheduler.Job() {
+                    @Override
+                    public void run(InferenceScheduler.Task task) {
+                        requestPreviews(task, preview, styles);
+                    }
+                });
+        if (mTask == null) {
+            Log.d(TAG, "Previews rejected by the scheduler.");
+        }
+    }
+
+    public synchronized void cancel() {
+        if (mTask != null) {
+            mTask.cancel();
+            mTask = null;
+        }
+    }
+
+    private void requestPreviews(InferenceScheduler.Task task, Bitmap preview, int styles) {
+        long startMs = SystemClock.elapsedRealtime();
+        Float[][] styleWeights = new Float[styles][];
+        for (int i = 0; i < styles; i++) {
+            styleWeights[i] = PixelStyleJSON.buildStyleWeights(i);
+        }
+        StreamingPredictContent content = new StreamingPredictContent(
+                StreamingPredictContent.encodeJpeg(preview), styleWeights);
+
+        GoogleApiHttpBody response;
+        try {
+            response = mCMLEHandler.predict(content);
+        } catch (IOException e) {
+            Log.d(TAG, "preview request error: " + e);
+            return;
+        }
+        if (task.isCancelled() || response.get("error") != null) {
+            return;
+        }
+        long responseMs = SystemClock.elapsedRealtime();
+
+        // decode and show the previews one by one, so the first ones appear early
+        Gson gson = new Gson();
+        List<?> outImages = (List<?>) gson.fromJson(gson.toJson(response.get(PREDICTIONS)),
+                Object.class);
+        if (outImages == null) {
+            Log.d(TAG, "Preview response has no predictions.");
+            return;
+        }
+        for (int i = 0; i < outImages.size() && i < styles; i++) {
+            if (task.isCancelled()) {
+                return;
+            }
+            String encoded = (String) ((Map<?, ?>) outImages.get(i)).get(OUTPUT_IMAGE);
+            if (encoded == null) {
+                Log.d(TAG, "Preview " + i + " has no output image.");
+                continue;
+            }
+            byte[] bytes = Base64.decode(encoded, Base64.URL_SAFE);
+            Bitmap stylized = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            if (stylized == null) {
+                continue;
+            }
+            // blended like the full size result it stands for
+            Bitmap blended = CMLEHandler.blendBitmaps(stylized, preview);
+            stylized.recycle();
+            mCarousel.setPreview(i, blended, task);
+        }
+        Log.d(TAG, "previews of " + styles + " styles: response after "
+                + (responseMs - startMs) + "ms, all decoded after "
+                + (SystemClock.elapsedRealtime() - startMs) + "ms");
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Style thumbnails packed into one JPEG asset by the generateThumbnailAtlas task of
+ * app/build.gradle. The index asset lists "name x y width height" per thumbnail, in style
+ * order.
+ */
+public class ThumbnailAtlas {
+    static final String ATLAS_ASSET = "style_atlas.jpg";
+    static final String INDEX_ASSET = "style_atlas.idx";
+
+    private final AssetManager mAssets;
+    private final List<Rect> mRects = new ArrayList<>();
+
+    public ThumbnailAtlas(AssetManager assets) throws IOException {
+        mAssets = assets;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                assets.open(INDEX_ASSET), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                int x = Integer.parseInt(fields[1]);
+                int y = Integer.parseInt(fields[2]);
+                mRects.add(new Rect(x, y,
+                        x + Integer.parseInt(fields[3]), y + Integer.parseInt(fields[4])));
+            }
+        }
+    }
+
+    public int getCount() {
+        return mRects.size();
+    }
+
+    // decodes the atlas once and slices it into all thumbnails
+    public Bitmap[] decodeAll() throws IOException {
+        Bitmap atlas;
+        try (InputStream in = mAssets.open(ATLAS_ASSET)) {
+            atlas = BitmapFactory.decodeStream(in);
+        }
+        if (atlas == null) {
+            throw new IOException("Cannot decode " + ATLAS_ASSET);
+        }
+        Bitmap[] thumbnails = new Bitmap[mRects.size()];
+        for (int i = 0; i < thumbnails.length; i++) {
+            Rect rect = mRects.get(i);
+            thumbnails[i] = Bitmap.createBitmap(atlas, rect.left, rect.top,
+                    rect.width(), rect.height());
+        }
+        atlas.recycle();
+        return thumbnails;
+    }
+
+    // decodes a single thumbnail without the rest of the atlas, e.g. after it was evicted
+    public Bitmap decode(int index) throws IOException {
+        try (InputStream in = mAssets.open(ATLAS_ASSET)) {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+            try {
+                return decoder.decodeRegion(mRects.get(index), null);
+            } finally {
+                decoder.recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * {@link Trace} sections for systrace/Perfetto, plus async sections for work that starts and
+ * ends on different threads, like an in-flight request. The public async API only exists from
+ * API 29, so below that the equivalent hidden methods are looked up once; if they cannot be
+ * found async sections are skipped.
+ */
+public final class Tracing {
+    // Trace.TRACE_TAG_APP
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    private static final Method sAsyncTraceBegin;
+    private static final Method sAsyncTraceEnd;
+
+    static {
+        Method begin = null;
+        Method end = null;
+        try {
+            begin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+            end = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+        } catch (NoSuchMethodException | SecurityException e) {
+            begin = null;
+            end = null;
+        }
+        sAsyncTraceBegin = begin;
+        sAsyncTraceEnd = end;
+    }
+
+    private Tracing() {
+    }
+
+    // section names are truncated by the platform at 127 characters
+    public static void begin(String sectionName) {
+        Trace.beginSection(sectionName);
+    }
+
+    public static void end() {
+        Trace.endSection();
+    }
+
+    /**
+     * Starts an async section, ended by {@link #endAsync} with the same name and cookie,
+     * possibly on another thread. Sections of the same name need distinct cookies to overlap.
+     */
+    public static void beginAsync(String sectionName, int cookie) {
+        invoke(sAsyncTraceBegin, sectionName, cookie);
+    }
+
+    public static void endAsync(String sectionName, int cookie) {
+        invoke(sAsyncTraceEnd, sectionName, cookie);
+    }
+
+    private static void invoke(Method method, String sectionName, int cookie) {
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(null, TRACE_TAG_APP, sectionName, cookie);
+        } catch (ReflectiveOperationException e) {
+            // tracing is best effort
+        }
+    }
+}
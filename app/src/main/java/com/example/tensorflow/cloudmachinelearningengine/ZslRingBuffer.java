@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring buffer of the most recent YUV_420_888 preview frames, used for zero-shutter-lag capture.
+ * Frames are copied into preallocated buffers so the {@link Image} can be returned to its
+ * reader right away, and each frame is scored for sharpness on the way in.
+ */
+public class ZslRingBuffer implements MemoryGovernor.MemoryConsumer {
+    private static final String TAG = "ZslRingBuffer";
+
+    // a frame counts as sharp if it scores at least this fraction of the sharpest buffered frame
+    private static final float SHARPNESS_TOLERANCE = 0.8f;
+
+    // sample every n-th pixel of every n-th row when scoring sharpness
+    private static final int SHARPNESS_STEP = 4;
+
+    // one buffered frame, chroma planes are stored at half resolution
+    private static class Frame {
+        byte[] y;
+        byte[] u;
+        byte[] v;
+        int width;
+        int height;
+        long timestampNs;
+        float sharpness;
+        boolean valid;
+        boolean consumed;
+    }
+
+    private final Frame[] mFrames;
+
+    // index of the slot the next frame is written to
+    private int mNext;
+
+    public ZslRingBuffer(int capacity) {
+        mFrames = new Frame[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mFrames[i] = new Frame();
+        }
+    }
+
+    /**
+     * Copies a YUV_420_888 image into the oldest slot. The caller still owns and closes the image.
+     */
+    public synchronized void add(Image image) {
+        Frame frame = mFrames[mNext];
+        mNext = (mNext + 1) % mFrames.length;
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int chromaSize = (width / 2) * (height / 2);
+        if (frame.y == null || frame.y.length != width * height) {
+            frame.y = new byte[width * height];
+            frame.u = new byte[chromaSize];
+            frame.v = new byte[chromaSize];
+        }
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(planes[0], width, height, frame.y);
+        copyPlane(planes[1], width / 2, height / 2, frame.u);
+        copyPlane(planes[2], width / 2, height / 2, frame.v);
+
+        frame.width = width;
+        frame.height = height;
+        frame.timestampNs = image.getTimestamp();
+        frame.sharpness = scoreSharpness(frame.y, width, height);
+        frame.valid = true;
+        frame.consumed = false;
+    }
+
+    public synchronized boolean hasFrames() {
+        for (Frame frame : mFrames) {
+            if (frame.valid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks the newest frame that is sharp compared to the rest of the buffer and converts it to
+     * an ARGB bitmap. Frames already handed out are skipped while others are available, so burst
+     * taps get distinct frames.
+     *
+     * @return the bitmap in sensor orientation, or null if the buffer is empty
+     */
+    public synchronized Bitmap takeBestFrame() {
+        float maxSharpness = 0;
+        boolean haveFresh = false;
+        for (Frame frame : mFrames) {
+            if (frame.valid) {
+                maxSharpness = Math.max(maxSharpness, frame.sharpness);
+                haveFresh |= !frame.consumed;
+            }
+        }
+        Frame best = null;
+        for (Frame frame : mFrames) {
+            if (!frame.valid || (haveFresh && frame.consumed)
+                    || frame.sharpness < maxSharpness * SHARPNESS_TOLERANCE) {
+                continue;
+            }
+            if (best == null || frame.timestampNs > best.timestampNs) {
+                best = frame;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.consumed = true;
+        int[] argb = new int[best.width * best.height];
+        yuvToArgb(best, argb);
+        return Bitmap.createBitmap(argb, best.width, best.height, Bitmap.Config.ARGB_8888);
+    }
+
+    public synchronized void clear() {
+        for (Frame frame : mFrames) {
+            frame.valid = false;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return TAG;
+    }
+
+    @Override
+    public int getTier() {
+        return MemoryGovernor.TIER_POOL;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        for (Frame frame : mFrames) {
+            if (frame.y != null) {
+                size += frame.y.length + frame.u.length + frame.v.length;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        // drop the oldest slots first, they are reallocated when the next frames arrive
+        for (int i = 0; i < mFrames.length && getSizeBytes() > maxBytes; i++) {
+            Frame frame = mFrames[(mNext + i) % mFrames.length];
+            frame.y = null;
+            frame.u = null;
+            frame.v = null;
+            frame.valid = false;
+        }
+    }
+
+    // copy a plane into a tightly packed array, honoring row and pixel strides
+    private static void copyPlane(Image.Plane plane, int width, int height, byte[] out) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        buffer.rewind();
+        if (pixelStride == 1 && rowStride == width) {
+            buffer.get(out, 0, width * height);
+            return;
+        }
+        int offset = 0;
+        for (int row = 0; row < height; row++) {
+            int rowStart = row * rowStride;
+            for (int col = 0; col < width; col++) {
+                out[offset++] = buffer.get(rowStart + col * pixelStride);
+            }
+        }
+    }
+
+    // mean absolute horizontal and vertical luma gradient over a sparse grid
+    private static float scoreSharpness(byte[] y, int width, int height) {
+        long sum = 0;
+        int count = 0;
+        for (int row = 0; row < height - 1; row += SHARPNESS_STEP) {
+            int rowStart = row * width;
+            for (int col = 0; col < width - 1; col += SHARPNESS_STEP) {
+                int center = y[rowStart + col] & 0xFF;
+                sum += Math.abs(center - (y[rowStart + col + 1] & 0xFF));
+                sum += Math.abs(center - (y[rowStart + width + col] & 0xFF));
+                count++;
+            }
+        }
+        return count == 0 ? 0 : (float) sum / count;
+    }
+
+    // BT.601 YUV to ARGB conversion in integer arithmetic
+    private static void yuvToArgb(Frame frame, int[] argb) {
+        int width = frame.width;
+        int chromaWidth = width / 2;
+        for (int row = 0; row < frame.height; row++) {
+            int chromaRow = (row >> 1) * chromaWidth;
+            for (int col = 0; col < width; col++) {
+                int y = (frame.y[row * width + col] & 0xFF) - 16;
+                int u = (frame.u[chromaRow + (col >> 1)] & 0xFF) - 128;
+                int v = (frame.v[chromaRow + (col >> 1)] & 0xFF) - 128;
+                if (y < 0) {
+                    y = 0;
+                }
+                int y1192 = 1192 * y;
+                int r = clamp((y1192 + 1634 * v) >> 10);
+                int g = clamp((y1192 - 833 * v - 400 * u) >> 10);
+                int b = clamp((y1192 + 2066 * u) >> 10);
+                argb[row * width + col] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
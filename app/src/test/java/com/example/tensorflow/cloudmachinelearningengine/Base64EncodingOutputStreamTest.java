@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static com.example.tensorflow.cloudmachinelearningengine.Base64EncodingOutputStream.BUFFER_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks {@link Base64EncodingOutputStream} against {@link java.util.Base64}.
+ */
+public class Base64EncodingOutputStreamTest {
+
+    // input bytes that fill the encoded output buffer once
+    private static final int INPUT_PER_BUFFER = BUFFER_SIZE / 4 * 3;
+    private static final int MAX_LENGTH = 3 * BUFFER_SIZE + 2;
+
+    private final byte[] mInput = new byte[MAX_LENGTH];
+
+    public Base64EncodingOutputStreamTest() {
+        new Random(42).nextBytes(mInput);
+    }
+
+    private static String encode(byte[] input, int length, int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Base64EncodingOutputStream base64Out = new Base64EncodingOutputStream(out);
+        for (int off = 0; off < length; off += chunk) {
+            int len = Math.min(chunk, length - off);
+            if (len == 1) {
+                base64Out.write(input[off]);
+            } else {
+                base64Out.write(input, off, len);
+            }
+        }
+        base64Out.finish();
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private String expected(int length) {
+        byte[] input = new byte[length];
+        System.arraycopy(mInput, 0, input, 0, length);
+        return Base64.getEncoder().encodeToString(input);
+    }
+
+    @Test
+    public void matchesJavaBase64ForEveryLength() throws IOException {
+        for (int length = 0; length <= MAX_LENGTH; length++) {
+            assertEquals("length " + length, expected(length), encode(mInput, length, MAX_LENGTH));
+        }
+    }
+
+    @Test
+    public void matchesJavaBase64ForChunkedWrites() throws IOException {
+        int[] chunks = {1, 2, 4, 5, 7, INPUT_PER_BUFFER - 1, INPUT_PER_BUFFER + 1, BUFFER_SIZE};
+        for (int chunk : chunks) {
+            for (int length = 0; length <= 16; length++) {
+                assertEquals("length " + length + " in chunks of " + chunk,
+                        expected(length), encode(mInput, length, chunk));
+            }
+            // lengths around each point the output buffer fills up
+            for (int buffers = 1; buffers <= 3; buffers++) {
+                for (int delta = -2; delta <= 2; delta++) {
+                    int length = Math.min(MAX_LENGTH, buffers * INPUT_PER_BUFFER + delta);
+                    assertEquals("length " + length + " in chunks of " + chunk,
+                            expected(length), encode(mInput, length, chunk));
+                }
+            }
+            assertEquals("length " + MAX_LENGTH + " in chunks of " + chunk,
+                    expected(MAX_LENGTH), encode(mInput, MAX_LENGTH, chunk));
+        }
+    }
+
+    @Test
+    public void finishLeavesStreamOpenAndIsIdempotent() throws IOException {
+        final boolean[] closed = new boolean[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        Base64EncodingOutputStream base64Out = new Base64EncodingOutputStream(out);
+        base64Out.write(mInput, 0, 4);
+        base64Out.finish();
+        base64Out.finish();
+        assertFalse(closed[0]);
+        assertEquals(expected(4), new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
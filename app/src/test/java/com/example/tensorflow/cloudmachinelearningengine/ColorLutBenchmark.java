@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.Random;
+
+/**
+ * Teaches a {@link ColorLut} a made-up style (a warm tone curve blended half over the input,
+ * like the composite stage does) from a few synthetic captures, then reports how close it
+ * gets on a capture it has not seen and times applying it. {@link ColorLutTest} checks the
+ * same learning and the stored form. Runs on the unit test classpath:
+ * <pre>
+ * java ColorLutBenchmark [size] [captures to learn from] [iterations]
+ * </pre>
+ */
+public class ColorLutBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20;
+
+    // every 4th pixel in both directions, like StyleLuts
+    static final int LEARN_STEP = 4;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 250;
+        int captures = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        Random random = new Random(42);
+        ColorLut lut = new ColorLut();
+        long learnNs = 0;
+        for (int i = 0; i < captures; i++) {
+            int[] capture = scene(random, size);
+            int[] result = stylized(capture);
+            long startNs = System.nanoTime();
+            lut.learn(capture, result, size, size, LEARN_STEP);
+            learnNs += System.nanoTime() - startNs;
+        }
+        System.out.println(String.format("learned from %d captures of %dx%d in %.2fms,"
+                        + " %d samples, trained=%b", captures, size, size,
+                learnNs / 1e6, lut.getSamples(), lut.isTrained()));
+
+        int[] capture = scene(random, size);
+        int[] expected = stylized(capture);
+        int[] placeholder = new int[capture.length];
+        lut.apply(capture, placeholder, capture.length);
+        System.out.println(String.format("mean error per channel: raw capture %.1f, LUT %.1f",
+                meanError(capture, expected), meanError(placeholder, expected)));
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            lut.apply(capture, placeholder, capture.length);
+        }
+        LatencyStats latencyUs = new LatencyStats(iterations);
+        for (int i = 0; i < iterations; i++) {
+            long iterationStartNs = System.nanoTime();
+            lut.apply(capture, placeholder, capture.length);
+            latencyUs.add((System.nanoTime() - iterationStartNs) / 1000);
+        }
+        System.out.println(String.format("apply %dx%d: p50=%.2fms p90=%.2fms", size, size,
+                latencyUs.getPercentile(50) / 1000.0, latencyUs.getPercentile(90) / 1000.0));
+    }
+
+    // smooth color blobs with some noise, spanning most of the color cube
+    static int[] scene(Random random, int size) {
+        int blobs = 12;
+        float[] blob = new float[6 * blobs];
+        for (int i = 0; i < blob.length; i++) {
+            blob[i] = random.nextFloat();
+        }
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float[] color = new float[3];
+                float total = 0;
+                for (int i = 0; i < blobs; i++) {
+                    float dx = x / (float) size - blob[6 * i];
+                    float dy = y / (float) size - blob[6 * i + 1];
+                    float weight = (float) Math.exp(-(dx * dx + dy * dy) * 30);
+                    total += weight;
+                    for (int c = 0; c < 3; c++) {
+                        color[c] += weight * blob[6 * i + 3 + c];
+                    }
+                }
+                int pixel = 0xff000000;
+                for (int c = 0; c < 3; c++) {
+                    int value = (int) (255 * color[c] / total) + random.nextInt(9) - 4;
+                    pixel |= Math.max(0, Math.min(255, value)) << (16 - 8 * c);
+                }
+                pixels[y * size + x] = pixel;
+            }
+        }
+        return pixels;
+    }
+
+    // the made-up style: a warm S curve, blended 50% over the input
+    static int[] stylized(int[] pixels) {
+        int[] result = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            float r = ((pixel >> 16) & 0xff) / 255f;
+            float g = ((pixel >> 8) & 0xff) / 255f;
+            float b = (pixel & 0xff) / 255f;
+            float luma = 0.3f * r + 0.59f * g + 0.11f * b;
+            float curve = luma * luma * (3 - 2 * luma);
+            int styled = 0xff000000 | channel(curve * 1.1f + 0.05f) << 16
+                    | channel(curve * 0.9f + 0.1f * g) << 8 | channel(curve * 0.6f + 0.3f * b);
+            result[i] = PixelKernel.blend(pixel, styled, 128);
+        }
+        return result;
+    }
+
+    private static int channel(float value) {
+        return Math.max(0, Math.min(255, Math.round(value * 255)));
+    }
+
+    static double meanError(int[] actual, int[] expected) {
+        long error = 0;
+        for (int i = 0; i < actual.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                error += Math.abs(((actual[i] >> shift) & 0xff) - ((expected[i] >> shift) & 0xff));
+            }
+        }
+        return error / (3.0 * actual.length);
+    }
+}
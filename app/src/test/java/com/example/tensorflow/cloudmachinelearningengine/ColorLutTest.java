@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link ColorLut} on the synthetic captures and style of {@link ColorLutBenchmark}.
+ */
+public class ColorLutTest {
+
+    private static final int SIZE = 120;
+    private static final int CAPTURES = 5;
+
+    private final Random mRandom = new Random(42);
+    private ColorLut mLut;
+
+    @Before
+    public void learn() {
+        mLut = new ColorLut();
+        for (int i = 0; i < CAPTURES; i++) {
+            int[] capture = ColorLutBenchmark.scene(mRandom, SIZE);
+            mLut.learn(capture, ColorLutBenchmark.stylized(capture), SIZE, SIZE,
+                    ColorLutBenchmark.LEARN_STEP);
+        }
+    }
+
+    @Test
+    public void trainsOnlyAfterEnoughSamples() {
+        ColorLut lut = new ColorLut();
+        assertFalse(lut.isTrained());
+        int[] capture = ColorLutBenchmark.scene(mRandom, SIZE);
+        lut.learn(capture, capture, SIZE, SIZE, SIZE / 4);
+        assertEquals(16, lut.getSamples());
+        assertFalse(lut.isTrained());
+        assertTrue(mLut.isTrained());
+    }
+
+    @Test
+    public void learnedStyleIsCloserThanTheCapture() {
+        int[] capture = ColorLutBenchmark.scene(mRandom, SIZE);
+        int[] expected = ColorLutBenchmark.stylized(capture);
+        int[] placeholder = new int[capture.length];
+        mLut.apply(capture, placeholder, capture.length);
+        double rawError = ColorLutBenchmark.meanError(capture, expected);
+        double lutError = ColorLutBenchmark.meanError(placeholder, expected);
+        assertTrue("LUT " + lutError + ", raw " + rawError, lutError < 0.5 * rawError);
+    }
+
+    @Test
+    public void survivesBeingStored() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            mLut.writeTo(out);
+        }
+        ColorLut restored = ColorLut.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(mLut.getSamples(), restored.getSamples());
+
+        int[] capture = ColorLutBenchmark.scene(mRandom, SIZE);
+        int[] expected = new int[capture.length];
+        mLut.apply(capture, expected, capture.length);
+        int[] actual = new int[capture.length];
+        restored.apply(capture, actual, capture.length);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownFormats() throws IOException {
+        ColorLut.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[12])));
+    }
+}
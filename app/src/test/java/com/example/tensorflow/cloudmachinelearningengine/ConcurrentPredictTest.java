@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.services.ml.v1.model.GoogleApiHttpBody;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stress test of the shared client side: many threads send predictions at the same time
+ * through one {@link ModelRouter} over {@link CMLEClient}s to {@link FakePredictionServer}s,
+ * each request with its own image and style. Like the pipeline's encode and transport stages,
+ * one set of threads builds {@link StreamingPredictContent} bodies and hands them to another
+ * set that sends them; some bodies are shared and sent by many threads at once. The stand-in
+ * echoes image and style, so every response can be matched against the request it answers.
+ */
+public class ConcurrentPredictTest {
+
+    private static final int ENCODE_THREADS = 4;
+    private static final int TRANSPORT_THREADS = 16;
+    private static final int REQUESTS_PER_ENCODER = 100;
+    // every this many requests an encoder hands on one of the shared bodies instead
+    private static final int SHARED_EVERY = 5;
+    private static final int SHARED_BODIES = 3;
+    private static final int TARGETS = 2;
+    private static final int PAYLOAD_BYTES = 2000;
+
+    // a body together with what its response has to echo
+    private static class Request {
+        final StreamingPredictContent mContent;
+        final int mStyle;
+        final byte[] mImage;
+
+        Request(int style, byte[] image) {
+            mContent = new StreamingPredictContent(image, PixelStyleJSON.buildStyleWeights(style));
+            mStyle = style;
+            mImage = image;
+        }
+    }
+
+    // marks the end of the work for one transport thread
+    private static final Request END = new Request(0, new byte[0]);
+
+    private final List<FakePredictionServer> mServers = new ArrayList<>();
+    private ModelRouter mRouter;
+
+    @Before
+    public void startServers() throws IOException {
+        List<CMLEClient> clients = new ArrayList<>();
+        // one transport shared by all clients, like the app's
+        NetHttpTransport transport = new NetHttpTransport();
+        for (int i = 0; i < TARGETS; i++) {
+            FakePredictionServer server = new FakePredictionServer(0, i);
+            // jitter, so responses overtake each other
+            server.setLatency(FakePredictionServer.uniformLatency(0, 20));
+            mServers.add(server);
+            clients.add(new CMLEClient(transport, null, "ConcurrentPredictTest",
+                    server.getRootUrl(), "projects/check/models/stylizer/versions/v" + i));
+        }
+        mRouter = new ModelRouter(clients);
+    }
+
+    @After
+    public void stopServers() {
+        for (FakePredictionServer server : mServers) {
+            server.stop();
+        }
+    }
+
+    // the random stand-in for the JPEG of request n
+    private static byte[] image(int n) {
+        byte[] image = new byte[PAYLOAD_BYTES];
+        new Random(n).nextBytes(image);
+        return image;
+    }
+
+    @Test
+    public void everyResponseAnswersItsOwnRequest() throws InterruptedException {
+        final Request[] shared = new Request[SHARED_BODIES];
+        for (int i = 0; i < SHARED_BODIES; i++) {
+            shared[i] = new Request(i % PixelStyleJSON.NUM_RAW_STYLES, image(-1 - i));
+        }
+        final BlockingQueue<Request> queue = new ArrayBlockingQueue<>(TRANSPORT_THREADS);
+        final AtomicInteger matched = new AtomicInteger();
+        final AtomicInteger mismatched = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> encoders = new ArrayList<>();
+        for (int t = 0; t < ENCODE_THREADS; t++) {
+            final int thread = t;
+            encoders.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < REQUESTS_PER_ENCODER; i++) {
+                        int n = thread * REQUESTS_PER_ENCODER + i;
+                        queue.put(i % SHARED_EVERY == 0 ? shared[n % SHARED_BODIES]
+                                : new Request(n % PixelStyleJSON.NUM_RAW_STYLES, image(n)));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "ConcurrentPredictTest-encode-" + t));
+        }
+        List<Thread> senders = new ArrayList<>();
+        for (int t = 0; t < TRANSPORT_THREADS; t++) {
+            senders.add(new Thread(() -> {
+                try {
+                    for (Request request = queue.take(); request != END;
+                            request = queue.take()) {
+                        try {
+                            if (matches(mRouter.predict(request.mContent), request)) {
+                                matched.incrementAndGet();
+                            } else {
+                                mismatched.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "ConcurrentPredictTest-transport-" + t));
+        }
+        for (Thread thread : encoders) {
+            thread.start();
+        }
+        for (Thread thread : senders) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread encoder : encoders) {
+            encoder.join();
+        }
+        for (int i = 0; i < TRANSPORT_THREADS; i++) {
+            queue.put(END);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+
+        assertEquals("mismatched responses\n" + mRouter, 0, mismatched.get());
+        assertEquals("failed requests\n" + mRouter, 0, failed.get());
+        assertEquals(ENCODE_THREADS * REQUESTS_PER_ENCODER, matched.get());
+    }
+
+    // whether the single prediction echoes the style and the image of the request
+    private static boolean matches(GoogleApiHttpBody response, Request request) {
+        Gson gson = new Gson();
+        List<?> predictions = (List<?>) gson.fromJson(gson.toJson(response.get("predictions")),
+                Object.class);
+        if (predictions == null || predictions.size() != 1) {
+            return false;
+        }
+        Map<?, ?> prediction = (Map<?, ?>) predictions.get(0);
+        return ((Number) prediction.get("style_index")).intValue() == request.mStyle
+                && Base64.getUrlEncoder().encodeToString(request.mImage)
+                        .equals(prediction.get("output_image"));
+    }
+}
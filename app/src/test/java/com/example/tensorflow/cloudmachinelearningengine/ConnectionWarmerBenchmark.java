@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import java.io.IOException;
+
+/**
+ * Compares the latency of the first real request with and without {@link ConnectionWarmer}
+ * against a {@link FakePredictionServer} with a handshake and a cold start delay. Runs on the
+ * unit test classpath:
+ * <pre>
+ * java ConnectionWarmerBenchmark [trials] [handshake ms] [cold start ms] [latency ms]
+ * </pre>
+ */
+public class ConnectionWarmerBenchmark {
+
+    // payload of the synthetic sentinel and real requests of the comparison
+    private static final int SENTINEL_PAYLOAD_BYTES = 100;
+    private static final int REQUEST_PAYLOAD_BYTES = 30000;
+
+    // latency of the first real request of a fresh client, warmed up before or not
+    private static long firstRequestMs(FakePredictionServer server, boolean warm, int trial)
+            throws IOException {
+        server.resetCounters();
+        CMLEClient client = new CMLEClient(new NetHttpTransport(), null,
+                "ConnectionWarmerBenchmark", server.getRootUrl(),
+                "projects/warmup/models/stylizer/versions/v" + trial);
+        if (warm) {
+            ConnectionWarmer.warmUp(client,
+                    LoadHarness.syntheticBody(SENTINEL_PAYLOAD_BYTES, 0, trial));
+        }
+        long startNs = System.nanoTime();
+        client.predict(LoadHarness.syntheticBody(REQUEST_PAYLOAD_BYTES, 0, trial));
+        return (System.nanoTime() - startNs) / 1000000;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int trials = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        long handshakeMs = args.length > 1 ? Long.parseLong(args[1]) : 150;
+        long coldStartMs = args.length > 2 ? Long.parseLong(args[2]) : 400;
+        long latencyMs = args.length > 3 ? Long.parseLong(args[3]) : 50;
+
+        LatencyStats coldMs = new LatencyStats(Math.max(1, trials));
+        LatencyStats warmMs = new LatencyStats(Math.max(1, trials));
+        // one untimed round, so class loading and JIT do not count against the first trial
+        for (int trial = -1; trial < trials; trial++) {
+            for (boolean warm : new boolean[] {false, true}) {
+                // a new server per run, so no connection survives from the previous one
+                FakePredictionServer server = new FakePredictionServer(0, trial);
+                try {
+                    server.setHandshakeMs(handshakeMs);
+                    server.setColdStartMs(coldStartMs);
+                    server.setLatency(FakePredictionServer.fixedLatency(latencyMs));
+                    long ms = firstRequestMs(server, warm, trial);
+                    if (trial >= 0) {
+                        (warm ? warmMs : coldMs).add(ms);
+                    }
+                } finally {
+                    server.stop();
+                }
+            }
+        }
+        System.out.println("first request without warm-up: " + coldMs);
+        System.out.println("first request after warm-up:   " + warmMs);
+    }
+}
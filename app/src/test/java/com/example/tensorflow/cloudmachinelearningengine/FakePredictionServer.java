@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Embeddable stand-in for the Cloud ML Engine predict method, for measuring the client without
+ * the real endpoint. It serves POST /v1/projects/{project}/models/{model}[/versions/{v}]:predict
+ * over plain HTTP/1.1 on the loopback interface.
+ *
+ * Every instance gets a prediction whose output_image is its input image, re-encoded with the
+ * URL-safe alphabet the client decodes, so the result is deterministic and can be matched to
+ * its request. The selected style (largest weight) is echoed as style_index. Latency, error
+ * rate and extra response payload are configurable, as are the costs of a cold client: a
+ * handshake delay on every new connection, standing in for DNS and TLS, and a cold start delay
+ * on the first request of each model version. Request bodies may be gzip encoded. Only
+ * depends on the JDK.
+ */
+public class FakePredictionServer {
+    // java.util.logging rather than android.util.Log, so it stays runnable on a plain JVM
+    private static final Logger LOG = Logger.getLogger(FakePredictionServer.class.getName());
+
+    private static final Pattern PREDICT_PATH =
+            Pattern.compile("/v1/projects/[^/]+/models/[^/:]+(/versions/[^/:]+)?:predict");
+    private static final Pattern IMAGE_BYTES = Pattern.compile("\"b64\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern STYLE_WEIGHTS =
+            Pattern.compile("\"style_weights\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+    /**
+     * Source of the artificial processing time of each request.
+     */
+    public interface LatencyDistribution {
+        long sampleMs(Random random);
+    }
+
+    public static LatencyDistribution fixedLatency(final long ms) {
+        return random -> ms;
+    }
+
+    public static LatencyDistribution uniformLatency(final long minMs, final long maxMs) {
+        return random -> minMs + (long) (random.nextDouble() * (maxMs - minMs));
+    }
+
+    // long-tailed distribution typical of real backends, given its median
+    public static LatencyDistribution logNormalLatency(final long medianMs, final double sigma) {
+        return random -> (long) (medianMs * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Random mRandom;
+
+    private volatile LatencyDistribution mLatency = fixedLatency(0);
+    private volatile float mErrorRate;
+    private volatile int mErrorStatus = 503;
+    private volatile int mResponsePaddingBytes;
+    private volatile long mHandshakeMs;
+    private volatile long mColdStartMs;
+
+    // model paths which already had their cold start
+    private final Set<String> mWarmModels = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    // bytes received on the wire, i.e. before decompression
+    private final AtomicLong mRequestBytes = new AtomicLong();
+    private final AtomicLong mGzipRequestCount = new AtomicLong();
+
+    /**
+     * Starts listening on the given port of the loopback interface, 0 picks a free port.
+     *
+     * @param seed seed of the latency and error sampling, for reproducible runs
+     */
+    public FakePredictionServer(int port, long seed) throws IOException {
+        mRandom = new Random(seed);
+        mServerSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    // root url to hand to the client, e.g. "http://127.0.0.1:4242/"
+    public String getRootUrl() {
+        return "http://127.0.0.1:" + getPort() + "/";
+    }
+
+    public void setLatency(LatencyDistribution latency) {
+        mLatency = latency;
+    }
+
+    // fraction of requests, between 0 and 1, answered with the error status
+    public void setErrorRate(float errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    public void setErrorStatus(int errorStatus) {
+        mErrorStatus = errorStatus;
+    }
+
+    // extra bytes added to every prediction, to emulate larger model outputs
+    public void setResponsePaddingBytes(int responsePaddingBytes) {
+        mResponsePaddingBytes = responsePaddingBytes;
+    }
+
+    // delay before the first request of every new connection is read
+    public void setHandshakeMs(long handshakeMs) {
+        mHandshakeMs = handshakeMs;
+    }
+
+    // extra delay of the first request of each model path, until resetCounters()
+    public void setColdStartMs(long coldStartMs) {
+        mColdStartMs = coldStartMs;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    public long getRequestBytes() {
+        return mRequestBytes.get();
+    }
+
+    public long getGzipRequestCount() {
+        return mGzipRequestCount.get();
+    }
+
+    public void resetCounters() {
+        mRequestCount.set(0);
+        mErrorCount.set(0);
+        mRequestBytes.set(0);
+        mGzipRequestCount.set(0);
+        mWarmModels.clear();
+    }
+
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // socket closed by stop()
+            }
+        }
+    }
+
+    // serve requests of one keep-alive connection
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            if (mHandshakeMs > 0) {
+                Thread.sleep(mHandshakeMs);
+            }
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                byte[] body = readBody(in, headers);
+                mRequestBytes.addAndGet(body.length);
+                if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+                    mGzipRequestCount.incrementAndGet();
+                    body = gunzip(body);
+                }
+                handle(requestLine, headers, body, out);
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // client went away
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error serving " + socket.getRemoteSocketAddress(), e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    /**
+     * Produces the response of one request. Subclasses or later features hook in here.
+     */
+    protected void handle(String requestLine, Map<String, String> headers, byte[] body,
+                          OutputStream out) throws IOException {
+        mRequestCount.incrementAndGet();
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || !"POST".equals(parts[0])
+                || !PREDICT_PATH.matcher(parts[1]).matches()) {
+            writeResponse(out, 404, "{\"error\":{\"code\":404,\"message\":\"not found\"}}");
+            return;
+        }
+
+        long latencyMs;
+        boolean fail;
+        synchronized (mRandom) {
+            latencyMs = Math.max(0, mLatency.sampleMs(mRandom));
+            fail = mRandom.nextFloat() < mErrorRate;
+        }
+        if (mWarmModels.add(parts[1])) {
+            latencyMs += mColdStartMs;
+        }
+        if (latencyMs > 0) {
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (fail) {
+            mErrorCount.incrementAndGet();
+            writeResponse(out, mErrorStatus, "{\"error\":{\"code\":" + mErrorStatus
+                    + ",\"message\":\"injected error\"}}");
+            return;
+        }
+        writeResponse(out, 200, predict(new String(body, StandardCharsets.UTF_8)));
+    }
+
+    // the deterministic "model": echo each instance's image and report its style
+    private String predict(String request) {
+        StringBuilder response = new StringBuilder(request.length() + 64);
+        response.append("{\"predictions\":[");
+        Matcher images = IMAGE_BYTES.matcher(request);
+        Matcher weights = STYLE_WEIGHTS.matcher(request);
+        int instance = 0;
+        while (images.find()) {
+            if (instance++ > 0) {
+                response.append(',');
+            }
+            int style = weights.find() ? argmax(weights.group(1)) : -1;
+            response.append("{\"style_index\":").append(style).append(",\"output_image\":\"");
+            String image = images.group(1);
+            for (int i = 0; i < image.length(); i++) {
+                char c = image.charAt(i);
+                if (c == '+') {
+                    response.append('-');
+                } else if (c == '/') {
+                    response.append('_');
+                } else if (c == '\\') {
+                    // escaped line breaks of wrapped base64
+                    i++;
+                } else {
+                    response.append(c);
+                }
+            }
+            response.append('"');
+            if (mResponsePaddingBytes > 0) {
+                response.append(",\"padding\":\"");
+                for (int i = 0; i < mResponsePaddingBytes; i++) {
+                    response.append('x');
+                }
+                response.append('"');
+            }
+            response.append('}');
+        }
+        response.append("]}");
+        return response.toString();
+    }
+
+    private static int argmax(String weights) {
+        String[] values = weights.split(",");
+        int best = -1;
+        float bestValue = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < values.length; i++) {
+            try {
+                float value = Float.parseFloat(values[i].trim());
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = i;
+                }
+            } catch (NumberFormatException e) {
+                // ignore malformed weights
+            }
+        }
+        return best;
+    }
+
+    protected static void writeResponse(OutputStream out, int status, String json)
+            throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Error") + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: " + body.length + "\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            while (true) {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new IOException("truncated chunked body");
+                }
+                int semicolon = sizeLine.indexOf(';');
+                int size = Integer.parseInt(
+                        (semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+                if (size == 0) {
+                    // skip trailers up to the final empty line
+                    String trailer;
+                    while ((trailer = readLine(in)) != null && !trailer.isEmpty()) {
+                    }
+                    break;
+                }
+                copy(in, body, size);
+                readLine(in);
+            }
+        } else if (headers.containsKey("content-length")) {
+            copy(in, body, Integer.parseInt(headers.get("content-length")));
+        }
+        return body.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body));
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out, int length)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        while (length > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, length));
+            if (read < 0) {
+                throw new IOException("truncated body");
+            }
+            out.write(buffer, 0, read);
+            length -= read;
+        }
+    }
+
+    // reads a CRLF terminated line, null at end of stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
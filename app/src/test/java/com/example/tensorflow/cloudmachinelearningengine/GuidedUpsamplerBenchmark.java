@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.Random;
+
+/**
+ * Lifts a made-up stylization of a synthetic scene from the model's 250px to a guide of about
+ * 2MP, compares the result with the stylization done at full resolution, once with plain
+ * bilinear upscaling and once guided, and times the guided upsampler on one thread and on all
+ * cores. {@link GuidedUpsamplerTest} asserts on the same comparison. Runs on the unit test
+ * classpath:
+ * <pre>
+ * java GuidedUpsamplerBenchmark [guide size] [source size] [iterations]
+ * </pre>
+ */
+public class GuidedUpsamplerBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 10;
+
+    public static void main(String[] args) {
+        int guideSize = args.length > 0 ? Integer.parseInt(args[0]) : 1448;
+        int srcSize = args.length > 1 ? Integer.parseInt(args[1]) : 250;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        int[] guide = scene(new Random(42), guideSize);
+        int[] expected = stylized(guide);
+        // what the model would send back: the stylization at its own resolution
+        int[] src = new int[srcSize * srcSize];
+        PixelKernel shrink = new PixelKernel(srcSize, srcSize);
+        shrink.setCrop(0, 0, guideSize, guideSize);
+        shrink.run(expected, guideSize, guideSize, src);
+
+        int[] bilinear = bilinear(src, srcSize, guideSize);
+        int[] guided = new int[guideSize * guideSize];
+        GuidedUpsampler parallel = new GuidedUpsampler();
+        parallel.run(src, srcSize, srcSize, guide, guideSize, guideSize, guided);
+        System.out.println(String.format("%dx%d -> %dx%d (%.1fMP), mean error per channel:"
+                        + " bilinear %.2f, guided %.2f; near edges: bilinear %.2f, guided %.2f",
+                srcSize, srcSize, guideSize, guideSize, guideSize * guideSize / 1e6,
+                meanError(bilinear, expected, null), meanError(guided, expected, null),
+                meanError(bilinear, expected, edges(guide, guideSize)),
+                meanError(guided, expected, edges(guide, guideSize))));
+
+        GuidedUpsampler serial = new GuidedUpsampler();
+        serial.setParallel(false);
+        System.out.println(iterations + " iterations, "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        report("guided, 1 thread ", measure(iterations,
+                () -> serial.run(src, srcSize, srcSize, guide, guideSize, guideSize, guided)));
+        report("guided, parallel ", measure(iterations,
+                () -> parallel.run(src, srcSize, srcSize, guide, guideSize, guideSize, guided)));
+        parallel.setOverlayAlpha(128);
+        report("guided + blend   ", measure(iterations,
+                () -> parallel.run(src, srcSize, srcSize, guide, guideSize, guideSize, guided)));
+    }
+
+    private static LatencyStats measure(int iterations, Runnable runnable) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runnable.run();
+        }
+        LatencyStats latencyUs = new LatencyStats(iterations);
+        for (int i = 0; i < iterations; i++) {
+            long startNs = System.nanoTime();
+            runnable.run();
+            latencyUs.add((System.nanoTime() - startNs) / 1000);
+        }
+        return latencyUs;
+    }
+
+    private static void report(String name, LatencyStats latencyUs) {
+        System.out.println(String.format("%s p50=%.2fms p90=%.2fms", name,
+                latencyUs.getPercentile(50) / 1000.0, latencyUs.getPercentile(90) / 1000.0));
+    }
+
+    // hard edged discs and bars over a gradient, with some sensor noise
+    static int[] scene(Random random, int size) {
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int value = 40 + 120 * (x + y) / (2 * size);
+                pixels[y * size + x] = gray(value, random);
+            }
+        }
+        for (int i = 0; i < 40; i++) {
+            int cx = random.nextInt(size);
+            int cy = random.nextInt(size);
+            int radius = size / 40 + random.nextInt(size / 10);
+            int color = random.nextInt(0x1000000);
+            boolean bar = random.nextBoolean();
+            for (int y = Math.max(0, cy - radius); y < Math.min(size, cy + radius); y++) {
+                for (int x = Math.max(0, cx - radius); x < Math.min(size, cx + radius); x++) {
+                    int dx = x - cx;
+                    int dy = y - cy;
+                    if (bar ? Math.abs(dy) < radius / 4 : dx * dx + dy * dy < radius * radius) {
+                        pixels[y * size + x] = 0xff000000 | color;
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static int gray(int value, Random random) {
+        int v = Math.max(0, Math.min(255, value + random.nextInt(7) - 3));
+        return 0xff000000 | v << 16 | v << 8 | v;
+    }
+
+    // the made-up style: a per pixel tone and tint change
+    static int[] stylized(int[] pixels) {
+        int[] result = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = pixels[i];
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            int l = (77 * r + 150 * g + 29 * b) >> 8;
+            result[i] = 0xff000000 | Math.min(255, l + 40) << 16 | (l * 3 / 4) << 8
+                    | Math.min(255, (b + l) / 2);
+        }
+        return result;
+    }
+
+    // pixel centers mapped like the upsampler does
+    static int[] bilinear(int[] src, int srcSize, int size) {
+        int[] dst = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            float sy = Math.max(0, Math.min(srcSize - 1, (y + 0.5f) * srcSize / size - 0.5f));
+            int y0 = Math.min((int) sy, srcSize - 2);
+            float fy = sy - y0;
+            for (int x = 0; x < size; x++) {
+                float sx = Math.max(0, Math.min(srcSize - 1, (x + 0.5f) * srcSize / size - 0.5f));
+                int x0 = Math.min((int) sx, srcSize - 2);
+                float fx = sx - x0;
+                int pixel = 0xff000000;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    float top = channel(src, y0 * srcSize + x0, shift) * (1 - fx)
+                            + channel(src, y0 * srcSize + x0 + 1, shift) * fx;
+                    float bottom = channel(src, (y0 + 1) * srcSize + x0, shift) * (1 - fx)
+                            + channel(src, (y0 + 1) * srcSize + x0 + 1, shift) * fx;
+                    pixel |= Math.round(top + (bottom - top) * fy) << shift;
+                }
+                dst[y * size + x] = pixel;
+            }
+        }
+        return dst;
+    }
+
+    private static int channel(int[] pixels, int i, int shift) {
+        return (pixels[i] >> shift) & 0xff;
+    }
+
+    // pixels whose luma differs from a neighbour's by more than 32
+    static boolean[] edges(int[] pixels, int size) {
+        boolean[] edges = new boolean[pixels.length];
+        for (int y = 1; y < size; y++) {
+            for (int x = 1; x < size; x++) {
+                int i = y * size + x;
+                float l = GuidedUpsampler.luma(pixels[i]);
+                edges[i] = Math.abs(l - GuidedUpsampler.luma(pixels[i - 1])) > 32
+                        || Math.abs(l - GuidedUpsampler.luma(pixels[i - size])) > 32;
+            }
+        }
+        return edges;
+    }
+
+    // over the pixels in mask, or all of them if it is null
+    static double meanError(int[] actual, int[] expected, boolean[] mask) {
+        long error = 0;
+        long count = 0;
+        for (int i = 0; i < actual.length; i++) {
+            if (mask != null && !mask[i]) {
+                continue;
+            }
+            for (int shift = 0; shift < 24; shift += 8) {
+                error += Math.abs(channel(actual, i, shift) - channel(expected, i, shift));
+            }
+            count++;
+        }
+        return error / (3.0 * count);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link GuidedUpsampler} on the synthetic scene of {@link GuidedUpsamplerBenchmark},
+ * at a smaller size.
+ */
+public class GuidedUpsamplerTest {
+
+    private static final int GUIDE_SIZE = 600;
+    private static final int SRC_SIZE = 100;
+
+    private final int[] mGuide = GuidedUpsamplerBenchmark.scene(new Random(42), GUIDE_SIZE);
+    private final int[] mExpected = GuidedUpsamplerBenchmark.stylized(mGuide);
+    private final int[] mSrc = shrink(mExpected);
+
+    @Test
+    public void guidedIsCloserThanBilinearNearEdges() {
+        int[] bilinear = GuidedUpsamplerBenchmark.bilinear(mSrc, SRC_SIZE, GUIDE_SIZE);
+        int[] guided = new int[GUIDE_SIZE * GUIDE_SIZE];
+        new GuidedUpsampler().run(mSrc, SRC_SIZE, SRC_SIZE, mGuide, GUIDE_SIZE, GUIDE_SIZE,
+                guided);
+        boolean[] edges = GuidedUpsamplerBenchmark.edges(mGuide, GUIDE_SIZE);
+        double bilinearError = GuidedUpsamplerBenchmark.meanError(bilinear, mExpected, edges);
+        double guidedError = GuidedUpsamplerBenchmark.meanError(guided, mExpected, edges);
+        assertTrue("guided " + guidedError + ", bilinear " + bilinearError,
+                guidedError < 0.75 * bilinearError);
+        assertTrue(GuidedUpsamplerBenchmark.meanError(guided, mExpected, null)
+                <= GuidedUpsamplerBenchmark.meanError(bilinear, mExpected, null));
+    }
+
+    @Test
+    public void serialAndParallelRunsAgree() {
+        int[] serial = new int[GUIDE_SIZE * GUIDE_SIZE];
+        GuidedUpsampler upsampler = new GuidedUpsampler();
+        upsampler.setOverlayAlpha(128);
+        upsampler.setParallel(false);
+        upsampler.run(mSrc, SRC_SIZE, SRC_SIZE, mGuide, GUIDE_SIZE, GUIDE_SIZE, serial);
+        int[] parallel = new int[GUIDE_SIZE * GUIDE_SIZE];
+        upsampler.setParallel(true);
+        upsampler.run(mSrc, SRC_SIZE, SRC_SIZE, mGuide, GUIDE_SIZE, GUIDE_SIZE, parallel);
+        assertArrayEquals(serial, parallel);
+    }
+
+    @Test
+    public void outputMayBeTheGuide() {
+        int[] expected = new int[GUIDE_SIZE * GUIDE_SIZE];
+        GuidedUpsampler upsampler = new GuidedUpsampler();
+        upsampler.run(mSrc, SRC_SIZE, SRC_SIZE, mGuide, GUIDE_SIZE, GUIDE_SIZE, expected);
+        int[] inPlace = mGuide.clone();
+        upsampler.run(mSrc, SRC_SIZE, SRC_SIZE, inPlace, GUIDE_SIZE, GUIDE_SIZE, inPlace);
+        assertArrayEquals(expected, inPlace);
+    }
+
+    @Test
+    public void singlePixelSourceIsLifted() {
+        int[] src = {0xff804020};
+        int[] dst = new int[GUIDE_SIZE * GUIDE_SIZE];
+        new GuidedUpsampler().run(src, 1, 1, mGuide, GUIDE_SIZE, GUIDE_SIZE, dst);
+        for (int pixel : dst) {
+            assertTrue((pixel >>> 24) == 0xff);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBuffersSmallerThanTheirDimensions() {
+        new GuidedUpsampler().run(mSrc, SRC_SIZE, SRC_SIZE + 1, mGuide, GUIDE_SIZE, GUIDE_SIZE,
+                new int[GUIDE_SIZE * GUIDE_SIZE]);
+    }
+
+    // what the model would send back: the stylization at its own resolution
+    private static int[] shrink(int[] pixels) {
+        int[] src = new int[SRC_SIZE * SRC_SIZE];
+        PixelKernel kernel = new PixelKernel(SRC_SIZE, SRC_SIZE);
+        kernel.setCrop(0, 0, GUIDE_SIZE, GUIDE_SIZE);
+        kernel.run(pixels, GUIDE_SIZE, GUIDE_SIZE, src);
+        return src;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.example.tensorflow.cloudmachinelearningengine.InferenceScheduler.PRIORITY_BACKGROUND;
+import static com.example.tensorflow.cloudmachinelearningengine.InferenceScheduler.PRIORITY_INTERACTIVE;
+import static com.example.tensorflow.cloudmachinelearningengine.InferenceScheduler.PRIORITY_SPECULATIVE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ordering, eviction and preemption of {@link InferenceScheduler} with fake jobs.
+ */
+public class InferenceSchedulerTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private InferenceScheduler mScheduler;
+    private final CountDownLatch mBlockerStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleaseBlocker = new CountDownLatch(1);
+    private final List<String> mRan = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void shutdown() {
+        mReleaseBlocker.countDown();
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    // takes the scheduler's only slot until the blocker is released
+    private void block() throws InterruptedException {
+        mScheduler.submit(PRIORITY_INTERACTIVE, "blocker", task -> {
+            mBlockerStarted.countDown();
+            await(mReleaseBlocker);
+        });
+        assertTrue(mBlockerStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private InferenceScheduler.Task submit(int priority, String name) {
+        return mScheduler.submit(priority, name, task -> mRan.add(task.getName()));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void runsHigherPrioritiesFirst() throws InterruptedException {
+        mScheduler = new InferenceScheduler(1, 8);
+        block();
+        InferenceScheduler.Task background = submit(PRIORITY_BACKGROUND, "background");
+        InferenceScheduler.Task speculative = submit(PRIORITY_SPECULATIVE, "speculative");
+        InferenceScheduler.Task interactive1 = submit(PRIORITY_INTERACTIVE, "interactive1");
+        InferenceScheduler.Task interactive2 = submit(PRIORITY_INTERACTIVE, "interactive2");
+        assertEquals(2, mScheduler.getQueueDepth(PRIORITY_INTERACTIVE));
+        assertEquals(1, mScheduler.getInFlight());
+
+        mReleaseBlocker.countDown();
+        background.awaitDone();
+        speculative.awaitDone();
+        interactive1.awaitDone();
+        interactive2.awaitDone();
+        assertEquals(Arrays.asList("interactive1", "interactive2", "speculative", "background"),
+                mRan);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void evictsNewestLowerPriorityWhenFull() throws InterruptedException {
+        mScheduler = new InferenceScheduler(1, 2);
+        block();
+        InferenceScheduler.Task older = submit(PRIORITY_BACKGROUND, "older");
+        InferenceScheduler.Task newer = submit(PRIORITY_BACKGROUND, "newer");
+        InferenceScheduler.Task speculative = submit(PRIORITY_SPECULATIVE, "speculative");
+
+        assertNotNull(speculative);
+        assertTrue(newer.isCancelled());
+        assertFalse(older.isCancelled());
+        // dropped without running, but its waiters are let go
+        newer.awaitDone();
+        assertEquals(1, mScheduler.getEvictedCount(PRIORITY_BACKGROUND));
+        assertEquals(1, mScheduler.getQueueDepth(PRIORITY_BACKGROUND));
+        assertEquals(1, mScheduler.getQueueDepth(PRIORITY_SPECULATIVE));
+
+        mReleaseBlocker.countDown();
+        older.awaitDone();
+        speculative.awaitDone();
+        assertEquals(Arrays.asList("speculative", "older"), mRan);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void rejectsWhenNothingLowerToEvict() throws InterruptedException {
+        mScheduler = new InferenceScheduler(1, 2);
+        block();
+        assertNotNull(submit(PRIORITY_SPECULATIVE, "speculative1"));
+        assertNotNull(submit(PRIORITY_SPECULATIVE, "speculative2"));
+
+        assertNull(submit(PRIORITY_SPECULATIVE, "speculative3"));
+        assertNull(submit(PRIORITY_BACKGROUND, "background"));
+        assertEquals(1, mScheduler.getRejectedCount(PRIORITY_SPECULATIVE));
+        assertEquals(1, mScheduler.getRejectedCount(PRIORITY_BACKGROUND));
+        assertEquals(0, mScheduler.getEvictedCount(PRIORITY_SPECULATIVE));
+        assertEquals(2, mScheduler.getQueueDepth(PRIORITY_SPECULATIVE));
+
+        // an interactive job still gets in by evicting the newest speculative one
+        assertNotNull(submit(PRIORITY_INTERACTIVE, "interactive"));
+        assertEquals(1, mScheduler.getEvictedCount(PRIORITY_SPECULATIVE));
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void rejectsAfterShutdown() {
+        mScheduler = new InferenceScheduler(1, 2);
+        mScheduler.shutdown();
+        assertNull(submit(PRIORITY_INTERACTIVE, "interactive"));
+        assertEquals(1, mScheduler.getRejectedCount(PRIORITY_INTERACTIVE));
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void interactivePreemptsRunningBackgroundJob() throws InterruptedException {
+        mScheduler = new InferenceScheduler(1, 8);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean sawCancel = new AtomicBoolean();
+        // waits on work it handed on, like CMLEHandler.sendRequestToCMLE, the work never ends
+        InferenceScheduler.Task background = mScheduler.submit(PRIORITY_BACKGROUND, "background",
+                task -> {
+                    CountDownLatch handedOn = new CountDownLatch(1);
+                    task.setCancelListener(handedOn::countDown);
+                    started.countDown();
+                    await(handedOn);
+                    sawCancel.set(task.isCancelled());
+                });
+        assertTrue(started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        InferenceScheduler.Task interactive = submit(PRIORITY_INTERACTIVE, "interactive");
+        assertTrue(background.isCancelled());
+        assertEquals(1, mScheduler.getPreemptedCount(PRIORITY_BACKGROUND));
+
+        // the preempted job gave up its slot, so the interactive one ran in it
+        interactive.awaitDone();
+        background.awaitDone();
+        assertTrue(sawCancel.get());
+        assertEquals(Collections.singletonList("interactive"), mRan);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void doesNotPreemptInteractiveJobs() throws InterruptedException {
+        mScheduler = new InferenceScheduler(1, 8);
+        block();
+        InferenceScheduler.Task interactive = submit(PRIORITY_INTERACTIVE, "interactive");
+        assertEquals(0, mScheduler.getPreemptedCount(PRIORITY_INTERACTIVE));
+        mReleaseBlocker.countDown();
+        interactive.awaitDone();
+        assertFalse(interactive.isCancelled());
+        assertEquals(Collections.singletonList("interactive"), mRan);
+    }
+
+    @Test
+    public void runsCancelListenerOfCancelledTaskAtOnce() {
+        InferenceScheduler.Task task = new InferenceScheduler.Task(PRIORITY_BACKGROUND, "task",
+                t -> { });
+        task.cancel();
+        AtomicBoolean ran = new AtomicBoolean();
+        task.setCancelListener(() -> ran.set(true));
+        assertTrue(ran.get());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Closed-loop load generator for a {@link Predictor}: a fixed number of workers send requests
+ * back to back until the requested total is reached, and throughput plus latency percentiles
+ * are reported. Runs on the unit test classpath against a {@link FakePredictionServer}:
+ * <pre>
+ * java LoadHarness [concurrency] [requests] [payload bytes] [median latency ms] [error rate]
+ *     [gzip] [targets]
+ * </pre>
+ * With more than one target, each gets its own server behind a {@link ModelRouter}, and the
+ * first one is made {@link #SLOW_TARGET_FACTOR} times slower to exercise ejection.
+ */
+public class LoadHarness {
+
+    // requests sent before measuring, so class loading and JIT do not end up in the tail
+    private static final int WARMUP_REQUESTS = 100;
+
+    // latency multiplier of the first target when routing over several
+    private static final int SLOW_TARGET_FACTOR = 5;
+
+    /**
+     * Outcome of a run. Latencies are in microseconds.
+     */
+    public static class Result {
+        public int requests;
+        public int errors;
+        public long elapsedMs;
+        // every request is kept, so the tail percentiles are exact
+        public final LatencyStats latencyUs;
+
+        Result(int totalRequests) {
+            latencyUs = new LatencyStats(Math.max(1, totalRequests));
+        }
+
+        public double getThroughput() {
+            return elapsedMs == 0 ? 0 : requests * 1000.0 / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d errors=%d throughput=%.1f/s p50=%.2fms p99=%.2fms"
+                            + " p999=%.2fms", requests, errors, getThroughput(),
+                    latencyUs.getPercentile(50) / 1000.0, latencyUs.getPercentile(99) / 1000.0,
+                    latencyUs.getPercentile(99.9) / 1000.0);
+        }
+    }
+
+    /**
+     * Runs the load and blocks until it has completed.
+     *
+     * @param bodies produces the body of the n-th request
+     */
+    public static Result run(final Predictor client, final IntFunction<HttpContent> bodies,
+                             int concurrency, final int totalRequests) throws InterruptedException {
+        final Result result = new Result(totalRequests);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        long startNs = System.nanoTime();
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = new Thread(() -> {
+                int n;
+                while ((n = next.getAndIncrement()) < totalRequests) {
+                    HttpContent body = bodies.apply(n);
+                    long requestStartNs = System.nanoTime();
+                    try {
+                        client.predict(body);
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                    result.latencyUs.add(TimeUnit.NANOSECONDS.toMicros(
+                            System.nanoTime() - requestStartNs));
+                }
+            }, "LoadHarness-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        result.elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        result.requests = totalRequests;
+        result.errors = errors.get();
+        return result;
+    }
+
+    /**
+     * A predict body shaped like the app's, with a random image payload of the given size.
+     */
+    public static HttpContent syntheticBody(int payloadBytes, int style, long seed) {
+        Random random = new Random(seed);
+        byte[] image = new byte[payloadBytes];
+        random.nextBytes(image);
+        StringBuilder prefix = new StringBuilder("{\"instances\":[{\"style_weights\":[");
+        Float[] weights = PixelStyleJSON.buildStyleWeights(style);
+        for (int i = 0; i < weights.length; i++) {
+            prefix.append(i > 0 ? "," : "").append(weights[i]);
+        }
+        prefix.append("],\"image_bytes\":{\"b64\":\"");
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream(payloadBytes * 4 / 3 + 256);
+        try {
+            json.write(prefix.toString().getBytes(StandardCharsets.UTF_8));
+            Base64EncodingOutputStream base64Out = new Base64EncodingOutputStream(json);
+            base64Out.write(image);
+            base64Out.finish();
+            json.write("\"}}]}".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new ByteArrayContent("application/json; charset=UTF-8", json.toByteArray());
+    }
+
+    public static void main(String[] args) throws Exception {
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int payloadBytes = args.length > 2 ? Integer.parseInt(args[2]) : 30000;
+        long medianLatencyMs = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        float errorRate = args.length > 4 ? Float.parseFloat(args[4]) : 0f;
+        boolean gzip = args.length > 5 && Boolean.parseBoolean(args[5]);
+
+        int targets = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+
+        List<FakePredictionServer> servers = new ArrayList<>();
+        List<CMLEClient> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < targets; i++) {
+                FakePredictionServer server = new FakePredictionServer(0, 42 + i);
+                long targetLatencyMs = targets > 1 && i == 0
+                        ? medianLatencyMs * SLOW_TARGET_FACTOR : medianLatencyMs;
+                server.setLatency(FakePredictionServer.logNormalLatency(targetLatencyMs, 0.5));
+                server.setErrorRate(errorRate);
+                servers.add(server);
+                CMLEClient client = new CMLEClient(new NetHttpTransport(), null, "LoadHarness",
+                        server.getRootUrl(), "projects/load/models/stylizer/versions/v" + i);
+                client.setGzipEnabled(gzip);
+                clients.add(client);
+            }
+            Predictor predictor = targets > 1 ? new ModelRouter(clients) : clients.get(0);
+            final HttpContent[] bodies = new HttpContent[PixelStyleJSON.NUM_RAW_STYLES];
+            for (int i = 0; i < bodies.length; i++) {
+                bodies[i] = syntheticBody(payloadBytes, i, i);
+            }
+            run(predictor, n -> bodies[n % bodies.length], concurrency, WARMUP_REQUESTS);
+            for (FakePredictionServer server : servers) {
+                server.resetCounters();
+            }
+            Result result = run(predictor, n -> bodies[n % bodies.length], concurrency, requests);
+            System.out.println(result);
+            for (int i = 0; i < targets; i++) {
+                FakePredictionServer server = servers.get(i);
+                System.out.println("server " + i + " received " + server.getRequestCount()
+                        + " requests, " + server.getRequestBytes() + " bytes, "
+                        + server.getGzipRequestCount() + " gzip requests");
+                System.out.print(clients.get(i).getCompressionStats());
+            }
+            if (predictor instanceof ModelRouter) {
+                System.out.print(predictor);
+            }
+        } finally {
+            for (FakePredictionServer server : servers) {
+                server.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks ejection, probing and least-outstanding selection of {@link ModelRouter} against two
+ * {@link FakePredictionServer}s.
+ */
+public class ModelRouterTest {
+
+    private static final int PAYLOAD_BYTES = 1000;
+    // a little longer than the router's first ejection period
+    private static final long EJECTION_WAIT_MS = 1200;
+
+    private FakePredictionServer mFlaky;
+    private FakePredictionServer mHealthy;
+    private ModelRouter mRouter;
+
+    @Before
+    public void startServers() throws IOException {
+        mFlaky = new FakePredictionServer(0, 1);
+        mHealthy = new FakePredictionServer(0, 2);
+        NetHttpTransport transport = new NetHttpTransport();
+        List<CMLEClient> clients = new ArrayList<>();
+        clients.add(new CMLEClient(transport, null, "ModelRouterTest", mFlaky.getRootUrl(),
+                "projects/check/models/stylizer/versions/flaky"));
+        clients.add(new CMLEClient(transport, null, "ModelRouterTest", mHealthy.getRootUrl(),
+                "projects/check/models/stylizer/versions/healthy"));
+        mRouter = new ModelRouter(clients);
+    }
+
+    @After
+    public void stopServers() {
+        mFlaky.stop();
+        mHealthy.stop();
+    }
+
+    // sends requests one after the other, returns how many failed
+    private int send(int requests) {
+        int failed = 0;
+        for (int i = 0; i < requests; i++) {
+            try {
+                mRouter.predict(LoadHarness.syntheticBody(PAYLOAD_BYTES, 0, i));
+            } catch (IOException e) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    @Test
+    public void ejectsFailingTargetAndShiftsTraffic() {
+        mFlaky.setErrorRate(1);
+        assertEquals(3, send(20));
+
+        ModelRouter.Target flaky = mRouter.getTargets().get(0);
+        assertFalse(mRouter.toString(), flaky.isHealthy());
+        assertTrue(mRouter.toString(), mRouter.getTargets().get(1).isHealthy());
+        // ejected after three failures in a row, everything else went to the healthy target
+        assertEquals(3, mFlaky.getRequestCount());
+        assertEquals(17, mHealthy.getRequestCount());
+    }
+
+    @Test
+    public void probeReadmitsRecoveredTarget() throws InterruptedException {
+        mFlaky.setErrorRate(1);
+        send(10);
+        ModelRouter.Target flaky = mRouter.getTargets().get(0);
+        assertFalse(mRouter.toString(), flaky.isHealthy());
+
+        // still failing when probed: ejected again, for longer
+        Thread.sleep(EJECTION_WAIT_MS);
+        assertEquals(1, send(1));
+        assertEquals(4, mFlaky.getRequestCount());
+        assertFalse(mRouter.toString(), flaky.isHealthy());
+        Thread.sleep(EJECTION_WAIT_MS);
+        assertEquals(0, send(1));
+        assertEquals(4, mFlaky.getRequestCount());
+
+        mFlaky.setErrorRate(0);
+        Thread.sleep(EJECTION_WAIT_MS);
+        assertEquals(0, send(1));
+        assertEquals(5, mFlaky.getRequestCount());
+        assertTrue(mRouter.toString(), flaky.isHealthy());
+    }
+
+    @Test
+    public void spreadsConcurrentRequestsByOutstanding() throws InterruptedException {
+        final int threads = 8;
+        // long enough that every request is selected before the first one completes
+        mFlaky.setLatency(FakePredictionServer.fixedLatency(300));
+        mHealthy.setLatency(FakePredictionServer.fixedLatency(300));
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failed = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int n = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    mRouter.predict(LoadHarness.syntheticBody(PAYLOAD_BYTES, 0, n));
+                } catch (InterruptedException | IOException e) {
+                    failed.incrementAndGet();
+                }
+            }, "ModelRouterTest-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(0, failed.get());
+        assertEquals(mRouter.toString(), threads / 2, mFlaky.getRequestCount());
+        assertEquals(mRouter.toString(), threads / 2, mHealthy.getRequestCount());
+    }
+
+    @Test
+    public void selectBalancesOutstandingRequests() {
+        ModelRouter.Target first = mRouter.select();
+        ModelRouter.Target second = mRouter.select();
+        assertTrue(first != second);
+        // with equal latency the target with fewer outstanding requests wins
+        assertTrue(mRouter.select() == first);
+        assertTrue(mRouter.select() == second);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks ordering, backpressure, drop reporting and shutdown of {@link Pipeline}.
+ */
+public class PipelineTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // how an item left the pipeline
+    private static class Finish {
+        final String mStage;
+        final Throwable mError;
+
+        Finish(String stage, Throwable error) {
+            mStage = stage;
+            mError = error;
+        }
+    }
+
+    private final List<Integer> mFinished = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Integer, Finish> mFinishes = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> mFinishCounts = new ConcurrentHashMap<>();
+    private final AtomicBoolean mRelease = new AtomicBoolean();
+    private final CountDownLatch mReleased = new CountDownLatch(1);
+    private Pipeline<Integer> mPipeline;
+
+    private Pipeline<Integer> newPipeline() {
+        mPipeline = new Pipeline<>((item, stage, error) -> {
+            mFinishes.put(item, new Finish(stage, error));
+            mFinishCounts.merge(item, 1, Integer::sum);
+            mFinished.add(item);
+        });
+        return mPipeline;
+    }
+
+    @After
+    public void shutdown() {
+        release();
+        if (mPipeline != null) {
+            mPipeline.shutdown();
+        }
+    }
+
+    private void release() {
+        mRelease.set(true);
+        mReleased.countDown();
+    }
+
+    // blocks until released, without reacting to interrupts
+    private boolean hold(Integer item) {
+        while (!mRelease.get()) {
+            try {
+                mReleased.await();
+            } catch (InterruptedException e) {
+                // keep holding, like a stage stuck in uninterruptible work
+            }
+        }
+        return true;
+    }
+
+    private void awaitFinished(int count) throws InterruptedException {
+        long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mFinished.size() < count && System.currentTimeMillis() < deadlineMs) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, mFinished.size());
+    }
+
+    @Test
+    public void keepsOrderThroughSingleThreadedStages() throws InterruptedException {
+        newPipeline()
+                .addStage("a", 1, 2, item -> true)
+                .addStage("b", 1, 2, item -> true)
+                .addStage("c", 1, 2, item -> true)
+                .start();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(mPipeline.submit(i));
+            expected.add(i);
+        }
+        awaitFinished(100);
+        assertEquals(expected, mFinished);
+        for (Finish finish : mFinishes.values()) {
+            assertNull(finish.mStage);
+        }
+    }
+
+    @Test
+    public void slowStageBacksUpToSubmit() throws InterruptedException {
+        newPipeline()
+                .addStage("fast", 1, 1, item -> true)
+                .addStage("slow", 1, 1, this::hold)
+                .start();
+        // one item held in the slow stage, one in its queue, one each in and before the fast one
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mPipeline.submit(i));
+        }
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread submitter = new Thread(() -> {
+            try {
+                mPipeline.submit(4);
+                submitted.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, mPipeline.getQueueDepth("slow"));
+
+        release();
+        assertTrue(submitted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        awaitFinished(5);
+    }
+
+    @Test
+    public void reportsDroppedAndFailedItems() throws InterruptedException {
+        final Exception failure = new IllegalStateException("failed");
+        final Error error = new OutOfMemoryError("out of memory");
+        newPipeline()
+                .addStage("filter", 1, 2, item -> item != 1)
+                .addStage("work", 1, 2, item -> {
+                    if (item == 2) {
+                        throw failure;
+                    }
+                    if (item == 3) {
+                        throw error;
+                    }
+                    return true;
+                })
+                .start();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mPipeline.submit(i));
+        }
+        awaitFinished(5);
+
+        assertEquals("filter", mFinishes.get(1).mStage);
+        assertNull(mFinishes.get(1).mError);
+        assertEquals("work", mFinishes.get(2).mStage);
+        assertTrue(mFinishes.get(2).mError == failure);
+        // an error is reported like an exception and the stage keeps going
+        assertEquals("work", mFinishes.get(3).mStage);
+        assertTrue(mFinishes.get(3).mError == error);
+        assertNull(mFinishes.get(4).mStage);
+        assertNull(mFinishes.get(0).mStage);
+        assertTrue(mPipeline.toString(), mPipeline.toString().contains("dropped=2"));
+    }
+
+    @Test
+    public void shutdownReportsEveryItemOnce() throws InterruptedException {
+        final CountDownLatch holding = new CountDownLatch(1);
+        newPipeline()
+                .addStage("first", 1, 2, item -> {
+                    holding.countDown();
+                    return hold(item);
+                })
+                .addStage("second", 1, 2, item -> true)
+                .start();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mPipeline.submit(i));
+        }
+        assertTrue(holding.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        mPipeline.shutdown();
+        assertFalse(mPipeline.submit(3));
+        // the queued items are reported right away, the held one once its stage is done
+        awaitFinished(2);
+        release();
+        awaitFinished(3);
+        Thread.sleep(50);
+        assertEquals(3, mFinished.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Integer.valueOf(1), mFinishCounts.get(i));
+        }
+        assertEquals("first", mFinishes.get(1).mStage);
+        assertEquals("first", mFinishes.get(2).mStage);
+        // passed on after the shutdown, so it never got into the next stage
+        assertEquals("second", mFinishes.get(0).mStage);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.util.Random;
+
+/**
+ * Times the capture and composite work of {@link PixelKernel} both ways: the separate passes
+ * the Canvas code used to make (flip into a full size copy, crop and scale with nearest
+ * sampling like an unfiltered Canvas draw, blend into another copy) and the fused kernel, on
+ * one thread and on all cores. Its correctness is checked by {@link PixelKernelTest}. Runs on
+ * the unit test classpath:
+ * <pre>
+ * java PixelKernelBenchmark [source width] [source height] [destination size] [iterations]
+ * </pre>
+ */
+public class PixelKernelBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20;
+
+    private static final int BLEND_ALPHA = 128;
+
+    public static void main(String[] args) {
+        int srcWidth = args.length > 0 ? Integer.parseInt(args[0]) : 4032;
+        int srcHeight = args.length > 1 ? Integer.parseInt(args[1]) : 3024;
+        int dstSize = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+        int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        Random random = new Random(42);
+        int[] src = randomPixels(random, srcWidth * srcHeight);
+        int[] overlay = randomPixels(random, dstSize * dstSize);
+        int[] dst = new int[dstSize * dstSize];
+
+        PixelKernel serial = new PixelKernel(dstSize, dstSize);
+        serial.setFlip(true, true);
+        serial.setOverlay(overlay, BLEND_ALPHA);
+        serial.setParallel(false);
+        PixelKernel parallel = new PixelKernel(dstSize, dstSize);
+        parallel.setFlip(true, true);
+        parallel.setOverlay(overlay, BLEND_ALPHA);
+
+        System.out.println(srcWidth + "x" + srcHeight + " -> " + dstSize + "x" + dstSize
+                + ", flip 180, crop, scale and blend, " + iterations + " iterations, "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        report("separate passes ", measure(iterations,
+                () -> separatePasses(src, srcWidth, srcHeight, overlay, dstSize)));
+        report("fused, 1 thread ", measure(iterations,
+                () -> serial.run(src, srcWidth, srcHeight, dst)));
+        report("fused, parallel ", measure(iterations,
+                () -> parallel.run(src, srcWidth, srcHeight, dst)));
+    }
+
+    private static LatencyStats measure(int iterations, Runnable runnable) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runnable.run();
+        }
+        LatencyStats latencyUs = new LatencyStats(iterations);
+        for (int i = 0; i < iterations; i++) {
+            long startNs = System.nanoTime();
+            runnable.run();
+            latencyUs.add((System.nanoTime() - startNs) / 1000);
+        }
+        return latencyUs;
+    }
+
+    private static void report(String name, LatencyStats latencyUs) {
+        System.out.println(String.format("%s p50=%.2fms p90=%.2fms", name,
+                latencyUs.getPercentile(50) / 1000.0, latencyUs.getPercentile(90) / 1000.0));
+    }
+
+    // the flip, crop and scale, and blend passes of the Canvas code, each into a new buffer
+    private static int[] separatePasses(int[] src, int srcWidth, int srcHeight, int[] overlay,
+                                        int dstSize) {
+        int[] flipped = new int[srcWidth * srcHeight];
+        for (int i = 0; i < flipped.length; i++) {
+            flipped[flipped.length - 1 - i] = src[i];
+        }
+
+        int minDim = Math.min(srcWidth, srcHeight);
+        int offsetX = (srcWidth - minDim) / 2;
+        int offsetY = (srcHeight - minDim) / 2;
+        int[] cropped = new int[dstSize * dstSize];
+        for (int y = 0; y < dstSize; y++) {
+            int row = (offsetY + y * minDim / dstSize) * srcWidth + offsetX;
+            for (int x = 0; x < dstSize; x++) {
+                cropped[y * dstSize + x] = flipped[row + x * minDim / dstSize];
+            }
+        }
+
+        int[] blended = new int[dstSize * dstSize];
+        for (int i = 0; i < blended.length; i++) {
+            blended[i] = PixelKernel.blend(overlay[i], cropped[i], BLEND_ALPHA);
+        }
+        return blended;
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks {@link PixelKernel} against straightforward per-step transforms, where no resampling
+ * is involved.
+ */
+public class PixelKernelTest {
+
+    private static final int SIZE = 37;
+    private static final int BLEND_ALPHA = 128;
+
+    @Test
+    public void rotationFlipAndBlendMatchSeparateTransforms() {
+        Random random = new Random(7);
+        int[] src = randomPixels(random, SIZE * SIZE);
+        int[] overlay = randomPixels(random, SIZE * SIZE);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            for (int flip = 0; flip < 4; flip++) {
+                boolean horizontal = (flip & 1) != 0;
+                boolean vertical = (flip & 2) != 0;
+                int[] expected = flipped(rotated(src, SIZE, rotation), SIZE, horizontal, vertical);
+                for (int i = 0; i < expected.length; i++) {
+                    expected[i] = PixelKernel.blend(overlay[i], expected[i], BLEND_ALPHA);
+                }
+                PixelKernel kernel = new PixelKernel(SIZE, SIZE);
+                kernel.setRotation(rotation);
+                kernel.setFlip(horizontal, vertical);
+                kernel.setOverlay(overlay, BLEND_ALPHA);
+                int[] actual = new int[SIZE * SIZE];
+                kernel.run(src, SIZE, SIZE, actual);
+                assertArrayEquals("rotation " + rotation + " flip " + flip, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void serialAndParallelRunsAgree() {
+        Random random = new Random(11);
+        int srcWidth = 403;
+        int srcHeight = 302;
+        int[] src = randomPixels(random, srcWidth * srcHeight);
+        int[] overlay = randomPixels(random, 50 * 50);
+        int[] expected = new int[50 * 50];
+        int[] actual = new int[50 * 50];
+        PixelKernel serial = new PixelKernel(50, 50);
+        serial.setFlip(true, true);
+        serial.setOverlay(overlay, BLEND_ALPHA);
+        serial.setParallel(false);
+        serial.run(src, srcWidth, srcHeight, expected);
+        PixelKernel parallel = new PixelKernel(50, 50);
+        parallel.setFlip(true, true);
+        parallel.setOverlay(overlay, BLEND_ALPHA);
+        parallel.run(src, srcWidth, srcHeight, actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    // halving 2x2 blocks of the same color gives back those colors
+    @Test
+    public void downscaleOfUniformBlocksKeepsTheirColors() {
+        Random random = new Random(7);
+        int half = 16;
+        int[] blocks = randomPixels(random, half * half);
+        int[] doubled = new int[4 * half * half];
+        for (int y = 0; y < 2 * half; y++) {
+            for (int x = 0; x < 2 * half; x++) {
+                doubled[y * 2 * half + x] = blocks[(y / 2) * half + x / 2];
+            }
+        }
+        int[] halved = new int[half * half];
+        new PixelKernel(half, half).run(doubled, 2 * half, 2 * half, halved);
+        assertArrayEquals(blocks, halved);
+    }
+
+    // clockwise
+    private static int[] rotated(int[] src, int size, int rotation) {
+        int[] dst = new int[src.length];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int tx;
+                int ty;
+                if (rotation == 90) {
+                    tx = size - 1 - y;
+                    ty = x;
+                } else if (rotation == 180) {
+                    tx = size - 1 - x;
+                    ty = size - 1 - y;
+                } else if (rotation == 270) {
+                    tx = y;
+                    ty = size - 1 - x;
+                } else {
+                    tx = x;
+                    ty = y;
+                }
+                dst[ty * size + tx] = src[y * size + x];
+            }
+        }
+        return dst;
+    }
+
+    private static int[] flipped(int[] src, int size, boolean horizontal, boolean vertical) {
+        int[] dst = new int[src.length];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int tx = horizontal ? size - 1 - x : x;
+                int ty = vertical ? size - 1 - y : y;
+                dst[ty * size + tx] = src[y * size + x];
+            }
+        }
+        return dst;
+    }
+
+    private static int[] randomPixels(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        return pixels;
+    }
+}
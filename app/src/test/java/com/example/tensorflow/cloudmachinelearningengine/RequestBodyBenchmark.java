@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.ml.v1.model.GoogleCloudMlV1PredictRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Compares the request body paths: the original one that builds the base64 string of the JPEG
+ * and a {@link GoogleCloudMlV1PredictRequest} in memory before serializing it, and
+ * {@link StreamingPredictContent}. Both bodies are written to a byte counting sink, the way the
+ * transport would consume them, and the heap bytes allocated per body are reported. A random
+ * payload stands in for the JPEG, which compresses just as badly. Runs on the unit test
+ * classpath:
+ * <pre>
+ * java RequestBodyBenchmark [jpeg bytes] [iterations]
+ * </pre>
+ */
+public class RequestBodyBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 10;
+
+    // sink that only counts what it is given
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int jpegBytes = args.length > 0 ? Integer.parseInt(args[0]) : 150000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        byte[] jpeg = new byte[jpegBytes];
+        new Random(42).nextBytes(jpeg);
+        Float[] weights = PixelStyleJSON.buildStyleWeights(3);
+        HttpContent legacy = buildLegacyContent(jpeg, weights);
+        HttpContent streaming = new StreamingPredictContent(jpeg, weights);
+
+        System.out.println(jpegBytes + " byte image, " + iterations + " iterations");
+        measure("legacy   ", legacy, WARMUP_ITERATIONS, false);
+        measure("streaming", streaming, WARMUP_ITERATIONS, false);
+        measure("legacy   ", legacy, iterations, true);
+        measure("streaming", streaming, iterations, true);
+    }
+
+    // the request body as CMLEHandler used to build it, every step materialized in memory
+    private static HttpContent buildLegacyContent(byte[] jpeg, Float[] weights) {
+        return new HttpContent() {
+            @Override
+            public long getLength() {
+                return -1;
+            }
+
+            @Override
+            public String getType() {
+                return "application/json; charset=UTF-8";
+            }
+
+            @Override
+            public boolean retrySupported() {
+                return true;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                byte[] byteArray = jpeg.clone();
+                String encodedByteArrayString = Base64.getEncoder().encodeToString(byteArray);
+
+                PixelStyleJSON imageStylePixels = new PixelStyleJSON();
+                imageStylePixels.setImageBytesAndWeights(encodedByteArrayString, weights);
+                GoogleCloudMlV1PredictRequest requestJson = new GoogleCloudMlV1PredictRequest();
+                requestJson.set(CMLEHandler.INSTANCES, imageStylePixels.objectifyImageStylePixels());
+
+                new JsonHttpContent(GsonFactory.getDefaultInstance(), requestJson).writeTo(out);
+            }
+        };
+    }
+
+    private static void measure(String name, HttpContent content, int iterations, boolean log)
+            throws IOException {
+        long totalAllocated = 0;
+        long maxAllocated = 0;
+        long bodyBytes = 0;
+        long startNs = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            CountingOutputStream sink = new CountingOutputStream();
+            long before = bytesAllocated();
+            content.writeTo(sink);
+            long allocated = bytesAllocated() - before;
+            totalAllocated += allocated;
+            maxAllocated = Math.max(maxAllocated, allocated);
+            bodyBytes = sink.count;
+        }
+        if (log) {
+            // bytes allocated while writing one body, not the live heap at any point
+            System.out.println(name + ": body " + bodyBytes + " bytes, allocated per body: mean "
+                    + (totalAllocated / iterations) + " bytes, max " + maxAllocated
+                    + " bytes; mean time "
+                    + (System.nanoTime() - startNs) / iterations / 1000 + " us");
+        }
+    }
+
+    // heap bytes allocated by this thread so far
+    private static long bytesAllocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-issues a session recorded by {@link RequestRecorder} against any predict backend, keeping
+ * the original spacing between requests or compressing it by a speedup factor. Only depends on
+ * the JDK; runs on the unit test classpath:
+ * <pre>
+ * java RequestReplayer &lt;log file&gt; &lt;root url&gt; [speedup] [bearer token]
+ * </pre>
+ */
+public class RequestReplayer {
+
+    // number of requests that may overlap during a replay
+    private static final int REPLAY_THREADS = 8;
+
+    /**
+     * One recorded request/response pair.
+     */
+    public static class Record {
+        public long startWallClockMs;
+        public int durationMs;
+        public int status;
+        public String path;
+        public int style;
+        public byte[] request;
+        public byte[] response;
+    }
+
+    /**
+     * Called for every replayed request, from a replay thread.
+     */
+    public interface Listener {
+        void onReplayed(Record record, int status, long latencyMs);
+    }
+
+    private final String mRootUrl;
+    private final String mBearerToken;
+    private final float mSpeedup;
+
+    /**
+     * @param rootUrl     root of the backend, e.g. "https://ml.googleapis.com/"
+     * @param bearerToken OAuth token sent as Authorization header, or null
+     * @param speedup     1 replays at the original pace, 2 twice as fast and so on
+     */
+    public RequestReplayer(String rootUrl, String bearerToken, float speedup) {
+        mRootUrl = rootUrl.endsWith("/") ? rootUrl : rootUrl + "/";
+        mBearerToken = bearerToken;
+        mSpeedup = speedup;
+    }
+
+    /**
+     * Reads all records of a log, in recording order.
+     */
+    public static List<Record> readLog(File logFile) throws IOException {
+        List<Record> records = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(logFile)));
+        try {
+            if (in.readInt() != RequestRecorder.MAGIC) {
+                throw new IOException("not a request log: " + logFile);
+            }
+            int version = in.readInt();
+            if (version != RequestRecorder.VERSION) {
+                throw new IOException("unsupported log version " + version);
+            }
+            while (true) {
+                Record record = new Record();
+                try {
+                    record.startWallClockMs = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                record.durationMs = in.readInt();
+                record.status = in.readInt();
+                record.path = in.readUTF();
+                record.style = in.readInt();
+                record.request = new byte[in.readInt()];
+                in.readFully(record.request);
+                record.response = new byte[in.readInt()];
+                in.readFully(record.response);
+                records.add(record);
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /**
+     * Replays the records and blocks until all of them have completed.
+     */
+    public void replay(List<Record> records, final Listener listener) throws InterruptedException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(REPLAY_THREADS);
+        final CountDownLatch done = new CountDownLatch(records.size());
+        long firstStartMs = records.get(0).startWallClockMs;
+        for (final Record record : records) {
+            long delayMs = (long) ((record.startWallClockMs - firstStartMs) / mSpeedup);
+            executor.schedule(() -> {
+                long startNs = System.nanoTime();
+                int status = send(record);
+                listener.onReplayed(record, status,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs));
+                done.countDown();
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+        done.await();
+        executor.shutdown();
+    }
+
+    // POST one recorded body, returns the HTTP status or 0 on I/O error
+    private int send(Record record) {
+        try {
+            URL url = new URL(mRootUrl + "v1/" + record.path + ":predict");
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(record.request.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            if (mBearerToken != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + mBearerToken);
+            }
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(record.request);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) != -1) {
+                        // drain the response so the connection can be reused
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return status;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: RequestReplayer <log file> <root url> [speedup] [bearer token]");
+            System.exit(1);
+        }
+        List<Record> records = readLog(new File(args[0]));
+        float speedup = args.length > 2 ? Float.parseFloat(args[2]) : 1f;
+        String token = args.length > 3 ? args[3] : null;
+
+        final LatencyStats recorded = new LatencyStats(Math.max(1, records.size()));
+        final LatencyStats replayed = new LatencyStats(Math.max(1, records.size()));
+        new RequestReplayer(args[1], token, speedup).replay(records, (record, status, latencyMs) -> {
+            recorded.add(record.durationMs);
+            replayed.add(latencyMs);
+            System.out.println(record.path + " style " + record.style + ": status " + record.status
+                    + " -> " + status + ", " + record.durationMs + " ms -> " + latencyMs + " ms");
+        });
+        System.out.println("recorded ms " + recorded);
+        System.out.println("replayed ms " + replayed);
+    }
+}
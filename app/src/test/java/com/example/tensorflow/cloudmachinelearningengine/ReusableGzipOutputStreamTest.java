@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round-trips {@link ReusableGzipOutputStream} through {@link GZIPInputStream}.
+ */
+public class ReusableGzipOutputStreamTest {
+
+    private final Random mRandom = new Random(42);
+
+    // half random, half repeated text, so there is something to compress
+    private byte[] body(int length) {
+        byte[] body = new byte[length];
+        mRandom.nextBytes(body);
+        byte[] text = "{\"instances\":[{\"style_weights\":[0.0,1.0],".getBytes();
+        for (int i = length / 2; i < length; i++) {
+            body[i] = text[i % text.length];
+        }
+        return body;
+    }
+
+    private static byte[] gzip(byte[] body, int chunk) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ReusableGzipOutputStream gzipOut = new ReusableGzipOutputStream(compressed);
+        for (int off = 0; off < body.length; off += chunk) {
+            gzipOut.write(body, off, Math.min(chunk, body.length - off));
+        }
+        gzipOut.finish();
+        assertEquals(body.length, gzipOut.getRawBytes());
+        assertEquals(compressed.size(), gzipOut.getCompressedBytes());
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    @Test
+    public void roundTripsBodiesOfAnySize() throws IOException {
+        int[] lengths = {0, 1, 100, 8191, 8192, 8193, 100000};
+        for (int length : lengths) {
+            byte[] body = body(length);
+            assertArrayEquals(body, gunzip(gzip(body, Integer.MAX_VALUE)));
+            assertArrayEquals(body, gunzip(gzip(body, 1000)));
+        }
+    }
+
+    @Test
+    public void reusesDeflaterAcrossBodies() throws IOException {
+        // every body on this thread shares one Deflater, none may leak into the next
+        byte[] first = body(50000);
+        byte[] second = body(20000);
+        byte[] compressedFirst = gzip(first, 4096);
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(second, gunzip(gzip(second, 4096)));
+            assertArrayEquals(first, gunzip(gzip(first, 4096)));
+        }
+        // same input, same output: nothing of the earlier bodies is left in the dictionary
+        assertArrayEquals(compressedFirst, gzip(first, 4096));
+    }
+
+    @Test
+    public void recoversFromAbandonedBody() throws IOException {
+        // a body abandoned half way, e.g. when the connection broke
+        ReusableGzipOutputStream abandoned = new ReusableGzipOutputStream(
+                new ByteArrayOutputStream());
+        abandoned.write(body(30000), 0, 15000);
+
+        byte[] body = body(30000);
+        assertArrayEquals(body, gunzip(gzip(body, 4096)));
+    }
+
+    @Test
+    public void compressesRepetitiveBodies() throws IOException {
+        byte[] body = new byte[100000];
+        assertTrue(gzip(body, 4096).length < body.length / 50);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.tensorflow.cloudmachinelearningengine;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the length {@link StreamingPredictContent} announces, and that {@link CMLEClient}
+ * compresses by it.
+ */
+public class StreamingPredictContentTest {
+
+    private static byte[] jpeg(int length) {
+        byte[] jpeg = new byte[length];
+        new Random(length).nextBytes(jpeg);
+        return jpeg;
+    }
+
+    private static void assertLength(StreamingPredictContent content) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        content.writeTo(body);
+        assertEquals(body.size(), content.getLength());
+    }
+
+    @Test
+    public void lengthMatchesBody() throws IOException {
+        for (int length = 0; length < 10; length++) {
+            assertLength(new StreamingPredictContent(jpeg(length),
+                    PixelStyleJSON.buildStyleWeights(length % PixelStyleJSON.NUM_RAW_STYLES)));
+        }
+        assertLength(new StreamingPredictContent(jpeg(150001),
+                PixelStyleJSON.buildStyleWeights(3)));
+        assertLength(new StreamingPredictContent(jpeg(2000), new Float[][] {
+                PixelStyleJSON.buildStyleWeights(0), PixelStyleJSON.buildStyleWeights(5)}));
+        assertLength(new StreamingPredictContent(new byte[][] {jpeg(1000), jpeg(1001)},
+                PixelStyleJSON.buildStyleWeights(2)));
+        assertLength(new StreamingPredictContent(new byte[0][], new Float[] {1f}));
+    }
+
+    @Test
+    public void clientCompressesOnlyAboveThreshold() throws IOException {
+        FakePredictionServer server = new FakePredictionServer(0, 0);
+        try {
+            CMLEClient client = new CMLEClient(new NetHttpTransport(), null,
+                    "StreamingPredictContentTest", server.getRootUrl(),
+                    "projects/check/models/stylizer/versions/v1");
+            client.setGzipEnabled(true);
+            client.predict(new StreamingPredictContent(jpeg(100),
+                    PixelStyleJSON.buildStyleWeights(0)));
+            assertEquals(0, server.getGzipRequestCount());
+            client.predict(new StreamingPredictContent(jpeg(10000),
+                    PixelStyleJSON.buildStyleWeights(0)));
+            assertEquals(1, server.getGzipRequestCount());
+            assertEquals(2, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+}